@@ -1,118 +1,206 @@
 package Command;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import client.Canvas;
 
+/**
+ * Immutable draw command: a drawing operation on a board and its arguments.
+ * 
+ * If the operation is known (see CommandRegistry), the arguments are parsed
+ * into typed values once, when the command is created, and checked against
+ * the operation's signature.  Invoking the command only reuses those values.
+ * 
+ * Besides line segments there are polylines, rectangles, ellipses and filled
+ * regions, so a whole stroke can be a single command, e.g.
+ * "draw board drawPolyline color width x0 y0 dx1 dy1 dx2 dy2 ...".
+ */
 public class Command {
+    // separates the commands of a batched draw request
+    public static final String BATCH_SEPARATOR = ";";
+    
     private final String command;
     private final String[] arguments;
     private final String boardName;
+    // the operation named by command, or null if there is no such operation
+    private final CommandRegistry.Operation operation;
+    // the arguments decoded for operation, or null if there is no operation
+    private final long[] values;
+    // the point list decoded for operation, or null if there is no operation
+    private final int[] points;
+    // the command as sent on the wire, made on the first call to toString()
+    private String text;
     
     /**
      * Creates command from token array passed that has already been determined to be a draw command
      * @param elements: Elements of command in format ["draw", "boardName", "command", "arg1", "arg2", "arg3", ...]
      * @return a Command object with the command and the arguments
+     * @throws IllegalArgumentException if the command is a known operation and the arguments do not fit it
      */
     public Command(String[] elements) {
-        String[] arguments = new String[elements.length-3];
-        for (int i=3; i<elements.length;i++) {
-            arguments[i-3] = elements[i];
-        }
-        this.command = elements[2];
-        this.boardName = elements[1];
-        this.arguments = arguments;
+        this(elements[1], elements[2], Arrays.copyOfRange(elements, 3, elements.length));
     }
     
     /**
      * Parses a string received from the client that has already been determined to be a draw command
      * @param commandString: the string in the format "draw boardName command arg1 arg2 arg3..."
      * @return a Command object with the command and the arguments
+     * @throws IllegalArgumentException if the command is a known operation and the arguments do not fit it
      */
     public Command(String commandString) {
-        String[] elements = commandString.split(" ");
-        String[] arguments = new String[elements.length-3];
-        for (int i=3; i<elements.length;i++) {
-            arguments[i-3] = elements[i];
-        }
-        this.command = elements[2];
-        this.boardName = elements[1];
-        this.arguments = arguments;
+        this(commandString.split(" "));
     }
     
+    /**
+     * @throws IllegalArgumentException if the command is a known operation and the arguments do not fit it
+     */
     public Command(String boardName, String command, String[] arguments) {
         this.boardName = boardName;
         this.command = command;
         this.arguments = arguments;
-
+        this.operation = CommandRegistry.get(command);
+        this.values = operation == null ? null : operation.decode(arguments);
+        this.points = operation == null ? null : operation.decodePoints(arguments);
     }
     
     /**
-     * Finds the method with a name matching the command name,
-     * then invokes the method with the command's arguments
-     * @param canvas: the object that the method will be invoked on
+     * @return true if the command names a drawing operation and its arguments fit the operation
      */
-    public void invokeCommand(Canvas canvas) {
-        Method[] methods = Canvas.class.getMethods();
-        Method method = null;
-        for (int i=0; i<methods.length;i++) {
-            if (methods[i].getName().equals(command)) {
-                method = methods[i];
+    public boolean isValid() {
+        return operation != null;
+    }
+    
+    /**
+     * Requires isValid() and that the parameter at index is an int
+     * @param index: index of an argument
+     * @return the argument's value
+     */
+    public int getInt(int index) {
+        return (int) values[index];
+    }
+    
+    /**
+     * Requires isValid() and that the parameter at index is a float
+     * @param index: index of an argument
+     * @return the argument's value
+     */
+    public float getFloat(int index) {
+        return Float.intBitsToFloat((int) values[index]);
+    }
+    
+    /**
+     * Requires isValid()
+     * @return number of ints in the command's point list, 0 if its operation takes none
+     */
+    public int getPointsLength() {
+        return points.length;
+    }
+    
+    /**
+     * Requires isValid() and 0 <= index < getPointsLength()
+     * @param index: index in the point list
+     * @return the int at index
+     */
+    public int getPoint(int index) {
+        return points[index];
+    }
+    
+    /**
+     * @return the name of the drawing operation
+     */
+    public String getName() {
+        return command;
+    }
+    
+    /**
+     * Splits the tokens of a batched draw request into individual commands.
+     * @param tokens: Elements of the batch in format
+     *                ["drawBatch", "boardName", "command", "arg1", ..., ";", "command", "arg1", ...]
+     * @return the commands of the batch, in the order they were drawn
+     */
+    public static List<Command> fromBatch(String[] tokens) {
+        String boardName = tokens[1];
+        List<Command> commands = new ArrayList<Command>();
+        int start = 2;
+        for (int i=2; i<=tokens.length; i++) {
+            if (i == tokens.length || tokens[i].equals(BATCH_SEPARATOR)) {
+                if (i > start) {
+                    String[] arguments = Arrays.copyOfRange(tokens, start+1, i);
+                    commands.add(new Command(boardName, tokens[start], arguments));
+                }
+                start = i+1;
             }
         }
-        if (method == null) {
-            throw new RuntimeException("Command "+command+" not found.");
-        } else {
-            Class<?>[] parameters = method.getParameterTypes();
-            if (parameters.length != arguments.length) {
-                throw new RuntimeException("Incorrect number of arguments for given method.");
-            } else {
-                Object[] typedArgs = new Object[arguments.length];
-                for (int i=0; i<typedArgs.length;i++) {
-                    if (parameters[i].equals(int.class)) {
-                        typedArgs[i] = Integer.valueOf(arguments[i]);
-                    } else if(parameters[i].equals(float.class)) {
-                        typedArgs[i] = Float.valueOf(arguments[i]);
-                    } else if(parameters[i].equals(double.class)) {
-                        typedArgs[i] = Double.valueOf(arguments[i]);
-                    } else if(parameters[i].equals(long.class)) {
-                        typedArgs[i] = Long.valueOf(arguments[i]);
-                    } else if(parameters[i].equals(boolean.class)) {
-                        typedArgs[i] = Boolean.valueOf(arguments[i]);
-                    } else if(parameters[i].equals(short.class)) {
-                        typedArgs[i] = Float.valueOf(arguments[i]);
-                    } else if(parameters[i].equals(byte.class)) {
-                        typedArgs[i] = Byte.valueOf(arguments[i]);
-                    } else if(parameters[i].equals(char.class)) {
-                        typedArgs[i] = arguments[i].charAt(0);
-                    } else {
-                        typedArgs[i] = parameters[i].cast(arguments[i]);
-                    }
-                }
-                try {
-                    method.invoke(canvas, typedArgs);
-                } catch (IllegalAccessException | IllegalArgumentException
-                        | InvocationTargetException e) {
-                    e.printStackTrace();
-                }
+        return commands;
+    }
+    
+    /**
+     * Joins draw commands (without the "draw boardName" prefix) into a single batched draw request
+     * @param boardName: the board all of the commands are drawn on
+     * @param commands: commands in the format "command arg1 arg2 arg3..."
+     * @return the request in the format "drawBatch boardName command arg1 ... ; command arg1 ..."
+     */
+    public static String toBatchString(String boardName, List<String> commands) {
+        StringBuilder batch = new StringBuilder("drawBatch ").append(boardName);
+        for (int i=0; i<commands.size(); i++) {
+            if (i > 0) {
+                batch.append(" ").append(BATCH_SEPARATOR);
             }
+            batch.append(" ").append(commands.get(i));
+        }
+        return batch.toString();
+    }
+    
+    /**
+     * Invokes the command's drawing operation on the canvas with the
+     * arguments decoded when the command was created
+     * @param canvas: the object that the method will be invoked on
+     */
+    public void invokeCommand(Canvas canvas) {
+        if (operation == null) {
+            throw new RuntimeException("Command "+command+" not found.");
         }
+        operation.invoke(canvas, values, points, points.length);
+    }
+    
+    /**
+     * @return the command without its board, in the format "command arg1 arg2 arg3..."
+     */
+    public String getCommandString() {
+        String text = toString();
+        return text.substring("draw ".length() + boardName.length() + 1);
+    }
+    
+    /**
+     * @return the name of the board the command is drawn on
+     */
+    public String getBoardName() {
+        return boardName;
     }
     
     public boolean checkBoardName(String compareBoardName) {
         return this.boardName.equals(compareBoardName);
     }
     
+    /**
+     * @return the command in the format "draw boardName command arg1 arg2 arg3...";
+     *         made once and then reused, since the command never changes
+     */
     @Override
     public String toString() {
-        StringBuilder argumentString = new StringBuilder(" ");
-        for (String arg : arguments) {
-            argumentString.append(arg+" ");
+        // racing threads can only both make the same string, so no lock is needed
+        String wireText = text;
+        if (wireText == null) {
+            StringBuilder builder = new StringBuilder("draw ").append(boardName).append(' ').append(command);
+            for (String arg : arguments) {
+                builder.append(' ').append(arg);
+            }
+            wireText = builder.toString();
+            text = wireText;
         }
-        argumentString.deleteCharAt(argumentString.length()-1);
-        return "draw "+boardName+" "+command+argumentString;
+        return wireText;
     }
     
     @Override
@@ -0,0 +1,315 @@
+package Command;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import client.Canvas;
+
+/**
+ * Table of the drawing operations a Command can invoke on a Canvas, built
+ * once when the class is loaded.  The operations are the Canvas methods
+ * named in DRAWING_OPERATIONS, each named after its method; no other method
+ * of Canvas can be invoked by a command, so a draw received from the network
+ * can only draw.  An operation's method is public, returns nothing and takes
+ * only primitive parameters.  A method may also end with the parameters
+ * (int[] points, int count): it then takes any even number of trailing int
+ * arguments, which are x/y pairs of a point list and are passed in points.
+ * 
+ * A command's arguments are decoded once, when the command is created, into
+ * one long per scalar parameter holding the parameter's value (floats and
+ * doubles as their raw bits) and an int array holding the point list.  Each
+ * operation is a MethodHandle which takes the canvas, those longs and the
+ * points, converts every long straight into the primitive the method expects
+ * and calls the method, so invoking a command is a hash lookup followed by a
+ * direct call, with no parsing, no reflection and no boxing.
+ * 
+ * Concurrency Argument:
+ *   - the table is never modified after the class is initialized
+ *
+ */
+public class CommandRegistry {
+    
+    // most ints in the point list of one command
+    public static final int MAX_POINTS_LENGTH = 2 * 4096;
+    
+    // the Canvas methods which commands may invoke
+    private static final String[] DRAWING_OPERATIONS = {"drawLineSegment", "drawPolyline", "drawRectangle",
+        "drawEllipse", "fillRegion", "clearBoard", "clearRect"};
+    
+    private static final Map<String, Operation> OPERATIONS = buildOperations();
+    private static final int[] NO_POINTS = new int[0];
+    
+    /**
+     * A drawing operation: the canvas method, its signature and its invoker
+     */
+    public static class Operation {
+        private final String name;
+        // types of the scalar parameters, not including a point list
+        private final Class<?>[] parameterTypes;
+        private final boolean hasPoints;
+        // type (Canvas, long[], int[], int)void
+        private final MethodHandle invoker;
+        
+        private Operation(String name, Class<?>[] parameterTypes, boolean hasPoints, MethodHandle invoker) {
+            this.name = name;
+            this.parameterTypes = parameterTypes;
+            this.hasPoints = hasPoints;
+            this.invoker = invoker;
+        }
+        
+        public String getName() {
+            return name;
+        }
+        
+        /**
+         * @return number of scalar parameters, which come before any point list
+         */
+        public int getParameterCount() {
+            return parameterTypes.length;
+        }
+        
+        /**
+         * @param index: index of a scalar parameter
+         * @return the primitive type of the parameter
+         */
+        public Class<?> getParameterType(int index) {
+            return parameterTypes[index];
+        }
+        
+        /**
+         * @return true if the operation ends with a point list
+         */
+        public boolean hasPoints() {
+            return hasPoints;
+        }
+        
+        /**
+         * @param pointsLength: number of ints in a point list
+         * @return true if the operation can take a point list of that length
+         */
+        public boolean acceptsPoints(int pointsLength) {
+            return hasPoints ? pointsLength % 2 == 0 && pointsLength <= MAX_POINTS_LENGTH : pointsLength == 0;
+        }
+        
+        /**
+         * Parses and validates the scalar arguments against the operation's signature
+         * @param arguments: one string per parameter of the operation, then the point list if it has one
+         * @return one value per scalar parameter, in the form invoke() takes
+         * @throws IllegalArgumentException if there are the wrong number of arguments,
+         *         or an argument is not a valid value of its parameter's type
+         */
+        public long[] decode(String[] arguments) {
+            if (arguments.length < parameterTypes.length || !acceptsPoints(arguments.length - parameterTypes.length)) {
+                throw new IllegalArgumentException("Incorrect number of arguments for "+name+".");
+            }
+            long[] values = new long[parameterTypes.length];
+            for (int i=0; i<values.length; i++) {
+                values[i] = parseValue(parameterTypes[i], arguments[i]);
+            }
+            return values;
+        }
+        
+        /**
+         * Parses the point list of the arguments
+         * @param arguments: arguments which decode() accepts
+         * @return the point list, empty if the operation has none
+         * @throws IllegalArgumentException if a point is not an int
+         */
+        public int[] decodePoints(String[] arguments) {
+            if (arguments.length == parameterTypes.length) {
+                return NO_POINTS;
+            }
+            int[] points = new int[arguments.length - parameterTypes.length];
+            for (int i=0; i<points.length; i++) {
+                points[i] = Integer.parseInt(arguments[parameterTypes.length + i]);
+            }
+            return points;
+        }
+        
+        /**
+         * Calls the operation's method on canvas
+         * @param canvas: the object the method is invoked on
+         * @param values: the decoded scalar arguments, see decode()
+         * @param points: holds the point list in its first pointsLength ints
+         * @param pointsLength: number of ints in the point list, 0 if the operation has none
+         */
+        public void invoke(Canvas canvas, long[] values, int[] points, int pointsLength) {
+            try {
+                invoker.invokeExact(canvas, values, points, pointsLength);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+    
+    /**
+     * Finds the operation with the given name
+     * @param name: the name of a command
+     * @return the operation, or null if there is no operation with that name
+     */
+    public static Operation get(String name) {
+        return OPERATIONS.get(name);
+    }
+    
+    private static Map<String, Operation> buildOperations() {
+        Map<String, Operation> operations = new HashMap<String, Operation>();
+        for (String name : DRAWING_OPERATIONS) {
+            Method method = drawingMethod(name);
+            Class<?>[] parameters = method.getParameterTypes();
+            int count = parameters.length;
+            boolean hasPoints = count >= 2 && parameters[count-2] == int[].class && parameters[count-1] == int.class;
+            Class<?>[] scalars = Arrays.copyOf(parameters, hasPoints ? count-2 : count);
+            MethodHandle[] converters = new MethodHandle[scalars.length];
+            boolean primitive = true;
+            for (int i=0; i<scalars.length; i++) {
+                primitive &= scalars[i].isPrimitive();
+                converters[i] = converter(scalars[i]);
+            }
+            if (!primitive) {
+                throw new IllegalStateException("Canvas." + name + " takes a parameter which is not primitive.");
+            }
+            try {
+                MethodHandle handle = MethodHandles.publicLookup().unreflect(method);
+                // (Canvas, long, long, ..., [int[], int])void
+                handle = MethodHandles.filterArguments(handle, 1, converters);
+                if (!hasPoints) {
+                    // (Canvas, long, long, ..., int[], int)void, ignoring the points
+                    handle = MethodHandles.dropArguments(handle, scalars.length+1, int[].class, int.class);
+                }
+                // (Canvas, int[], int, long, long, ...)void
+                Class<?>[] reorderedTypes = new Class<?>[scalars.length+3];
+                int[] reorder = new int[scalars.length+3];
+                reorderedTypes[0] = Canvas.class;
+                reorderedTypes[1] = int[].class;
+                reorderedTypes[2] = int.class;
+                reorder[0] = 0;
+                for (int i=0; i<scalars.length; i++) {
+                    reorderedTypes[i+3] = long.class;
+                    reorder[i+1] = i+3;
+                }
+                reorder[scalars.length+1] = 1;
+                reorder[scalars.length+2] = 2;
+                handle = MethodHandles.permuteArguments(handle, MethodType.methodType(void.class, reorderedTypes), reorder);
+                // (Canvas, int[], int, long[])void
+                handle = handle.asSpreader(long[].class, scalars.length);
+                // (Canvas, long[], int[], int)void
+                handle = MethodHandles.permuteArguments(handle,
+                        MethodType.methodType(void.class, Canvas.class, long[].class, int[].class, int.class),
+                        0, 2, 3, 1);
+                operations.put(method.getName(), new Operation(method.getName(), scalars, hasPoints, handle));
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return Collections.unmodifiableMap(operations);
+    }
+    
+    /**
+     * @param name: the name of a drawing operation
+     * @return the Canvas method of that name
+     * @throws IllegalStateException if Canvas has no single public, non-static method of
+     *         that name returning nothing
+     */
+    private static Method drawingMethod(String name) {
+        Method found = null;
+        for (Method method : Canvas.class.getMethods()) {
+            if (method.getName().equals(name)) {
+                if (found != null) {
+                    throw new IllegalStateException("Canvas." + name + " is overloaded.");
+                }
+                found = method;
+            }
+        }
+        if (found == null || Modifier.isStatic(found.getModifiers()) || found.getReturnType() != void.class) {
+            throw new IllegalStateException("Canvas." + name + " is not a drawing method.");
+        }
+        return found;
+    }
+    
+    /**
+     * Parses an argument into the long which holds it, in the form Operation.invoke() takes
+     * @param type: the primitive type of the parameter
+     * @param argument: the argument as sent
+     * @return the value, or its raw bits for floating point types
+     * @throws IllegalArgumentException if argument is not a valid value of type
+     */
+    public static long parseValue(Class<?> type, String argument) {
+        if (type == int.class) {
+            return Integer.parseInt(argument);
+        } else if (type == float.class) {
+            float value = Float.parseFloat(argument);
+            if (Float.isNaN(value) || Float.isInfinite(value)) {
+                throw new IllegalArgumentException("Argument "+argument+" is not a finite number.");
+            }
+            return Float.floatToRawIntBits(value);
+        } else if (type == double.class) {
+            double value = Double.parseDouble(argument);
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                throw new IllegalArgumentException("Argument "+argument+" is not a finite number.");
+            }
+            return Double.doubleToRawLongBits(value);
+        } else if (type == long.class) {
+            return Long.parseLong(argument);
+        } else if (type == boolean.class) {
+            return Boolean.parseBoolean(argument) ? 1 : 0;
+        } else if (type == short.class) {
+            return Short.parseShort(argument);
+        } else if (type == byte.class) {
+            return Byte.parseByte(argument);
+        } else if (type == char.class) {
+            if (argument.length() != 1) {
+                throw new IllegalArgumentException("Argument "+argument+" is not a single character.");
+            }
+            return argument.charAt(0);
+        }
+        throw new IllegalArgumentException("Unsupported parameter type "+type+".");
+    }
+    
+    /**
+     * @param type: a primitive type
+     * @return a handle which converts a long produced by decode() back into type,
+     *         or null if the parameter takes the long itself
+     */
+    private static MethodHandle converter(Class<?> type) {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            MethodHandle longToInt = narrowing(int.class);
+            if (type == long.class || !type.isPrimitive()) {
+                return null;
+            } else if (type == float.class) {
+                MethodHandle bitsToFloat = lookup.findStatic(Float.class, "intBitsToFloat", MethodType.methodType(float.class, int.class));
+                return MethodHandles.filterArguments(bitsToFloat, 0, longToInt);
+            } else if (type == double.class) {
+                return lookup.findStatic(Double.class, "longBitsToDouble", MethodType.methodType(double.class, long.class));
+            } else if (type == boolean.class) {
+                return MethodHandles.lookup().findStatic(CommandRegistry.class, "toBoolean", MethodType.methodType(boolean.class, long.class));
+            }
+            return narrowing(type);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    /**
+     * @return a handle which casts a long to the integral type
+     */
+    private static MethodHandle narrowing(Class<?> type) {
+        return MethodHandles.explicitCastArguments(MethodHandles.identity(long.class), MethodType.methodType(type, long.class));
+    }
+    
+    @SuppressWarnings("unused")
+    private static boolean toBoolean(long value) {
+        return value != 0;
+    }
+}
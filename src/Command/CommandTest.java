@@ -5,9 +5,12 @@ import static org.junit.Assert.*;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
 
 import org.junit.Test;
 
+import client.Canvas;
 import client.Client;
 
 public class CommandTest {
@@ -18,6 +21,9 @@ public class CommandTest {
      * -Constructor
      * -toString
      * -checkBoardName
+     * -batches: split a batch into commands, join commands into a batch
+     * -registry: canvas operations are found by name, other names and methods are not
+     * -typed arguments: decoded at construction, malformed arguments rejected
      * -compare a canvas with a command invoked on it and a canvas just drawn on
      */
     
@@ -38,6 +44,8 @@ public class CommandTest {
     public void testToString() {
         assertTrue(noArgumentsObject.toString().equals(noArguments));
         assertTrue(lineSegmentObject.toString().equals(lineSegment));
+        // the wire text is made once and reused
+        assertSame(lineSegmentObject.toString(), lineSegmentObject.toString());
     }
     
     @Test
@@ -46,6 +54,69 @@ public class CommandTest {
         assertTrue(lineSegmentObject.checkBoardName("board2"));
     }
     
+    @Test
+    public void batchTest() {
+        String batch = "drawBatch board2 drawLineSegment 50 50 60 60 0 10 ; drawNothing";
+        List<Command> commands = Command.fromBatch(batch.split(" "));
+        assertEquals(2, commands.size());
+        assertTrue(commands.get(0).equals(lineSegmentObject));
+        assertEquals("draw board2 drawNothing", commands.get(1).toString());
+        
+        String joined = Command.toBatchString("board2", Arrays.asList("drawLineSegment 50 50 60 60 0 10", "drawNothing"));
+        assertEquals(batch, joined);
+    }
+    
+    @Test
+    public void registryTest() {
+        assertEquals(6, CommandRegistry.get("drawLineSegment").getParameterCount());
+        assertNull(CommandRegistry.get("drawNothing"));
+        // methods inherited from JPanel are not drawing operations
+        assertNull(CommandRegistry.get("repaint"));
+        // nor are the methods of Canvas which do more than draw
+        assertNull(CommandRegistry.get("drawLineSegmentAndCall"));
+        assertNull(CommandRegistry.get("updateCurrentUserBoard"));
+        assertNotNull(CommandRegistry.get("clearRect"));
+    }
+    
+    @Test
+    public void typedArgumentsTest() {
+        assertTrue(lineSegmentObject.isValid());
+        assertEquals(50, lineSegmentObject.getInt(0));
+        assertEquals(60, lineSegmentObject.getInt(3));
+        assertEquals(10f, lineSegmentObject.getFloat(5), 0);
+        assertTrue(!noArgumentsObject.isValid());
+    }
+    
+    @Test
+    public void polylineTest() {
+        Command polyline = new Command("draw board2 drawPolyline 50 50 0 2.5 10 -5 -3 0");
+        assertTrue(polyline.isValid());
+        assertTrue(CommandRegistry.get("drawPolyline").hasPoints());
+        assertEquals(50, polyline.getInt(1));
+        assertEquals(2.5f, polyline.getFloat(3), 0);
+        assertEquals(4, polyline.getPointsLength());
+        assertEquals(-5, polyline.getPoint(1));
+        assertEquals(0, lineSegmentObject.getPointsLength());
+        
+        String command = Canvas.polylineCommand(new int[] {50, 60, 57}, new int[] {50, 45, 45}, 3, 0, 2.5f);
+        assertEquals("drawPolyline 50 50 16777216 2.5 10 -5 -3 0", command);
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void oddPolylineTest() {
+        new Command("draw board2 drawPolyline 50 50 0 2.5 10 -5 -3");
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void malformedArgumentsTest() {
+        new Command("draw board2 drawLineSegment 50 50 60 sixty 0 10");
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void wrongArgumentCountTest() {
+        new Command("draw board2 drawLineSegment 50 50 60 60 0");
+    }
+    
     @Test
     public void invokeCommandTest() {
         try {
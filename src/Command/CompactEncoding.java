@@ -0,0 +1,187 @@
+package Command;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact encoding of stroke commands, sent by the server instead of draw
+ * and drawBatch messages to connections which asked for it with
+ * "encoding compact".
+ *
+ * A compact message is "c boardName ops", where ops is the commands of the
+ * message run together without separators.  Each command is an opcode
+ * character followed by its fields, each field a number written in the
+ * variable length form of appendNumber():
+ *
+ *   Segment  = 'S' color width x1 y1 dx dy, for drawLineSegment
+ *   Polyline = 'P' color width x0 y0 n dx1 dy1 ... dxn dyn, for drawPolyline
+ *
+ * color is an index in the connection's palette; the server declares an
+ * index with "palette index color" before first using it.  A client which
+ * reconnects sends "encoding compact color0 color1 ..." to keep the palette
+ * of its earlier connection, so compact messages it has kept still decode
+ * with the same colors; those indices are not declared again.  width is in
+ * quarter pixels.  The first point of a command is relative to the last
+ * point of the command before it in the same message (to (0, 0) for the
+ * first command), and every other point to the point before it.
+ *
+ * Only drawLineSegment and drawPolyline commands whose width is a multiple
+ * of a quarter pixel can be encoded; messages with other commands are sent
+ * as text.
+ */
+public class CompactEncoding {
+    // first token of compact messages
+    public static final String PREFIX = "c";
+    // first token of palette declarations
+    public static final String PALETTE = "palette";
+    // most colors in the palette of one connection
+    public static final int PALETTE_SIZE = 256;
+    // widths are sent in units of 1/WIDTH_STEPS pixels
+    public static final int WIDTH_STEPS = 4;
+    public static final char SEGMENT = 'S';
+    public static final char POLYLINE = 'P';
+    // every character of a number is at least this
+    public static final int NUMBER_BASE = 63;
+    // set in every character of a number but the last
+    public static final int NUMBER_MORE = 0x20;
+    private static final String NEW_LINE = System.getProperty("line.separator");
+
+    private CompactEncoding() {
+    }
+
+    /**
+     * Encodes commands for one connection.  The palette of the connection
+     * grows as new colors are encoded, so a message must be sent before the
+     * next one is encoded: encode and send while holding the encoder's lock.
+     */
+    public static class Encoder {
+        // palette index of each color declared to the connection
+        private final Map<Integer, Integer> palette = new HashMap<Integer, Integer>();
+
+        /**
+         * Declares colors as the palette's first indices without sending
+         * declarations, because the client already has them
+         * @param colors: the palette of the client's earlier connection, by index
+         * @return true if the palette was seeded; false, leaving it unchanged, if
+         *         it was not empty, colors has more than PALETTE_SIZE colors or a
+         *         color more than once
+         */
+        public boolean seed(int[] colors) {
+            if (!palette.isEmpty() || colors.length > PALETTE_SIZE) {
+                return false;
+            }
+            for (int i = 0; i < colors.length; i++) {
+                if (palette.put(colors[i], i) != null) {
+                    palette.clear();
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Encodes the commands of one draw or drawBatch message
+         * @param boardName: the board the commands are drawn on
+         * @param commands: the commands, in drawing order
+         * @param text: the message as text, sent if a command cannot be encoded
+         * @return the declarations of any new palette colors, one per line,
+         *         then the compact message, or text if a command cannot be encoded
+         */
+        public String encode(String boardName, List<Command> commands, String text) {
+            StringBuilder declarations = new StringBuilder();
+            for (Command command : commands) {
+                if (!canEncode(command) || paletteIndex(colorOf(command), declarations) < 0) {
+                    return declarations.append(text).toString();
+                }
+            }
+            declarations.append(PREFIX).append(' ').append(boardName).append(' ');
+            appendCommands(declarations, commands, 0, commands.size());
+            return declarations.toString();
+        }
+
+        private void appendCommands(StringBuilder message, List<Command> commands, int start, int end) {
+            int lastX = 0;
+            int lastY = 0;
+            for (int i = start; i < end; i++) {
+                Command command = commands.get(i);
+                boolean segment = command.getName().equals("drawLineSegment");
+                int x = command.getInt(0);
+                int y = command.getInt(1);
+                message.append(segment ? SEGMENT : POLYLINE);
+                appendNumber(message, palette.get(colorOf(command)));
+                appendNumber(message, Math.round(command.getFloat(segment ? 5 : 3) * WIDTH_STEPS));
+                appendNumber(message, x - lastX);
+                appendNumber(message, y - lastY);
+                if (segment) {
+                    lastX = command.getInt(2);
+                    lastY = command.getInt(3);
+                    appendNumber(message, lastX - x);
+                    appendNumber(message, lastY - y);
+                } else {
+                    appendNumber(message, command.getPointsLength() / 2);
+                    lastX = x;
+                    lastY = y;
+                    for (int j = 0; j < command.getPointsLength(); j += 2) {
+                        appendNumber(message, command.getPoint(j));
+                        appendNumber(message, command.getPoint(j+1));
+                        lastX += command.getPoint(j);
+                        lastY += command.getPoint(j+1);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Finds the palette index of color, adding color to the palette if there is room
+         * @param declarations: receives the declaration of color if it is added
+         * @return the index, or -1 if color is not in the palette and the palette is full
+         */
+        private int paletteIndex(int color, StringBuilder declarations) {
+            Integer index = palette.get(color);
+            if (index == null) {
+                if (palette.size() == PALETTE_SIZE) {
+                    return -1;
+                }
+                index = palette.size();
+                palette.put(color, index);
+                declarations.append(PALETTE).append(' ').append(index).append(' ').append(color).append(NEW_LINE);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * @return true if command is a drawLineSegment or drawPolyline whose width
+     *         is a multiple of a quarter pixel
+     */
+    public static boolean canEncode(Command command) {
+        if (!command.isValid()) {
+            return false;
+        }
+        boolean segment = command.getName().equals("drawLineSegment");
+        if (!segment && !command.getName().equals("drawPolyline")) {
+            return false;
+        }
+        float width = command.getFloat(segment ? 5 : 3);
+        float steps = width * WIDTH_STEPS;
+        return steps >= 0 && steps <= Integer.MAX_VALUE && steps == Math.round(steps);
+    }
+
+    private static int colorOf(Command command) {
+        return command.getInt(command.getName().equals("drawLineSegment") ? 4 : 2);
+    }
+
+    /**
+     * Appends value as zigzag-encoded groups of 5 bits, least significant group first,
+     * each written as NUMBER_BASE plus the group, plus NUMBER_MORE if more groups follow
+     */
+    public static void appendNumber(StringBuilder message, int value) {
+        int bits = (value << 1) ^ (value >> 31);
+        while ((bits & ~0x1f) != 0) {
+            message.append((char) (NUMBER_BASE + (NUMBER_MORE | (bits & 0x1f))));
+            bits >>>= 5;
+        }
+        message.append((char) (NUMBER_BASE + bits));
+    }
+}
@@ -0,0 +1,74 @@
+package client;
+
+import java.awt.image.BufferedImage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The boards the client has left lately, each with its log and the image of
+ * the canvas drawn from exactly that log.  Switching back to a cached board
+ * shows its image at once, and the server sends only the part of its log
+ * from the log's next entry on.  At most MAX_BOARDS boards are kept; the
+ * board left longest ago is dropped first.
+ *
+ * Not thread safe; used only while holding the lock of the ClientReceiveProtocol.
+ */
+public class BoardCache {
+
+    // most boards kept
+    public static final int MAX_BOARDS = 4;
+
+    /**
+     * A board left, with its log and image
+     */
+    public static class Board {
+        private final BoardLog log;
+        private final BufferedImage image;
+
+        Board(BoardLog log, BufferedImage image) {
+            this.log = log;
+            this.image = image;
+        }
+
+        public BoardLog getLog() {
+            return log;
+        }
+
+        public BufferedImage getImage() {
+            return image;
+        }
+    }
+
+    private final Map<String, Board> boards = new LinkedHashMap<String, Board>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Board> eldest) {
+            return size() > MAX_BOARDS;
+        }
+    };
+
+    /**
+     * Keeps a board left, replacing what was kept for it
+     * @param boardName: the board
+     * @param log: the board's log
+     * @param image: the canvas drawn from the log
+     */
+    public void put(String boardName, BoardLog log, BufferedImage image) {
+        boards.put(boardName, new Board(log, image));
+    }
+
+    /**
+     * Takes a board out of the cache, to make it the current board again
+     * @param boardName: the board
+     * @return the board's log and image, or null if it is not kept
+     */
+    public Board take(String boardName) {
+        return boards.remove(boardName);
+    }
+
+    /**
+     * @return number of boards kept
+     */
+    public int size() {
+        return boards.size();
+    }
+}
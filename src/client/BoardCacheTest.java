@@ -0,0 +1,58 @@
+package client;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+
+import org.junit.Test;
+
+/**
+ * Testing Strategy:
+ *  Take:
+ *      a board kept, a board not kept, a board taken twice
+ *  Bound:
+ *      more than MAX_BOARDS boards left, the board left longest ago is dropped;
+ *      a board left again counts as left last
+ */
+public class BoardCacheTest {
+
+    private static BoardLog log(String boardName, long nextSeq) {
+        BoardLog log = new BoardLog();
+        log.reset(boardName);
+        log.setNextSeq(nextSeq);
+        return log;
+    }
+
+    /******************** Take  *****************/
+    @Test
+    public void takeTest() {
+        BoardCache cache = new BoardCache();
+        BufferedImage image = new BufferedImage(4, 4, BufferedImage.TYPE_INT_RGB);
+        cache.put("board", log("board", 7), image);
+
+        assertNull(cache.take("other"));
+        BoardCache.Board board = cache.take("board");
+        assertSame(image, board.getImage());
+        assertEquals(7, board.getLog().getNextSeq());
+        assertNull(cache.take("board"));
+        assertEquals(0, cache.size());
+    }
+
+    /******************** Bound  *****************/
+    @Test
+    public void leastRecentlyLeftTest() {
+        BoardCache cache = new BoardCache();
+        BufferedImage image = new BufferedImage(4, 4, BufferedImage.TYPE_INT_RGB);
+        for (int i = 0; i < BoardCache.MAX_BOARDS; i++) {
+            cache.put("board" + i, log("board" + i, i), image);
+        }
+        // board0 is left again, so board1 was left longest ago
+        cache.put("board0", log("board0", 10), image);
+        cache.put("another", log("another", 0), image);
+
+        assertEquals(BoardCache.MAX_BOARDS, cache.size());
+        assertNull(cache.take("board1"));
+        assertEquals(10, cache.take("board0").getLog().getNextSeq());
+        assertNotNull(cache.take("another"));
+    }
+}
@@ -0,0 +1,373 @@
+package client;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The client's copy of the log of the current board: every draw message
+ * received for it, as the bytes of its line, numbered like the server numbers
+ * the entries of the board's log, and whether it is undone.
+ *
+ * Every CHECKPOINT_INTERVAL commands drawn, a copy of the canvas is kept as a
+ * checkpoint.  When entries are undone or redone, the canvas is restored from
+ * the last checkpoint before the first entry changed and only the entries
+ * after it are drawn again, instead of the whole board.  Only the last
+ * MAX_CHECKPOINTS checkpoints are kept; changes older than all of them
+ * redraw the board from the start.
+ *
+ * Like the server's log, the log starts over at an entry which clears the
+ * whole board: the entries before it are dropped.
+ *
+ * The client's own draws are already on the canvas when the server echoes
+ * them, so they are logged without being drawn again.  No checkpoint is
+ * taken while the canvas holds local draws which are not logged yet.
+ *
+ * After reconnecting, the client resumes from getNextSeq(): the server sends
+ * only the entries from there on, and which of the older entries are still
+ * drawn.
+ *
+ * The log of a board shown in a background tab is hidden: its entries are
+ * logged and undone like those of the current board, but nothing is drawn,
+ * since the canvas shows another board.  The canvas is redrawn from the log
+ * when the board is shown again.
+ *
+ * The lines of the entries are copied one after the other into a single
+ * buffer, and each entry is an index into parallel arrays of sequence
+ * numbers, offsets, lengths and undone flags.  The buffer and arrays double
+ * when full and are kept when the log is reset or cleared, so logging a
+ * received line allocates nothing once the log has reached its size.
+ *
+ * Not thread safe; used only by the thread receiving from the server.
+ */
+public class BoardLog {
+
+    // commands drawn between checkpoints
+    public static final int CHECKPOINT_INTERVAL = 512;
+    // most checkpoints kept
+    public static final int MAX_CHECKPOINTS = 8;
+
+    /**
+     * Draws the line of an entry
+     */
+    public interface Renderer {
+        /**
+         * @param line: holds the line in line[start, start+length)
+         * @return the number of commands drawn
+         */
+        int render(byte[] line, int start, int length);
+    }
+
+    private static class Checkpoint {
+        // number of entries drawn in the image
+        private final int entryCount;
+        private final BufferedImage image;
+
+        Checkpoint(int entryCount, BufferedImage image) {
+            this.entryCount = entryCount;
+            this.image = image;
+        }
+    }
+
+    // the lines of the entries, one after the other, in lines[0, linesLength)
+    private byte[] lines = new byte[4096];
+    private int linesLength = 0;
+    // entry i is numbered seqs[i] and its line is lines[starts[i], starts[i]+lengths[i])
+    private long[] seqs = new long[64];
+    private int[] starts = new int[64];
+    private int[] lengths = new int[64];
+    private boolean[] undone = new boolean[64];
+    private int entryCount = 0;
+    private final List<Checkpoint> checkpoints = new ArrayList<Checkpoint>();
+    // the board of the log, or null before the first board is received
+    private String boardName;
+    private long nextSeq = 0;
+    // true if the next entry is undone
+    private boolean nextUndone = false;
+    private int commandsSinceCheckpoint = 0;
+    // true while the canvas holds local draws the log does not have yet
+    private boolean canvasAhead = false;
+    // true while the board is in a background tab, and its entries are not drawn
+    private boolean hidden = false;
+
+    /**
+     * Empties the log, for a board whose log is about to be received
+     * @param boardName: the board
+     */
+    public void reset(String boardName) {
+        this.boardName = boardName;
+        entryCount = 0;
+        linesLength = 0;
+        checkpoints.clear();
+        nextSeq = 0;
+        nextUndone = false;
+        commandsSinceCheckpoint = 0;
+    }
+
+    /**
+     * @param seq: the number of the next entry received
+     */
+    public void setNextSeq(long seq) {
+        nextSeq = seq;
+    }
+
+    /**
+     * @return the number of the next entry to be received
+     */
+    public long getNextSeq() {
+        return nextSeq;
+    }
+
+    /**
+     * @return the board of the log, or null if no board has been received
+     */
+    public String getBoardName() {
+        return boardName;
+    }
+
+    /**
+     * Marks the next entry received as undone
+     */
+    public void markNextUndone() {
+        nextUndone = true;
+    }
+
+    /**
+     * Adds a received draw message to the log and draws it, unless it is undone
+     * @param line: holds the message in line[start, start+length)
+     * @param renderer: draws the message
+     * @param canvas: the canvas the message is drawn on
+     */
+    public void receive(byte[] line, int start, int length, Renderer renderer, Canvas canvas) {
+        int entry = add(line, start, length, nextUndone);
+        nextUndone = false;
+        if (!undone[entry] && !hidden) {
+            draw(entry, renderer);
+            if (commandsSinceCheckpoint >= CHECKPOINT_INTERVAL && !canvasAhead) {
+                checkpoint(entryCount, canvas);
+            }
+        }
+    }
+
+    /**
+     * Adds to the log a draw message which is already drawn on the canvas,
+     * the client's own draw; it is counted as one command drawn
+     * @param line: holds the message in line[start, start+length)
+     * @param canvas: the canvas the message is drawn on
+     */
+    public void receiveDrawn(byte[] line, int start, int length, Canvas canvas) {
+        add(line, start, length, false);
+        nextUndone = false;
+        commandsSinceCheckpoint++;
+        if (commandsSinceCheckpoint >= CHECKPOINT_INTERVAL && !canvasAhead) {
+            checkpoint(entryCount, canvas);
+        }
+    }
+
+    /**
+     * Appends an entry numbered nextSeq, copying its line into the log's buffer
+     * @return the index of the entry
+     */
+    private int add(byte[] line, int start, int length, boolean entryUndone) {
+        if (linesLength + length > lines.length) {
+            lines = Arrays.copyOf(lines, Math.max(2 * lines.length, linesLength + length));
+        }
+        if (entryCount == seqs.length) {
+            int capacity = 2 * entryCount;
+            seqs = Arrays.copyOf(seqs, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            undone = Arrays.copyOf(undone, capacity);
+        }
+        System.arraycopy(line, start, lines, linesLength, length);
+        seqs[entryCount] = nextSeq++;
+        starts[entryCount] = linesLength;
+        lengths[entryCount] = length;
+        undone[entryCount] = entryUndone;
+        linesLength += length;
+        return entryCount++;
+    }
+
+    /**
+     * While the canvas holds local draws which are not in the log, no
+     * checkpoint is taken, since it would not match the log
+     * @param ahead: true if the canvas holds such draws
+     */
+    public void setCanvasAhead(boolean ahead) {
+        canvasAhead = ahead;
+    }
+
+    /**
+     * Hides the log, for a board moved to a background tab, or shows it again
+     * @param hidden: true if the entries are not to be drawn
+     */
+    public void setHidden(boolean hidden) {
+        this.hidden = hidden;
+    }
+
+    /**
+     * @return true if the entries are not drawn
+     */
+    public boolean isHidden() {
+        return hidden;
+    }
+
+    /**
+     * Redraws the canvas from the last checkpoint, dropping whatever was drawn
+     * on it which is not in the log
+     * @param renderer: draws the entries
+     * @param canvas: the canvas the entries are drawn on
+     */
+    public void redraw(Renderer renderer, Canvas canvas) {
+        redrawFrom(entryCount, renderer, canvas);
+    }
+
+    /**
+     * Drops every entry before the last one received, which cleared the board
+     */
+    public void clearBeforeLast() {
+        if (entryCount == 0) {
+            return;
+        }
+        int last = entryCount - 1;
+        System.arraycopy(lines, starts[last], lines, 0, lengths[last]);
+        seqs[0] = seqs[last];
+        starts[0] = 0;
+        lengths[0] = lengths[last];
+        undone[0] = undone[last];
+        entryCount = 1;
+        linesLength = lengths[0];
+        checkpoints.clear();
+        commandsSinceCheckpoint = 0;
+    }
+
+    /**
+     * Undoes or redoes the entries numbered in the ranges and redraws the
+     * canvas from the last checkpoint before the first entry changed
+     * @param ranges: pairs of first and last numbers of entries
+     * @param undone: true to undo the entries, false to redo them
+     * @param renderer: draws the entries
+     * @param canvas: the canvas the entries are drawn on
+     */
+    public void setUndone(long[] ranges, boolean undone, Renderer renderer, Canvas canvas) {
+        int firstChanged = -1;
+        for (int i = 0; i < entryCount; i++) {
+            if (this.undone[i] != undone && inRanges(seqs[i], ranges)) {
+                this.undone[i] = undone;
+                if (firstChanged < 0) {
+                    firstChanged = i;
+                }
+            }
+        }
+        if (firstChanged >= 0) {
+            redrawFrom(firstChanged, renderer, canvas);
+        }
+    }
+
+    /**
+     * Brings the log up to date with the server's log after reconnecting:
+     * drops the entries from start on, which the server sends again, and
+     * undoes every older entry except those numbered in the live ranges
+     * @param start: the number of the first entry the server sends again
+     * @param live: pairs of first and last numbers of the older entries still drawn
+     * @param renderer: draws the entries
+     * @param canvas: the canvas the entries are drawn on
+     */
+    public void resume(long start, long[] live, Renderer renderer, Canvas canvas) {
+        int firstChanged = -1;
+        int kept = 0;
+        while (kept < entryCount && seqs[kept] < start) {
+            boolean entryUndone = !inRanges(seqs[kept], live);
+            if (undone[kept] != entryUndone) {
+                undone[kept] = entryUndone;
+                if (firstChanged < 0) {
+                    firstChanged = kept;
+                }
+            }
+            kept++;
+        }
+        if (kept < entryCount) {
+            linesLength = starts[kept];
+            entryCount = kept;
+            if (firstChanged < 0) {
+                firstChanged = kept;
+            }
+        }
+        nextSeq = start;
+        nextUndone = false;
+        if (firstChanged >= 0) {
+            redrawFrom(firstChanged, renderer, canvas);
+        }
+    }
+
+    /**
+     * Redraws the canvas from the last checkpoint at or before entry index firstChanged
+     */
+    private void redrawFrom(int firstChanged, Renderer renderer, Canvas canvas) {
+        // checkpoints after the first change no longer match the log
+        Checkpoint restart = null;
+        for (int i = checkpoints.size() - 1; i >= 0; i--) {
+            if (checkpoints.get(i).entryCount <= firstChanged) {
+                restart = checkpoints.get(i);
+                break;
+            }
+            checkpoints.remove(i);
+        }
+        if (hidden) {
+            // drawn when the board is shown again
+            return;
+        }
+        canvas.restore(restart == null ? null : restart.image);
+        commandsSinceCheckpoint = 0;
+        for (int i = restart == null ? 0 : restart.entryCount; i < entryCount; i++) {
+            if (!undone[i]) {
+                draw(i, renderer);
+            }
+            if (commandsSinceCheckpoint >= CHECKPOINT_INTERVAL) {
+                checkpoint(i + 1, canvas);
+            }
+        }
+    }
+
+    /**
+     * Drops every checkpoint but the last, for a log kept in the BoardCache
+     */
+    public void trimCheckpoints() {
+        if (checkpoints.size() > 1) {
+            checkpoints.subList(0, checkpoints.size() - 1).clear();
+        }
+    }
+
+    /**
+     * @return number of checkpoints kept
+     */
+    public int getCheckpointCount() {
+        return checkpoints.size();
+    }
+
+    private void draw(int entry, Renderer renderer) {
+        commandsSinceCheckpoint += renderer.render(lines, starts[entry], lengths[entry]);
+    }
+
+    private void checkpoint(int entryCount, Canvas canvas) {
+        commandsSinceCheckpoint = 0;
+        BufferedImage image = canvas.snapshot();
+        if (image == null) {
+            return;
+        }
+        checkpoints.add(new Checkpoint(entryCount, image));
+        if (checkpoints.size() > MAX_CHECKPOINTS) {
+            checkpoints.remove(0);
+        }
+    }
+
+    private static boolean inRanges(long seq, long[] ranges) {
+        for (int i = 0; i + 1 < ranges.length; i += 2) {
+            if (seq >= ranges[i] && seq <= ranges[i + 1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
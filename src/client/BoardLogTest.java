@@ -0,0 +1,297 @@
+package client;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import Command.Command;
+import Command.CommandRegistry;
+import Command.CompactEncoding;
+
+/**
+ * Testing Strategy:
+ *  Entries:
+ *      redraw after an undo, after dropping entries the server sends again, after a clear
+ *      of the board, with the log's buffer grown past its first size
+ *  Reconnect:
+ *      compact entries received before a reconnect redrawn by an undo after it, with
+ *      the palette kept and with new colors declared on the new connection
+ *  Hidden:
+ *      entries received, undone and resumed while hidden are logged but not drawn;
+ *      a hidden log is numbered like a shown one
+ *  Allocation:
+ *      many draw lines read, logged and drawn the way the receive thread does,
+ *      after the log was reset, without allocating per line
+ */
+public class BoardLogTest {
+
+    /**
+     * Counts the entries drawn
+     */
+    private static class CountingRenderer implements BoardLog.Renderer {
+        private int rendered = 0;
+
+        public int render(byte[] line, int start, int length) {
+            rendered++;
+            return 1;
+        }
+    }
+
+    /**
+     * Draws entries like ClientReceiveProtocol: decodes them in place and counts the commands
+     */
+    private static class DecodingRenderer implements BoardLog.Renderer, DrawDecoder.Target {
+        private final DrawDecoder decoder = new DrawDecoder();
+        private int commandsApplied = 0;
+        private long commands = 0;
+
+        public int render(byte[] line, int start, int length) {
+            commandsApplied = 0;
+            decoder.decode(line, start, length, "board", this);
+            return commandsApplied;
+        }
+
+        public void apply(CommandRegistry.Operation operation, long[] values, int[] points, int pointsLength) {
+            commandsApplied++;
+            commands++;
+        }
+    }
+
+    /**
+     * Records the lines drawn
+     */
+    private static class RecordingRenderer implements BoardLog.Renderer {
+        private final List<String> drawn = new ArrayList<String>();
+
+        public int render(byte[] line, int start, int length) {
+            drawn.add(new String(line, start, length));
+            return 1;
+        }
+    }
+
+    /**
+     * @return a canvas with no drawing buffer, which is neither snapshotted nor restored
+     */
+    private static Canvas blankCanvas() {
+        return new Canvas(null) {
+            @Override
+            public synchronized BufferedImage snapshot() {
+                return null;
+            }
+
+            @Override
+            public synchronized void restore(BufferedImage image) {
+            }
+        };
+    }
+
+    private static void receive(BoardLog log, String message, BoardLog.Renderer renderer, Canvas canvas) {
+        byte[] line = ("padding " + message + " padding").getBytes();
+        log.receive(line, "padding ".length(), message.length(), renderer, canvas);
+    }
+
+    /******************** Entries  *****************/
+    @Test
+    public void entriesTest() {
+        RecordingRenderer renderer = new RecordingRenderer();
+        Canvas canvas = blankCanvas();
+        BoardLog log = new BoardLog();
+        log.reset("board");
+        // long lines, so the log's buffer grows
+        StringBuilder longLine = new StringBuilder("draw board drawPolyline 0 0 0 1.0");
+        for (int i = 0; i < 1000; i++) {
+            longLine.append(" 1 1");
+        }
+        receive(log, "draw board a", renderer, canvas);
+        receive(log, longLine.toString(), renderer, canvas);
+        receive(log, "draw board c", renderer, canvas);
+        receive(log, longLine.toString(), renderer, canvas);
+
+        renderer.drawn.clear();
+        log.setUndone(new long[] {1, 1}, true, renderer, canvas);
+        assertEquals(Arrays.asList("draw board a", "draw board c", longLine.toString()), renderer.drawn);
+
+        // entries 2 and 3 are sent again, and entry 1 is drawn again
+        renderer.drawn.clear();
+        log.resume(2, new long[] {0, 1}, renderer, canvas);
+        assertEquals(Arrays.asList("draw board a", longLine.toString()), renderer.drawn);
+        assertEquals(2, log.getNextSeq());
+
+        receive(log, "draw board clearBoard", renderer, canvas);
+        log.clearBeforeLast();
+        receive(log, "draw board d", renderer, canvas);
+        renderer.drawn.clear();
+        log.redraw(renderer, canvas);
+        assertEquals(Arrays.asList("draw board clearBoard", "draw board d"), renderer.drawn);
+        assertEquals(4, log.getNextSeq());
+    }
+
+    /**
+     * Draws entries with the decoder which also reads the palette declarations,
+     * like ClientReceiveProtocol, and records the color of each command
+     */
+    private static class ColorRenderer implements BoardLog.Renderer, DrawDecoder.Target {
+        private final DrawDecoder decoder = new DrawDecoder();
+        private final List<Long> colors = new ArrayList<Long>();
+
+        public int render(byte[] line, int start, int length) {
+            int before = colors.size();
+            decoder.decode(line, start, length, "board", this);
+            return colors.size() - before;
+        }
+
+        public void apply(CommandRegistry.Operation operation, long[] values, int[] points, int pointsLength) {
+            colors.add(values[4]);
+        }
+    }
+
+    /**
+     * Receives the lines of an encoded message the way ClientReceiveProtocol does
+     */
+    private static void receive(BoardLog log, String encoded, ColorRenderer renderer, Canvas canvas) {
+        for (String message : encoded.split(System.getProperty("line.separator"))) {
+            byte[] line = message.getBytes();
+            if (renderer.decoder.isDraw(line, 0, line.length, "board")) {
+                log.receive(line, 0, line.length, renderer, canvas);
+            } else {
+                assertTrue(message, renderer.decoder.decode(line, 0, line.length, "board", renderer));
+            }
+        }
+    }
+
+    private static String segment(CompactEncoding.Encoder encoder, int color) {
+        String text = "draw board drawLineSegment 1 2 3 4 " + color + " 1.0";
+        return encoder.encode("board", Arrays.asList(new Command(text)), text);
+    }
+
+    /******************** Reconnect  *****************/
+    @Test
+    public void reconnectThenUndoTest() {
+        ColorRenderer renderer = new ColorRenderer();
+        Canvas canvas = blankCanvas();
+        BoardLog log = new BoardLog();
+        log.reset("board");
+        CompactEncoding.Encoder lost = new CompactEncoding.Encoder();
+        receive(log, segment(lost, 255), renderer, canvas);
+        receive(log, segment(lost, 65280), renderer, canvas);
+
+        // the new connection starts from the palette the client sends when reconnecting
+        CompactEncoding.Encoder resumed = new CompactEncoding.Encoder();
+        assertTrue(resumed.seed(renderer.decoder.getPalette()));
+        String newColor = segment(resumed, 16711680);
+        assertTrue(newColor, newColor.startsWith("palette 2 16711680"));
+        receive(log, newColor, renderer, canvas);
+        String oldColor = segment(resumed, 255);
+        assertTrue(oldColor, oldColor.startsWith(CompactEncoding.PREFIX + " "));
+        receive(log, oldColor, renderer, canvas);
+
+        renderer.colors.clear();
+        log.setUndone(new long[] {3, 3}, true, renderer, canvas);
+        assertEquals(Arrays.asList(255L, 65280L, 16711680L), renderer.colors);
+        renderer.colors.clear();
+        log.setUndone(new long[] {0, 0}, true, renderer, canvas);
+        assertEquals(Arrays.asList(65280L, 16711680L), renderer.colors);
+    }
+
+    @Test
+    public void seedTest() {
+        CompactEncoding.Encoder encoder = new CompactEncoding.Encoder();
+        assertFalse(encoder.seed(new int[] {1, 2, 1}));
+        assertFalse(encoder.seed(new int[CompactEncoding.PALETTE_SIZE + 1]));
+        // a refused seed leaves the palette empty
+        assertTrue(segment(encoder, 7).startsWith("palette 0 7"));
+        assertFalse(encoder.seed(new int[] {1}));
+    }
+
+    private static void receive(BoardLog log, String message, CountingRenderer renderer) {
+        byte[] line = message.getBytes();
+        // a hidden log never touches the canvas
+        log.receive(line, 0, line.length, renderer, null);
+    }
+
+    /******************** Hidden  *****************/
+    @Test
+    public void hiddenTest() {
+        CountingRenderer renderer = new CountingRenderer();
+        BoardLog log = new BoardLog();
+        log.reset("board");
+        log.setHidden(true);
+        receive(log, "draw board clearBoard", renderer);
+        log.markNextUndone();
+        receive(log, "draw board clearBoard", renderer);
+        receive(log, "draw board clearBoard", renderer);
+        log.setUndone(new long[] {0, 0}, true, renderer, null);
+        log.resume(2, new long[] {1, 1}, renderer, null);
+        receive(log, "draw board clearBoard", renderer);
+
+        assertTrue(log.isHidden());
+        assertEquals(0, renderer.rendered);
+        assertEquals(3, log.getNextSeq());
+    }
+
+    /******************** Allocation  *****************/
+    @Test
+    public void noAllocationPerLineTest() throws IOException {
+        StringBuilder input = new StringBuilder();
+        int lines = 20000;
+        for (int i = 0; i < lines; i++) {
+            input.append("draw board drawLineSegment ").append(i % 800).append(" ").append(i % 600)
+                .append(" ").append((i + 3) % 800).append(" ").append((i + 5) % 600).append(" 16777216 10.0\n");
+        }
+        byte[] bytes = input.toString().getBytes();
+        DrawDecoder decoder = new DrawDecoder();
+        DecodingRenderer renderer = new DecodingRenderer();
+        BoardLog log = new BoardLog();
+        // checkpoints share one image, so only the log is measured
+        final BufferedImage image = new BufferedImage(4, 4, BufferedImage.TYPE_INT_RGB);
+        Canvas canvas = new Canvas(null) {
+            @Override
+            public synchronized BufferedImage snapshot() {
+                return image;
+            }
+        };
+
+        // warm up, so that the measured run is compiled code and the log has grown to its size
+        int warmUpRuns = 5;
+        for (int run = 0; run < warmUpRuns; run++) {
+            receive(bytes, decoder, log, renderer, canvas);
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        int runs = 10;
+        for (int run = 0; run < runs; run++) {
+            receive(bytes, decoder, log, renderer, canvas);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        assertEquals((long) (warmUpRuns + runs) * lines, renderer.commands);
+        assertEquals(lines, log.getNextSeq());
+        // the reader and stream are made once per run, and a checkpoint every CHECKPOINT_INTERVAL lines
+        double bytesPerLine = (double) allocated / (runs * lines);
+        assertTrue("allocated " + bytesPerLine + " bytes per line", bytesPerLine < 2);
+    }
+
+    /**
+     * Receives a board's log the way ClientReceiveProtocol receives the draws of the current board
+     */
+    private static void receive(byte[] bytes, DrawDecoder decoder, BoardLog log, BoardLog.Renderer renderer,
+            Canvas canvas) throws IOException {
+        log.reset("board");
+        LineReader reader = new LineReader(new ByteArrayInputStream(bytes));
+        while (reader.readLine()) {
+            if (decoder.isDraw(reader.buffer(), reader.lineStart(), reader.lineLength(), "board")) {
+                log.receive(reader.buffer(), reader.lineStart(), reader.lineLength(), renderer, canvas);
+            }
+        }
+    }
+}
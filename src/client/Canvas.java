@@ -23,6 +23,8 @@ import javax.swing.event.ChangeListener;
 import javax.swing.event.MenuEvent;
 import javax.swing.event.MenuListener;
 
+import log.Log;
+
 
 /**
  * Canvas represents a drawing surface that allows the user to draw
@@ -33,6 +35,16 @@ public class Canvas extends JPanel {
 	
 	private final Client client;
 	private EventListener currentListener;
+	
+	// drawing state reused between draws, so drawing a segment allocates nothing
+	// while the buffer, color and width stay the same
+	private BufferedImage graphicsBuffer;
+	private Graphics2D bufferGraphics;
+	private Color strokeColor;
+	private BasicStroke stroke;
+	// absolute points of the last polyline or region drawn, grown as needed
+	private int[] xPoints = new int[64];
+	private int[] yPoints = new int[64];
 
 	public Canvas(Client client) {
 		this.client = client;
@@ -86,23 +98,30 @@ public class Canvas extends JPanel {
 	 * pixels relative to the upper-left corner of the drawing buffer.
 	 */
 	public void drawLineSegmentAndCall(int x1, int y1, int x2, int y2, int color, float width) {
+		client.getLocalEcho().started();
 		drawLineSegment(x1, y1, x2, y2, color, width);
 		try {
-			client.makeDrawRequest("drawLineSegment "+x1+" "+y1+" "+x2+" "+y2+" "+(color+16777216)+" "+width);
+			client.makeDrawRequest(lineSegmentCommand(x1, y1, x2, y2, color, width));
 		} catch (IOException e) {
-			e.printStackTrace();
+			Log.error("Could not send draw", e);
 		}
 	}
 
+	/*
+	 * Formats a line segment as a draw command to send to the server,
+	 * in the format "drawLineSegment x1 y1 x2 y2 color width"
+	 */
+	public static String lineSegmentCommand(int x1, int y1, int x2, int y2, int color, float width) {
+		return "drawLineSegment "+x1+" "+y1+" "+x2+" "+y2+" "+(color+16777216)+" "+width;
+	}
+
 	/*
 	 * Draw a line between two points (x1, y1) and (x2, y2), specified in
 	 * pixels relative to the upper-left corner of the drawing buffer.
 	 */
-	public void drawLineSegment(int x1, int y1, int x2, int y2, int color, float width) {
-		Graphics2D g = (Graphics2D) client.getDrawingBuffer().getGraphics();
-		Color colorObject = new Color(color);
-		g.setColor(colorObject);
-		g.setStroke(new BasicStroke(width));
+	public synchronized void drawLineSegment(int x1, int y1, int x2, int y2, int color, float width) {
+		Graphics2D g = getBufferGraphics();
+		setStroke(g, color, width);
 		g.drawLine(x1, y1, x2, y2);
 
 		// IMPORTANT!  every time we draw on the internal drawing buffer, we
@@ -110,6 +129,161 @@ public class Canvas extends JPanel {
 		this.repaint();
 	}
 
+	/*
+	 * Draw a polyline starting at (x0, y0).  points holds count/2 deltas
+	 * (dx, dy), each relative to the previous point of the line.
+	 */
+	public synchronized void drawPolyline(int x0, int y0, int color, float width, int[] points, int count) {
+		int n = toAbsolute(x0, y0, points, count);
+		Graphics2D g = getBufferGraphics();
+		setStroke(g, color, width);
+		g.drawPolyline(xPoints, yPoints, n);
+		this.repaint();
+	}
+
+	/*
+	 * Formats a polyline through the first n points of xs and ys as a draw
+	 * command, in the format "drawPolyline x0 y0 color width dx1 dy1 dx2 dy2 ..."
+	 */
+	public static String polylineCommand(int[] xs, int[] ys, int n, int color, float width) {
+		StringBuilder command = new StringBuilder("drawPolyline ");
+		command.append(xs[0]).append(' ').append(ys[0]).append(' ').append(color+16777216).append(' ').append(width);
+		for (int i = 1; i < n; i++) {
+			command.append(' ').append(xs[i] - xs[i-1]).append(' ').append(ys[i] - ys[i-1]);
+		}
+		return command.toString();
+	}
+
+	/*
+	 * Draw the outline of the rectangle with upper-left corner (x, y)
+	 */
+	public synchronized void drawRectangle(int x, int y, int rectangleWidth, int rectangleHeight, int color, float width) {
+		Graphics2D g = getBufferGraphics();
+		setStroke(g, color, width);
+		g.drawRect(x, y, rectangleWidth, rectangleHeight);
+		this.repaint();
+	}
+
+	/*
+	 * Draw the outline of the ellipse bounded by the rectangle with upper-left corner (x, y)
+	 */
+	public synchronized void drawEllipse(int x, int y, int ellipseWidth, int ellipseHeight, int color, float width) {
+		Graphics2D g = getBufferGraphics();
+		setStroke(g, color, width);
+		g.drawOval(x, y, ellipseWidth, ellipseHeight);
+		this.repaint();
+	}
+
+	/*
+	 * Fill the polygon starting at (x0, y0), with its other points given
+	 * as deltas in the same form as drawPolyline
+	 */
+	public synchronized void fillRegion(int x0, int y0, int color, int[] points, int count) {
+		int n = toAbsolute(x0, y0, points, count);
+		Graphics2D g = getBufferGraphics();
+		setStroke(g, color, 1);
+		g.fillPolygon(xPoints, yPoints, n);
+		this.repaint();
+	}
+
+	/*
+	 * Make the whole board white.  The server drops the board's log before the clear.
+	 */
+	public synchronized void clearBoard() {
+		BufferedImage buffer = client.getDrawingBuffer();
+		if (buffer == null) {
+			return;
+		}
+		clearRect(0, 0, buffer.getWidth(), buffer.getHeight());
+	}
+
+	/*
+	 * Make the rectangle with upper-left corner (x, y) white.  The server drops
+	 * the entries of the board's log which lie entirely inside it.
+	 */
+	public synchronized void clearRect(int x, int y, int rectangleWidth, int rectangleHeight) {
+		Graphics2D g = getBufferGraphics();
+		g.setColor(Color.WHITE);
+		g.fillRect(x, y, rectangleWidth, rectangleHeight);
+		this.repaint();
+	}
+
+	/*
+	 * Fills xPoints and yPoints with (x0, y0) and the points reached by the deltas
+	 * @return number of points
+	 */
+	private int toAbsolute(int x0, int y0, int[] points, int count) {
+		int n = count/2 + 1;
+		if (n > xPoints.length) {
+			xPoints = new int[Math.max(n, 2*xPoints.length)];
+			yPoints = new int[xPoints.length];
+		}
+		xPoints[0] = x0;
+		yPoints[0] = y0;
+		for (int i = 1; i < n; i++) {
+			xPoints[i] = xPoints[i-1] + points[2*i-2];
+			yPoints[i] = yPoints[i-1] + points[2*i-1];
+		}
+		return n;
+	}
+
+	/**
+	 * @return a copy of the drawing buffer, or null if there is none yet
+	 */
+	public synchronized BufferedImage snapshot() {
+		BufferedImage buffer = client.getDrawingBuffer();
+		if (buffer == null) {
+			return null;
+		}
+		BufferedImage copy = new BufferedImage(buffer.getWidth(), buffer.getHeight(), buffer.getType());
+		copy.setData(buffer.getRaster());
+		return copy;
+	}
+
+	/**
+	 * Replaces the contents of the drawing buffer
+	 * @param image: a snapshot() of the buffer, or null to make it white
+	 */
+	public synchronized void restore(BufferedImage image) {
+		BufferedImage buffer = client.getDrawingBuffer();
+		if (buffer == null) {
+			return;
+		}
+		Graphics2D g = getBufferGraphics();
+		g.setColor(Color.WHITE);
+		g.fillRect(0, 0, buffer.getWidth(), buffer.getHeight());
+		if (image != null) {
+			g.drawImage(image, 0, 0, null);
+		}
+		repaint();
+	}
+
+	/*
+	 * Returns the graphics of the drawing buffer, made once per buffer
+	 */
+	private Graphics2D getBufferGraphics() {
+		BufferedImage buffer = client.getDrawingBuffer();
+		if (buffer != graphicsBuffer) {
+			graphicsBuffer = buffer;
+			bufferGraphics = (Graphics2D) buffer.getGraphics();
+		}
+		return bufferGraphics;
+	}
+
+	/*
+	 * Sets the color and width of g, reusing the last Color and BasicStroke if they match
+	 */
+	private void setStroke(Graphics2D g, int color, float width) {
+		if (strokeColor == null || strokeColor.getRGB() != (color | 0xff000000)) {
+			strokeColor = new Color(color);
+		}
+		if (stroke == null || stroke.getLineWidth() != width) {
+			stroke = new BasicStroke(width);
+		}
+		g.setColor(strokeColor);
+		g.setStroke(stroke);
+	}
+
 	public void updateCurrentUserBoard() {
         String user = client.getUsername();
         String board = client.getCurrentBoardName();
@@ -137,13 +311,32 @@ public class Canvas extends JPanel {
     }
     
     public void switchBoard(String board) {
-    	client.setDrawingBuffer(new BufferedImage(getWidth(), getHeight(), BufferedImage.TYPE_INT_RGB));
-        final Graphics2D g = (Graphics2D) client.getDrawingBuffer().getGraphics();
-        g.setColor(Color.WHITE);
-        g.fillRect(0,  0,  getWidth(), getHeight());
-        repaint();
         client.switchBoard(board);
     }
+    
+    /**
+     * Replaces the drawing buffer, when switching to another board
+     * @param image: the image of the board switched to, which becomes the buffer
+     *        if it has the size of the canvas; null for a white buffer
+     * @return the buffer replaced, or null if there was none
+     */
+    public synchronized BufferedImage swapBuffer(BufferedImage image) {
+        BufferedImage old = client.getDrawingBuffer();
+        BufferedImage buffer = image;
+        if (buffer == null || buffer.getWidth() != getWidth() || buffer.getHeight() != getHeight()) {
+            buffer = new BufferedImage(getWidth(), getHeight(), BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = buffer.createGraphics();
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, getWidth(), getHeight());
+            if (image != null) {
+                g.drawImage(image, 0, 0, null);
+            }
+            g.dispose();
+        }
+        client.setDrawingBuffer(buffer);
+        repaint();
+        return old;
+    }
 
 }
 
@@ -2,21 +2,40 @@ package client;
 
 import java.awt.Color;
 import java.awt.image.BufferedImage;
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.swing.SwingUtilities;
 
 import Command.Command;
 
+import log.Log;
+
 public class Client {
     
+    // longest time to wait for the server's reply to a request
+    private static final long REPLY_TIMEOUT_MILLIS = 1000;
+    // first and longest wait before trying to reconnect; the wait doubles after each failed try
+    private static final long MIN_RECONNECT_DELAY_MILLIS = 250;
+    private static final long MAX_RECONNECT_DELAY_MILLIS = 30000;
+    
     //the username the client will go by in this session
     //must be unique; no other clients can have this user name
     private String username;
@@ -29,38 +48,165 @@ public class Client {
     private BufferedImage drawingBuffer;
     
     // used for comm
-    private String[] boards = {};
-    private boolean boardsUpdated;
-    private Hashtable<String, Boolean> newBoardMade = new Hashtable<String, Boolean>();
+    private volatile String[] boards = {};
+    // the result of the last newBoard reply for each board
     private Hashtable<String, Boolean> newBoardSuccessful = new Hashtable<String, Boolean>();
-    private boolean userCheckMade;
-    private boolean usersUpdated;
-    private String[] users = {};
+    private volatile String[] users = {};
     private boolean exitComplete;
     private boolean isErasing;
-    
-    //the socket with which the user connects to the client
-    private Socket socket;
-    private BufferedReader in;
-    private PrintWriter out;
+    // requests sent with a request ID whose replies have not arrived, by ID
+    private final ConcurrentHashMap<Long, ReplyFuture> pendingReplies = new ConcurrentHashMap<Long, ReplyFuture>();
+    private final AtomicLong nextRequestId = new AtomicLong();
+    // draws drawn locally which the server has not echoed yet
+    private final LocalEcho localEcho = new LocalEcho();
+    // the boards shown in tabs, in order, the current board among them; used on the event dispatch thread
+    private final List<String> tabs = new ArrayList<String>();
+    // the boards the server sends the draws of as well as the current board's
+    private final Set<String> subscribed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    
+    //the socket with which the user connects to the client; replaced on reconnect
+    private final String host;
+    private final int port;
+    private volatile Socket socket;
+    private InputStream in;
+    // how long to wait before the next try to reconnect
+    private long reconnectDelay = MIN_RECONNECT_DELAY_MILLIS;
+    // true once the client is shutting down, so it does not reconnect
+    private volatile boolean closing = false;
+    private ClientSendProtocol sendProtocol;
     private ClientReceiveProtocol receiveProtocol;
     private Thread receiveThread;
     
     private ClientGUI clientGUI;
+    // times the events of the GUI; the longest stall is logged on exit
+    private final EdtStallMonitor edtStallMonitor = EdtStallMonitor.install();
     
     
     public Client(String host, int port) throws UnknownHostException, IOException {
-        socket = new Socket(host, port);
-        in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        out = new PrintWriter(socket.getOutputStream(), true);
+        this.host = host;
+        this.port = port;
+        socket = connect();
+        in = socket.getInputStream();
+        sendProtocol = new ClientSendProtocol(writerFor(socket));
+        sendProtocol.start();
         receiveProtocol = new ClientReceiveProtocol(in, this);
         receiveThread = new Thread(receiveProtocol);
         receiveThread.start();
+        // draws are received compact encoded, see Command.CompactEncoding
+        makeRequest("encoding compact");
+        makeRequest("compress deflate");
         clientGUI = new ClientGUI(this);
         addShutdownHook();
     }
     
     
+    /**
+     * @return a new connection to the server, with keepalive on so that a dead connection is noticed
+     */
+    private Socket connect() throws IOException {
+        Socket newSocket = new Socket(host, port);
+        newSocket.setKeepAlive(true);
+        return newSocket;
+    }
+    
+    /**
+     * @return a writer for requests to the socket, flushed by the sender thread once per batch
+     */
+    private static PrintWriter writerFor(Socket socket) throws IOException {
+        return new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())), false);
+    }
+    
+    /**
+     * Called by the receive thread once the connection has dropped.  Tries to
+     * connect again, waiting twice as long after each failed try, and resumes
+     * the session on the new connection: requests queued while offline are
+     * sent after the handshake, and the board's log is resumed from resumeSeq.
+     * @param resumeBoard: the board whose log the client has, or null if it has none
+     * @param resumeSeq: the number of the next entry of the board's log the client would receive
+     * @param subscriptions: the boards shown in background tabs, each with the number of the
+     *        next entry of its log; they are subscribed to again after the resume
+     * @param palette: the compact encoding palette of the lost connection, by index;
+     *        the new connection starts with it so that logged compact lines keep their colors
+     * @return the input stream of the new connection, or null if the client is shutting down
+     */
+    public InputStream reconnect(String resumeBoard, long resumeSeq, Map<String, Long> subscriptions, int[] palette) {
+        sendProtocol.disconnect();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+        while (!closing) {
+            Log.info("Connection lost, reconnecting in " + reconnectDelay + " ms");
+            try {
+                Thread.sleep(reconnectDelay);
+            } catch (InterruptedException e) {
+                return null;
+            }
+            reconnectDelay = Math.min(2 * reconnectDelay, MAX_RECONNECT_DELAY_MILLIS);
+            try {
+                Socket newSocket = connect();
+                List<String> handshake = new ArrayList<String>();
+                StringBuilder encoding = new StringBuilder("encoding compact");
+                for (int color : palette) {
+                    encoding.append(' ').append(color);
+                }
+                handshake.add(encoding.toString());
+                handshake.add("compress deflate");
+                if (username != null) {
+                    if (resumeBoard == null) {
+                        resumeBoard = currentBoardName;
+                        resumeSeq = 0;
+                    }
+                    handshake.add("resume "+username+" "+resumeBoard+" "+resumeSeq);
+                }
+                subscribed.clear();
+                for (Map.Entry<String, Long> subscription : subscriptions.entrySet()) {
+                    handshake.add("subscribe "+subscription.getKey()+" "+subscription.getValue());
+                    subscribed.add(subscription.getKey());
+                }
+                if (closing) {
+                    newSocket.close();
+                    return null;
+                }
+                socket = newSocket;
+                sendProtocol.reconnect(writerFor(newSocket), handshake);
+                return newSocket.getInputStream();
+            } catch (IOException e) {
+                // server still down
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Called once the session has been resumed, so the next reconnect starts with a short wait
+     */
+    public void resumed() {
+        reconnectDelay = MIN_RECONNECT_DELAY_MILLIS;
+    }
+    
+    /**
+     * Called when the server refused to resume the session, most likely because it
+     * has not yet noticed that the old connection dropped: drops the connection so
+     * the receive thread tries again after the reconnect delay
+     */
+    public void resumeFailed() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.debug("Could not close socket: " + e);
+        }
+    }
+    
+    /**
+     * Sets the wait before the next try to reconnect, as asked by the server when it shuts down
+     * @param delay: milliseconds
+     */
+    public void setReconnectDelay(long delay) {
+        reconnectDelay = Math.max(MIN_RECONNECT_DELAY_MILLIS, Math.min(delay, MAX_RECONNECT_DELAY_MILLIS));
+    }
+    
     public BufferedImage getDrawingBuffer() {
     	return drawingBuffer;
     }
@@ -98,27 +244,23 @@ public class Client {
                 	// kill receiving thread and wait for it to close out
                     if (username!= null) {
                         try {
-                            exitComplete = false;
-                            makeRequest("exit "+username).join();
-                            
-                            boolean timeout = false;
-                            int timeoutCounter = 0;
-                            int maxAttempts = 100;
-                            int timeoutDelay = 10;
-                            while(!exitComplete && !timeout) {
-                                timeoutCounter++;
-                                if (timeoutCounter >= maxAttempts) {
-                                    timeout = true;
-                                    System.out.println("timeout on exit");
-                                }
-                                Thread.sleep(timeoutDelay);
-                            }
+                            awaitReply(makeRequestWithReply("exit "+username), "exit");
                         } catch (InterruptedException e) {
                             // TODO Auto-generated catch block
                             e.printStackTrace();
                         }
                     }
+					closing = true;
+					// let queued requests go out before closing
+					try {
+					    sendProtocol.awaitIdle(1000);
+					} catch (InterruptedException e) {
+					    e.printStackTrace();
+					}
+					sendProtocol.close();
 					receiveProtocol.kill();
+					Log.info("longest event dispatch thread stall: "+edtStallMonitor.getLongestStallMillis()
+					        +" ms over "+edtStallMonitor.getEvents()+" events");
 					socket.shutdownInput();
 					socket.shutdownOutput();
 					
@@ -132,24 +274,13 @@ public class Client {
 
     /**
      * Checks with the server to make sure the username hasn't already been taken and if it hasn't, create the user
+     * The reply also brings the boards, the board's users and the board's log, which
+     * is drawn on the canvas as it arrives, so the canvas must exist before the call
      * @param username: the user's choice of username
      * @return: true if username creation is successful, false if not
      */
     public boolean createUser(String username, String boardName) throws Exception {
-        makeRequest("checkAndAddUser "+username+" "+boardName).join();
-        userCheckMade = false;
-        boolean timeout = false;
-        int timeoutCounter = 0;
-        int maxAttempts = 100;
-        int timeoutDelay = 10;
-        while(!userCheckMade && !timeout) {
-            timeoutCounter++;
-            if (timeoutCounter >= maxAttempts) {
-                timeout = true;
-                System.out.println("timeout on new user "+username);
-            }
-            Thread.sleep(timeoutDelay);
-        }
+        awaitReply(makeRequestWithReply("hello "+username+" "+boardName), "new user "+username);
         return (this.username != null && currentBoardName != null);
     }
     
@@ -164,23 +295,160 @@ public class Client {
             this.username = elements[1];
             this.currentBoardName = elements[2];
         }
-        userCheckMade = true;
     }
     
     /**
      * Switches the current board to the board with the given name
      * server switch command
      * Updates the current users of the canvas
+     * If the board was left lately, its cached image is shown at once and only
+     * the entries of its log after the cached ones are asked for
+     * The board replaces the current board in its tab; if the board is already
+     * shown in a tab, that tab is selected instead
      * @param newBoardName: the name of the new board
      */
     public void switchBoard(String newBoardName) {
+        switchBoard(newBoardName, tabs.contains(newBoardName));
+    }
+    
+    /**
+     * Selects a tab: the current board moves to a background tab, where its
+     * log is kept up to date over the same connection, and the board of the
+     * tab, which is already up to date, is drawn on the canvas
+     * @param boardName: the board of the tab
+     */
+    public void selectTab(String boardName) {
+        switchBoard(boardName, true);
+    }
+    
+    /**
+     * Shows a board in a new background tab; the server sends its draws from
+     * now on, over the same connection as those of the current board
+     * @param boardName: the board
+     */
+    public void watchBoard(String boardName) {
+        if (tabs.isEmpty()) {
+            getTabs();
+        }
+        if (tabs.contains(boardName)) {
+            return;
+        }
+        long seq = receiveProtocol.watchBoard(boardName);
+        tabs.add(boardName);
+        subscribed.add(boardName);
+        try {
+            makeRequest("subscribe "+boardName+" "+seq);
+        } catch (IOException e) {
+            Log.error("Could not subscribe to "+boardName, e);
+        }
+        clientGUI.showTabs();
+    }
+    
+    /**
+     * Closes a tab; closing the tab of the current board selects the tab before it
+     * @param boardName: the board of the tab
+     */
+    public void closeTab(String boardName) {
+        int index = tabs.indexOf(boardName);
+        if (index < 0 || tabs.size() == 1) {
+            return;
+        }
+        if (boardName.equals(currentBoardName)) {
+            // the board left leaves the tabs
+            switchBoard(tabs.get(index == 0 ? 1 : index - 1), false);
+            return;
+        }
+        tabs.remove(index);
+        receiveProtocol.unwatchBoard(boardName);
+        unsubscribe(boardName);
+        clientGUI.showTabs();
+    }
+    
+    /**
+     * Called by the receive thread when the board of a background tab could not be subscribed to
+     * @param boardName: the board of the tab
+     */
+    public void tabFailed(final String boardName) {
+        subscribed.remove(boardName);
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                if (!boardName.equals(currentBoardName) && tabs.remove(boardName)) {
+                    clientGUI.showTabs();
+                }
+            }
+        });
+    }
+    
+    /**
+     * @return the boards shown in tabs, in order; the current board has a tab once the user is logged in
+     */
+    public List<String> getTabs() {
+        if (tabs.isEmpty() && currentBoardName != null) {
+            tabs.add(currentBoardName);
+        }
+        return Collections.unmodifiableList(tabs);
+    }
+    
+    /**
+     * Stops the server sending a board which is neither current nor shown in a tab
+     */
+    private void unsubscribe(String boardName) {
+        if (subscribed.remove(boardName)) {
+            try {
+                makeRequest("unsubscribe "+boardName);
+            } catch (IOException e) {
+                Log.error("Could not unsubscribe from "+boardName, e);
+            }
+        }
+    }
+    
+    /**
+     * Switches the current board
+     * @param newBoardName: the board switched to
+     * @param keepOld: true if the board left stays in a background tab
+     */
+    private void switchBoard(String newBoardName, boolean keepOld) {
+        getTabs();
         try {
-            makeRequest("switch "+username+" "+currentBoardName+" "+newBoardName);
-            currentBoardName = newBoardName;
+            String oldBoardName;
+            long seq;
+            long oldSeq = -1;
+            // no message from the server is handled while the board changes
+            synchronized (receiveProtocol) {
+                oldBoardName = currentBoardName;
+                seq = receiveProtocol.switchCachedBoard(newBoardName, keepOld);
+                currentBoardName = newBoardName;
+                if (keepOld) {
+                    oldSeq = receiveProtocol.getWatchedNextSeq(oldBoardName);
+                }
+            }
+            if (keepOld) {
+                // the server keeps sending the board left, from the log's next entry
+                if (subscribed.add(oldBoardName)) {
+                    makeRequest("subscribe "+oldBoardName+" "+oldSeq);
+                }
+            } else {
+                int index = tabs.indexOf(oldBoardName);
+                if (index >= 0 && tabs.contains(newBoardName)) {
+                    tabs.remove(index);
+                } else if (index >= 0) {
+                    tabs.set(index, newBoardName);
+                }
+                unsubscribe(oldBoardName);
+            }
+            if (!tabs.contains(newBoardName)) {
+                tabs.add(newBoardName);
+            }
+            if (seq < 0) {
+                makeRequest("switch "+username+" "+oldBoardName+" "+newBoardName);
+            } else {
+                // the server sends only what changed since the cached image
+                makeRequest("switch "+username+" "+oldBoardName+" "+newBoardName+" "+seq);
+            }
             getCanvas().updateCurrentUserBoard();
+            clientGUI.showTabs();
         } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            Log.error("Could not switch board", e);
         }
     }
     
@@ -188,10 +456,46 @@ public class Client {
         command.invokeCommand(getCanvas());
     }
     
+    /**
+     * Sends a draw the user has already drawn on the canvas.  The draw is sent
+     * with a request ID, so the server echoes it instead of sending it back.
+     * @param command: the command in the format "command arg1 arg2 arg3..."
+     */
     public void makeDrawRequest(String command) throws IOException {
-        makeRequest("draw "+currentBoardName+" "+command);
+        makeLocalDrawRequest("draw "+currentBoardName+" "+command);
     }
-
+    
+    /**
+     * Sends a draw message drawn locally, recording it in the LocalEcho
+     */
+    private void makeLocalDrawRequest(String request) throws IOException {
+        long id = nextRequestId.incrementAndGet();
+        localEcho.sent(id, currentBoardName, request);
+        makeRequest("#"+id+" "+request);
+    }
+    
+    /**
+     * Clears the current board for everyone; the board's history is dropped.
+     * The canvas is cleared when the server sends the clear back.
+     */
+    public void makeClearBoardRequest() throws IOException {
+        makeRequest("draw "+currentBoardName+" clearBoard");
+    }
+    
+    /**
+     * Asks the server to undo the user's last stroke on the current board
+     */
+    public void makeUndoRequest() throws IOException {
+        makeRequest("undo "+currentBoardName+" "+username);
+    }
+    
+    /**
+     * Asks the server to redo the stroke the user undid last on the current board
+     */
+    public void makeRedoRequest() throws IOException {
+        makeRequest("redo "+currentBoardName+" "+username);
+    }
+    
     public ClientGUI getClientGUI() {
     	return clientGUI;
     }
@@ -205,26 +509,9 @@ public class Client {
      * @return true if the board creation is successful, false if not
      */
     public boolean newBoard(String newBoardName) throws Exception {
-        if (newBoardMade.containsKey(newBoardName)) return false;
-        newBoardMade.put(newBoardName, false);
-        newBoardSuccessful.put(newBoardName, true);
-        makeRequest("newBoard "+newBoardName).join();
-        boolean timeout = false;
-        int timeoutCounter = 0;
-        int maxAttempts = 100;
-        int timeoutDelay = 10;
-        while(!newBoardMade.get(newBoardName) && !timeout) {
-            timeoutCounter++;
-            if (timeoutCounter >= maxAttempts) {
-                timeout = true;
-                System.out.println("timeout on new board "+newBoardName);
-            }
-            Thread.sleep(timeoutDelay);
-        }
-        boolean successful = newBoardSuccessful.get(newBoardName);
-        newBoardMade.remove(newBoardName);
-        newBoardSuccessful.remove(newBoardName);
-        return successful;
+        // "newBoard boardName boolean"
+        String reply = awaitReply(makeRequestWithReply("newBoard "+newBoardName), "new board "+newBoardName);
+        return reply != null && reply.equals("newBoard "+newBoardName+" true");
     }
     
     public void parseNewBoardFromServerResponse(String response) throws Exception {
@@ -235,7 +522,6 @@ public class Client {
         String boardName = elements[1];
         boolean successful = Boolean.valueOf(elements[2]);
         newBoardSuccessful.put(boardName, successful);
-        newBoardMade.put(boardName, true);
     }
     
     /**
@@ -253,20 +539,7 @@ public class Client {
      * Gets the users for the current board from the server and sets them
      */
     public String[] getUsers() throws Exception {
-        usersUpdated = false;
-        makeRequest("users "+currentBoardName);
-        boolean timeout = false;
-        int timeoutCounter = 0;
-        int maxAttempts = 100;
-        int timeoutDelay = 10;
-        while(!usersUpdated && !timeout) {
-            timeoutCounter++;
-            if (timeoutCounter >= maxAttempts) {
-                timeout = true;
-                System.out.println("timeout on new users");
-            }
-            Thread.sleep(timeoutDelay);
-        }
+        awaitReply(makeRequestWithReply("users "+currentBoardName), "new users");
         return users;
     }
     
@@ -278,9 +551,15 @@ public class Client {
         return Arrays.copyOfRange(elements, 2, elements.length);
     }
     
+    /**
+     * @return the users of the current board as of the last users reply, without asking the server
+     */
+    public String[] getKnownUsers() {
+        return users;
+    }
+    
     public void setUsers(String[] newUsers) {
         users = newUsers;
-        usersUpdated = true;
     }
     
     /**
@@ -326,23 +605,7 @@ public class Client {
 
     public String[] getBoards() throws Exception {
     	
-    	boardsUpdated = false;
-    	// make request for board update and wait for it to finish
-    	makeRequest("boards").join();
-    	
-    	// Wait for response from server
-    	boolean timeout = false;
-    	int timeoutCounter = 0;
-    	int maxAttempts = 100;
-    	int timeoutDelay = 10;
-    	while(!boardsUpdated && !timeout) {
-    		timeoutCounter++;
-    		if (timeoutCounter >= maxAttempts) {
-    			timeout = true;
-    			System.out.println("timeout on boards update");
-    		}
-    		Thread.sleep(timeoutDelay);
-    	}
+    	awaitReply(makeRequestWithReply("boards"), "boards update");
  
     	// boards by now will have either been updated, or if it times out
     	// then it will return what it last had
@@ -366,25 +629,78 @@ public class Client {
         return Arrays.copyOfRange(boardsListStrings, 1, boardsListStrings.length);
     }
     
+    /**
+     * @return the boards as of the last boards reply, without asking the server
+     */
+    public String[] getKnownBoards() {
+        return boards;
+    }
+    
     /**
      * Used to set boards
      */
     public void setBoards(String[] newBoards) {
     	boards = newBoards;
-    	boardsUpdated = true;
     }
     
     public String getCurrentBoardName() {
         return currentBoardName;
     }
     
-    // Make request in new thread
-    public Thread makeRequest(String request) throws IOException {
-    	
-    	Thread requestThread = new Thread(new ClientSendProtocol(out, request));
-        requestThread.start();
-        
-        return requestThread;
+    /**
+     * Queues a request for the sender thread, which sends requests in the order they were made
+     * @param request: the request, without a line terminator
+     */
+    public void makeRequest(String request) throws IOException {
+        sendProtocol.send(request);
+    }
+    
+    /**
+     * Queues a request with a request ID; the server starts its reply with the same ID
+     * @param request: the request, without a line terminator
+     * @return the future reply, completed once the reply has been handled
+     */
+    public ReplyFuture makeRequestWithReply(String request) throws IOException {
+        long id = nextRequestId.incrementAndGet();
+        ReplyFuture reply = new ReplyFuture();
+        pendingReplies.put(id, reply);
+        makeRequest("#"+id+" "+request);
+        return reply;
+    }
+    
+    /**
+     * Completes the future of the request with the given ID, if it is still waited for
+     * @param id: the request ID the reply started with
+     * @param reply: the reply, without its request ID
+     */
+    public void completeReply(long id, String reply) {
+        ReplyFuture future = pendingReplies.remove(id);
+        if (future != null) {
+            future.complete(reply);
+        }
+    }
+    
+    /**
+     * Waits for the reply to a request, up to REPLY_TIMEOUT_MILLIS
+     * @param reply: the future returned by makeRequestWithReply
+     * @param description: what the request was for, reported if the reply times out
+     * @return the reply, or null if it did not arrive in time
+     */
+    private String awaitReply(ReplyFuture reply, String description) throws InterruptedException {
+        try {
+            return reply.get(REPLY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            reply.cancel(false);
+            pendingReplies.values().remove(reply);
+            Log.warn("timeout on "+description);
+            return null;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    public LocalEcho getLocalEcho() {
+        return localEcho;
     }
     
     public Canvas getCanvas() {
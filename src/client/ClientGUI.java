@@ -4,16 +4,21 @@ import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Container;
 import java.awt.Dimension;
+import java.awt.FlowLayout;
 import java.awt.Graphics2D;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
 import java.awt.image.BufferedImage;
+import java.io.IOException;
 import java.util.EventListener;
 
 import javax.swing.BorderFactory;
 import javax.swing.Box;
+import javax.swing.ButtonGroup;
 import javax.swing.DefaultListModel;
 import javax.swing.GroupLayout;
 import javax.swing.ImageIcon;
@@ -31,6 +36,8 @@ import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JSlider;
 import javax.swing.JTextField;
+import javax.swing.JToggleButton;
+import javax.swing.KeyStroke;
 import javax.swing.ListSelectionModel;
 import javax.swing.SwingWorker;
 import javax.swing.GroupLayout.ParallelGroup;
@@ -42,6 +49,8 @@ import javax.swing.event.ChangeListener;
 import javax.swing.event.MenuEvent;
 import javax.swing.event.MenuListener;
 
+import log.Log;
+
 public class ClientGUI extends JFrame {
 
 	private final Client client;
@@ -65,6 +74,8 @@ public class ClientGUI extends JFrame {
     //the GUI for this client
     private JFrame frame;
     private JLabel currentUserBoard;
+    // a tab for each board shown, above the canvas they share
+    private JPanel tabBar;
     
     private Canvas canvas;
 
@@ -74,7 +85,12 @@ public class ClientGUI extends JFrame {
         
 	}
 	
-	public void setupCanvas() {
+	/**
+	 * Lays out the window and makes the canvas's drawing buffer without showing
+	 * the window, so the board's log, which arrives with the reply to the login,
+	 * is drawn on the canvas as it arrives
+	 */
+	private void prepareCanvas() {
         this.setTitle("Whiteboard");
         this.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         this.setPreferredSize(new Dimension(WIDTH, HEIGHT));
@@ -83,10 +99,48 @@ public class ClientGUI extends JFrame {
         canvas = new Canvas(client);
         canvas.addDrawingController(new DrawingController(client));
         this.addMenuBar();
+        tabBar = new JPanel(new FlowLayout(FlowLayout.LEFT, 2, 0));
+        tabBar.setPreferredSize(new Dimension(WIDTH, 26));
+        this.add(tabBar, BorderLayout.NORTH);
         this.add(canvas, BorderLayout.CENTER);
         this.pack();
+        canvas.swapBuffer(null);
+    }
+	
+	/**
+	 * Shows the window once the user has logged in
+	 */
+	public void setupCanvas() {
+        if (canvas == null) {
+            prepareCanvas();
+        }
+        currentUserBoard.setText(canvas.getCurrentUserBoard().getText());
+        showTabs();
         this.setVisible(true);
     }
+	
+	/**
+	 * Shows a tab for each board the client shows, the current board's selected
+	 */
+	public void showTabs() {
+	    tabBar.removeAll();
+	    ButtonGroup group = new ButtonGroup();
+	    for (final String board : client.getTabs()) {
+	        JToggleButton tab = new JToggleButton(board, board.equals(client.getCurrentBoardName()));
+	        tab.setFocusable(false);
+	        tab.addActionListener(new ActionListener() {
+	            public void actionPerformed(ActionEvent event) {
+	                if (!board.equals(client.getCurrentBoardName())) {
+	                    client.selectTab(board);
+	                }
+	            }
+	        });
+	        group.add(tab);
+	        tabBar.add(tab);
+	    }
+	    tabBar.revalidate();
+	    tabBar.repaint();
+	}
 
 
 	/**
@@ -121,15 +175,15 @@ public class ClientGUI extends JFrame {
 
 		boardListModel = new DefaultListModel<String>();
 
-		// Get boards from server and add to data model
-		try {
-			String[] boards = client.getBoards();
-			for (int i=0; i<boards.length;i++) {
-				boardListModel.addElement(boards[i]);
+		// Get boards from server and add to data model once they arrive
+		new ListWorker() {
+			protected String[] fetch() throws Exception {
+				return client.getBoards();
 			}
-		} catch (Exception e1) {
-			e1.printStackTrace();
-		}
+			protected void show(String[] boards) {
+				showBoardList(boards);
+			}
+		}.execute();
 
 		boardList = new JList<String>(boardListModel); //data has type Object[]
 		boardList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
@@ -181,18 +235,14 @@ public class ClientGUI extends JFrame {
 					JOptionPane.showMessageDialog(dialog, "Please enter a username.", "Try again", JOptionPane.ERROR_MESSAGE);
 				} else if (boardList.isSelectionEmpty()) {
 					JOptionPane.showMessageDialog(dialog, "Please select a board.", "Try again", JOptionPane.ERROR_MESSAGE);
-				} else
-					try {
-						if (client.createUser(usernameTextField.getText(), boardList.getSelectedValue())) {
-							dialog.dispose();
-							setupCanvas();
-							client.makeRequest("switch "+client.getUsername()+" "+client.getCurrentBoardName()+" "+client.getCurrentBoardName());
-						} else {
-							JOptionPane.showMessageDialog(dialog, "Sorry, this username is already taken currently.", "Try again", JOptionPane.ERROR_MESSAGE);
-						}
-					} catch (Exception e1) {
-						e1.printStackTrace();
+				} else {
+					if (canvas == null) {
+						prepareCanvas();
 					}
+					startButton.setEnabled(false);
+					CreateUserWorker worker = new CreateUserWorker(usernameTextField.getText(), boardList.getSelectedValue());
+					worker.execute();
+				}
 			}
 		});
 
@@ -210,9 +260,60 @@ public class ClientGUI extends JFrame {
 		return canvas;
 	}
 
-    
+	/**
+	 * Replaces the boards listed in the start dialog, keeping the selected board selected
+	 * @param boards: the boards to list
+	 */
+	private void showBoardList(String[] boards) {
+		String selected = boardList.getSelectedValue();
+		boardListModel.removeAllElements();
+		for (int i=0; i<boards.length;i++) {
+			boardListModel.addElement(boards[i]);
+		}
+		if (selected != null) {
+			boardList.setSelectedValue(selected, false);
+		}
+	}
+
+	class CreateUserWorker extends SwingWorker<Boolean, Object> {
+
+		private final String username;
+		private final String boardName;
+
+		public CreateUserWorker(String username, String boardName) {
+			this.username = username;
+			this.boardName = boardName;
+		}
+
+		/**
+		 * Called when execute is called on the worker
+		 */
+		@Override
+		protected Boolean doInBackground() throws Exception {
+			return client.createUser(username, boardName);
+		}
+
+		/**
+		 * After doInBackground has gotten its result, open the canvas (or not)
+		 */
+		@Override
+		protected void done() {
+			startButton.setEnabled(true);
+			try {
+				if (get()) {
+					dialog.dispose();
+					setupCanvas();
+				} else {
+					JOptionPane.showMessageDialog(dialog, "Sorry, this username is already taken currently.", "Try again", JOptionPane.ERROR_MESSAGE);
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
 
-	class NewBoardWorker extends SwingWorker<Boolean, Object> {
+	class NewBoardWorker extends SwingWorker<String[], Object> {
 
 		private String newBoardName;
 
@@ -222,10 +323,14 @@ public class ClientGUI extends JFrame {
 
 		/**
 		 * Called when execute is called on the worker
+		 * @return the boards once the new board is made, or null if it could not be made
 		 */
 		@Override
-		protected Boolean doInBackground() throws Exception {  
-			return client.newBoard(newBoardName);
+		protected String[] doInBackground() throws Exception {  
+			if (client.newBoard(newBoardName)) {
+				return client.getBoards();
+			}
+			return null;
 		}   
 
 		/**
@@ -234,12 +339,9 @@ public class ClientGUI extends JFrame {
 		@Override
 		protected void done() {
 			try {
-				if (get()) {
-					String[] boards = client.getBoards();
-					boardListModel.removeAllElements();
-					for (int i=0; i<boards.length;i++) {
-						boardListModel.addElement(boards[i]);
-					}
+				String[] boards = get();
+				if (boards != null) {
+					showBoardList(boards);
 					newBoard.setText("");
 				} else {
 					JOptionPane.showMessageDialog(dialog, "Sorry, this board name is already taken.", "Try again", JOptionPane.ERROR_MESSAGE);
@@ -262,7 +364,7 @@ public class ClientGUI extends JFrame {
 
 		JLabel newBoardNameLabel = new JLabel("New Board Name:");
 		final JTextField newBoardName = new JTextField(10);
-		JButton newBoardButton = new JButton("Create");
+		final JButton newBoardButton = new JButton("Create");
 
 		ParallelGroup hGroup = layout.createParallelGroup(GroupLayout.Alignment.CENTER);
 
@@ -290,21 +392,35 @@ public class ClientGUI extends JFrame {
 
 		newBoardButton.addActionListener(new ActionListener() {
 			public synchronized void actionPerformed(ActionEvent e) {
-				String newBoardNameString = newBoardName.getText();
+				final String newBoardNameString = newBoardName.getText();
 				if (newBoardNameString.equals("")) {
 					JOptionPane.showMessageDialog(newBoardDialog, "Please enter a board name.", "Try again", JOptionPane.ERROR_MESSAGE);
 				} else {
-					try {
-						boolean successful = client.newBoard(newBoardNameString);
-						if (!successful) {
-							JOptionPane.showMessageDialog(newBoardDialog, "Sorry, this board name is already taken.", "Try again", JOptionPane.ERROR_MESSAGE);
-						} else {
-							client.getBoards();
-							newBoardDialog.dispose();
+					newBoardButton.setEnabled(false);
+					new SwingWorker<Boolean, Object>() {
+						@Override
+						protected Boolean doInBackground() throws Exception {
+							boolean successful = client.newBoard(newBoardNameString);
+							if (successful) {
+								client.getBoards();
+							}
+							return successful;
 						}
-					} catch (Exception e1) {
-						e1.printStackTrace();
-					}
+
+						@Override
+						protected void done() {
+							newBoardButton.setEnabled(true);
+							try {
+								if (!get()) {
+									JOptionPane.showMessageDialog(newBoardDialog, "Sorry, this board name is already taken.", "Try again", JOptionPane.ERROR_MESSAGE);
+								} else {
+									newBoardDialog.dispose();
+								}
+							} catch (Exception e1) {
+								e1.printStackTrace();
+							}
+						}
+					}.execute();
 				}
 			}
 		});
@@ -315,6 +431,7 @@ public class ClientGUI extends JFrame {
         menuBar.add(getUsersMenu());
         menuBar.add(getBoardsMenu());
         menuBar.add(getModeMenu());
+        menuBar.add(getEditMenu());
         menuBar.add(getColorsMenu());
         menuBar.add(getSlider());
         menuBar.add(Box.createHorizontalGlue());
@@ -357,8 +474,56 @@ public class ClientGUI extends JFrame {
         return mode;
     }
     
+    /**
+     * Add the edit menu to the menu bar
+     * @return JMenu representing the edit menu
+     */
+    private JMenu getEditMenu() {
+        final JMenu edit = new JMenu("Edit");
+        
+        JMenuItem undoMenuItem = new JMenuItem("Undo");
+        undoMenuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Z, InputEvent.CTRL_DOWN_MASK));
+        undoMenuItem.addActionListener(new  ActionListener() {
+            public void actionPerformed(ActionEvent event) {
+                try {
+                    client.makeUndoRequest();
+                } catch (IOException e) {
+                    Log.error("Could not undo", e);
+                }
+            }});
+        JMenuItem redoMenuItem = new JMenuItem("Redo");
+        redoMenuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Y, InputEvent.CTRL_DOWN_MASK));
+        redoMenuItem.addActionListener(new  ActionListener() {
+            public void actionPerformed(ActionEvent event) {
+                try {
+                    client.makeRedoRequest();
+                } catch (IOException e) {
+                    Log.error("Could not redo", e);
+                }
+            }});
+        JMenuItem clearMenuItem = new JMenuItem("Clear Board");
+        clearMenuItem.addActionListener(new  ActionListener() {
+            public void actionPerformed(ActionEvent event) {
+                try {
+                    client.makeClearBoardRequest();
+                } catch (IOException e) {
+                    Log.error("Could not clear the board", e);
+                }
+            }});
+        edit.add(undoMenuItem);
+        edit.add(redoMenuItem);
+        edit.addSeparator();
+        edit.add(clearMenuItem);
+        
+        return edit;
+    }
+    
     public void setCurrentUserBoard(JLabel newBoard) {
-    	currentUserBoard = newBoard;
+    	if (currentUserBoard == null) {
+    		currentUserBoard = newBoard;
+    	} else {
+    		currentUserBoard.setText(newBoard.getText());
+    	}
     }
     
     /**
@@ -368,16 +533,7 @@ public class ClientGUI extends JFrame {
     private JMenu getUsersMenu() {
         final JMenu usersMenu = new JMenu("Users");
         //List of Users
-        try {
-            for (String user: client.getUsers()) {
-                JLabel label = new JLabel(user);
-                label.setBorder(BorderFactory.createEmptyBorder(2, 5, 3, 5));
-                usersMenu.add(label);
-            }
-        } catch (Exception e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }
+        showUsersMenu(usersMenu, client.getKnownUsers());
         
         usersMenu.addMenuListener(new MenuListener() {
             @Override
@@ -390,22 +546,53 @@ public class ClientGUI extends JFrame {
 
             @Override
             public void menuSelected(MenuEvent arg0) {
-                usersMenu.removeAll();
-                try {
-                    for (String user: client.getUsers()) {
-                        JLabel label = new JLabel(user);
-                        label.setBorder(BorderFactory.createEmptyBorder(2, 5, 3, 5));
-                        usersMenu.add(label);
-                    }
-                } catch (Exception e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
-                }
+                // show the users known now, and the server's list once it arrives
+                showUsersMenu(usersMenu, client.getKnownUsers());
+                refreshUsersMenu(usersMenu);
             }
         });
         return usersMenu;
     }
     
+    /**
+     * Replaces the users listed in the users menu
+     * @param usersMenu: the users menu
+     * @param users: the users to list
+     */
+    private void showUsersMenu(JMenu usersMenu, String[] users) {
+        usersMenu.removeAll();
+        for (String user: users) {
+            JLabel label = new JLabel(user);
+            label.setBorder(BorderFactory.createEmptyBorder(2, 5, 3, 5));
+            usersMenu.add(label);
+        }
+        repack(usersMenu);
+    }
+    
+    /**
+     * Asks the server for the users of the current board, and lists them in the users menu once they arrive
+     * @param usersMenu: the users menu
+     */
+    private void refreshUsersMenu(final JMenu usersMenu) {
+        new ListWorker() {
+            protected String[] fetch() throws Exception {
+                return client.getUsers();
+            }
+            protected void show(String[] users) {
+                showUsersMenu(usersMenu, users);
+            }
+        }.execute();
+    }
+    
+    /**
+     * Resizes a menu's popup to its items if the menu is open
+     */
+    private static void repack(JMenu menu) {
+        if (menu.isPopupMenuVisible()) {
+            menu.getPopupMenu().pack();
+        }
+    }
+    
     /**
      * Add the boards menu to the menu mar
      * @return JMenu representing the boards menu
@@ -421,25 +608,19 @@ public class ClientGUI extends JFrame {
                 client.getClientGUI().newBoardDialog();
             }
         });
+        final JMenu watchMenu = new JMenu("Open in New Tab");
+        boards.add(watchMenu);
+        JMenuItem closeTabItem = new JMenuItem("Close Tab");
+        boards.add(closeTabItem);
+        closeTabItem.addActionListener(new  ActionListener() {
+            public void actionPerformed(ActionEvent event) {
+                client.closeTab(client.getCurrentBoardName());
+            }
+        });
         boards.addSeparator();
         
         //List of Boards
-        String[] listBoards = {};
-		try {
-			listBoards = client.getBoards();
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-        for (final String board: listBoards) {
-            JMenuItem boardChoice = new JMenuItem(board);
-            boardChoice.addActionListener(new  ActionListener() {
-                public void actionPerformed(ActionEvent event) {
-                    canvas.switchBoard(board);
-                    
-                }
-            });
-            boards.add(boardChoice);
-        }
+        showBoardsMenu(boards, watchMenu, client.getKnownBoards());
         
         
         boards.addMenuListener(new MenuListener() {
@@ -453,27 +634,64 @@ public class ClientGUI extends JFrame {
 
             @Override
             public void menuSelected(MenuEvent arg0) {
-            	for (int i=boards.getItemCount()-1; i>1; i--) {
-            		boards.remove(i);
-            	}
-                try {
-                    for (final String board: client.getBoards()) {
-                        JMenuItem boardChoice = new JMenuItem(board);
-                        boardChoice.addActionListener(new  ActionListener() {
-                            public void actionPerformed(ActionEvent event) {
-                                canvas.switchBoard(board);
-                            }
-                        });
-                        boards.add(boardChoice);
-                    }
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
+                // show the boards known now, and the server's list once it arrives
+                showBoardsMenu(boards, watchMenu, client.getKnownBoards());
+                refreshBoardsMenu(boards, watchMenu);
             }
         });
         
         return boards;
     }
+    
+    /**
+     * Replaces the boards listed in the boards menu, below its New Board, Open in
+     * New Tab and Close Tab items and separator, and in its Open in New Tab menu
+     * @param boardsMenu: the boards menu
+     * @param watchMenu: the Open in New Tab menu
+     * @param listBoards: the boards to list
+     */
+    private void showBoardsMenu(JMenu boardsMenu, JMenu watchMenu, String[] listBoards) {
+        for (int i=boardsMenu.getItemCount()-1; i>3; i--) {
+            boardsMenu.remove(i);
+        }
+        watchMenu.removeAll();
+        for (final String board: listBoards) {
+            JMenuItem watchChoice = new JMenuItem(board);
+            watchChoice.setEnabled(!client.getTabs().contains(board));
+            watchChoice.addActionListener(new  ActionListener() {
+                public void actionPerformed(ActionEvent event) {
+                    client.watchBoard(board);
+                }
+            });
+            watchMenu.add(watchChoice);
+        }
+        for (final String board: listBoards) {
+            JMenuItem boardChoice = new JMenuItem(board);
+            boardChoice.addActionListener(new  ActionListener() {
+                public void actionPerformed(ActionEvent event) {
+                    canvas.switchBoard(board);
+                }
+            });
+            boardsMenu.add(boardChoice);
+        }
+        repack(boardsMenu);
+    }
+    
+    /**
+     * Asks the server for the boards, and lists them in the boards menu once they arrive
+     * @param boardsMenu: the boards menu
+     * @param watchMenu: the Open in New Tab menu
+     */
+    private void refreshBoardsMenu(final JMenu boardsMenu, final JMenu watchMenu) {
+        new ListWorker() {
+            protected String[] fetch() throws Exception {
+                return client.getBoards();
+            }
+            protected void show(String[] listBoards) {
+                showBoardsMenu(boardsMenu, watchMenu, listBoards);
+            }
+        }.execute();
+    }
   
     /**
      * Add the colors menu to the menu bar
@@ -1,19 +1,81 @@
 package client;
 
-import java.io.BufferedReader;
 import java.io.IOException;
+import java.awt.image.BufferedImage;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 
 import Command.Command;
+import Command.CommandRegistry;
 
-public class ClientReceiveProtocol implements Runnable {
+import log.Log;
+
+/**
+ * Thread which receives messages from the server.  Draw and drawBatch
+ * messages, which make up almost all of the traffic, are decoded straight
+ * from the receive buffer by a DrawDecoder and applied to the canvas; all
+ * other messages are handled as Strings by handleRequest.
+ * 
+ * The draws of the current board are kept in a BoardLog, so the canvas can
+ * be redrawn when the server undoes or redoes entries of the board's log.
+ * The client's own draws come back as echoes, which are logged from the
+ * LocalEcho and drawn again only where the server's order differs from the
+ * order they were drawn in.
+ * 
+ * The logs and images of the boards left lately are kept in a BoardCache, so
+ * switching back to one of them shows it at once and receives only its new entries.
+ * 
+ * The boards shown in background tabs share the connection and the canvas
+ * with the current board: the server sends their draws too, which are logged
+ * in their hidden BoardLogs without being drawn.  Selecting a tab draws its
+ * board from its log, which is already up to date.
+ */
+public class ClientReceiveProtocol implements Runnable, DrawDecoder.Target, BoardLog.Renderer {
+    
+    private static final CommandRegistry.Operation CLEAR_BOARD = CommandRegistry.get("clearBoard");
+    // per-message logs, sampled so they do not slow down receiving
+    private static final Log.Sampler MESSAGE_LOG = new Log.Sampler();
+    private static final Log.Sampler DRAW_ERROR_LOG = new Log.Sampler();
     
-    private final BufferedReader in;
+    private LineReader in;
     private final Client client;
+    private final DrawDecoder drawDecoder = new DrawDecoder();
+    private BoardLog boardLog = new BoardLog();
+    // boards left lately, with their logs and images
+    private final BoardCache boardCache = new BoardCache();
+    // hidden logs of the boards shown in background tabs, by board
+    private final Map<String, BoardLog> watched = new LinkedHashMap<String, BoardLog>();
+    // background boards the server went stale on, whose draws are ignored until the subscribe reply
+    private final Set<String> resubscribing = new HashSet<String>();
+    // commands applied since render() was last called
+    private int commandsApplied = 0;
+    // true once a clearBoard command is applied, until the entry it is in has been logged
+    private boolean clearedBoard = false;
     private boolean isRunning = true;
+    // the request ID of the message being handled, or -1 if it has none
+    private long requestId = -1;
+    // handlers of the messages handled as Strings, by verb
+    private final Map<String, Handler> handlers = new HashMap<String, Handler>();
+    
+    /**
+     * Performs one kind of message from the server
+     */
+    private interface Handler {
+        /**
+         * @param tokens: the tokens of the message, checked by MessageParser
+         * @param input: the message the tokens were split from
+         */
+        void handle(String[] tokens, String input) throws Exception;
+    }
     
-    public ClientReceiveProtocol(BufferedReader in, Client client) {
-        this.in= in;
+    public ClientReceiveProtocol(InputStream in, Client client) {
+        this.in = new LineReader(in);
         this.client = client;
+        addHandlers();
     }
     
     /**
@@ -29,6 +91,23 @@ public class ClientReceiveProtocol implements Runnable {
 		    } catch (IOException e) {
 		    	// Means connection has closed
 		    }
+		    if (!isRunning) {
+		        break;
+		    }
+		    // resume on a new connection from the last entry received
+		    String boardName;
+		    long nextSeq;
+		    Map<String, Long> subscriptions;
+		    synchronized (this) {
+		        boardName = boardLog.getBoardName();
+		        nextSeq = boardLog.getNextSeq();
+		        subscriptions = getWatchedSeqs();
+		    }
+		    InputStream input = client.reconnect(boardName, nextSeq, subscriptions, drawDecoder.getPalette());
+		    if (input == null) {
+		        break;
+		    }
+		    in = new LineReader(input);
     	}
     }
 	    
@@ -39,74 +118,526 @@ public class ClientReceiveProtocol implements Runnable {
      * @param socket socket where the client is connected
      * @throws IOException if connection has an error or terminates unexpectedly
      */
-    private void handleConnection(BufferedReader in) throws IOException {        
+    private void handleConnection(LineReader in) throws IOException {        
 
-        for (String line = in.readLine(); line != null; line = in.readLine()) {
-        	System.out.println("Handle Request: " + line);
-        	handleRequest(line);                
+        while (in.readLine()) {
+            String line;
+            // a switch of board waits until the line is handled, so every
+            // line is handled against one board, its log and its image
+            synchronized (this) {
+                try {
+                    if (drawDecoder.isDraw(in.buffer(), in.lineStart(), in.lineLength(), client.getCurrentBoardName())) {
+                        clearedBoard = false;
+                        boardLog.setCanvasAhead(!client.getLocalEcho().isIdle());
+                        boardLog.receive(in.buffer(), in.lineStart(), in.lineLength(), this, client.getCanvas());
+                        if (clearedBoard) {
+                            boardLog.clearBeforeLast();
+                        }
+                        continue;
+                    }
+                    if (!watched.isEmpty() && receiveWatched(in.buffer(), in.lineStart(), in.lineLength())) {
+                        continue;
+                    }
+                    if (drawDecoder.decode(in.buffer(), in.lineStart(), in.lineLength(), client.getCurrentBoardName(), this)) {
+                        continue;
+                    }
+                } catch (RuntimeException e) {
+                    if (DRAW_ERROR_LOG.isEnabled(Log.Level.WARN)) {
+                        Log.error("Could not draw: " + in.lineString(), e);
+                    }
+                    continue;
+                }
+                line = in.lineString();
+                if (line.equals("compress deflate")) {
+                    // the server compresses everything after this line
+                    in.startInflating();
+                }
+            	if (MESSAGE_LOG.isEnabled(Log.Level.DEBUG)) {
+            	    Log.debug("Handle Request: " + line);
+            	}
+            	requestId = -1;
+            	int space = line.indexOf(' ');
+            	if (line.startsWith("#") && space > 1) {
+            	    // the reply to a request sent with a request ID
+            	    try {
+            	        requestId = Long.parseLong(line.substring(1, space));
+            	        line = line.substring(space + 1);
+            	    } catch (NumberFormatException e) {
+            	        // not a request ID; handled as a plain message
+            	    }
+            	}
+            	handleRequest(line);
+            }
+        	if (requestId >= 0) {
+        	    client.completeReply(requestId, line);
+        	}
+        }
+    }
+    
+    /**
+     * Logs a draw of a board shown in a background tab, without drawing it
+     * @return true if the line is a draw of such a board
+     */
+    private boolean receiveWatched(byte[] line, int start, int length) {
+        String boardName = drawDecoder.boardOf(line, start, length);
+        BoardLog log = boardName == null ? null : watched.get(boardName);
+        if (log == null) {
+            return false;
+        }
+        if (!resubscribing.contains(boardName)) {
+            log.receive(line, start, length, this, client.getCanvas());
+        }
+        return true;
+    }
+    
+    /**
+     * Draws a command decoded by the DrawDecoder on the canvas
+     */
+    @Override
+    public void apply(CommandRegistry.Operation operation, long[] values, int[] points, int pointsLength) {
+        operation.invoke(client.getCanvas(), values, points, pointsLength);
+        commandsApplied++;
+        if (operation == CLEAR_BOARD) {
+            clearedBoard = true;
         }
     }
     
+    /**
+     * Draws a draw message of the current board kept in the BoardLog
+     */
+    @Override
+    public int render(byte[] line, int start, int length) {
+        commandsApplied = 0;
+        drawDecoder.decode(line, start, length, client.getCurrentBoardName(), this);
+        client.getLocalEcho().rendered();
+        return commandsApplied;
+    }
+    
     /**
      * Handler for server input, performing requested operations and returning an output message.
+     * A reply to a request sent with a request ID starts with "#id ", which is removed before
+     * it is handled here.
      * Receives:
      * 
      * Update Users = "users boardName user1 user2 user3..."
      * Update Available Boards = "boards board1 board2 board3"
      * Draw = "draw boardName command param1 param2 param3"
      *      Example: "draw boardName drawLineSegment x1 y1 x2 y2 color width"
+     * Draw Batch = "drawBatch boardName command param1 param2 ... ; command param1 param2 ..."
+     * Echo = "#id echo boardName", in place of the client's own draw sent with request ID id
      * Check and add User = "checkAndAddUser username boardName boolean"
+     * Hello = "hello username boardName true", followed by the boards, the board's users and
+     *      the board's log in the form of a switch; "hello username boardName false" if the
+     *      username is taken or the board does not exist
      * New Board = "newBoard boardName boolean"
+     * Rejected = "rejected reason", sent when the server throttled a request; a local draw
+     *      which is rejected is taken off the canvas
+     * Reconnect = "reconnect delay", sent when the server shuts down; reconnect after delay milliseconds
+     * Switch Board = "switch username oldBoardName newBoardName", followed by the board's log;
+     *      a switch to a board in the BoardCache is answered by a resume from the cached log's next entry
+     * Resume = "resume username boardName start firstSeq1 lastSeq1 ...", followed by the board's
+     *      log from entry start on; the older entries numbered in the ranges are still drawn
+     *      "resume username boardName false" if the session could not be resumed
+     * Subscribe = "subscribe boardName start firstSeq1 lastSeq1 ...", followed by the log of a
+     *      board shown in a background tab from entry start on, like a resume;
+     *      "subscribe boardName false" if the board does not exist
+     * Stale = "stale boardName", the server dropped draws of a background board; the client
+     *      subscribes to it again from the last entry it has
+     * Seq = "seq boardName n", the next draw of the board is entry n of its log
+     * Undone = "undone boardName", the next draw of the board is an undone entry
+     * Undo = "undo boardName firstSeq1 lastSeq1 ...", the entries numbered in the ranges are undone
+     * Redo = "redo boardName firstSeq1 lastSeq1 ...", the entries numbered in the ranges are redone
+     * 
+     * The message is split and checked by MessageParser, then dispatched on its verb.
      * 
      * @param input message from server
      * @return message to client
      * @throws IOException 
      */
     private void handleRequest(String input) throws IOException, IllegalArgumentException {
-        
-    	String nameReg = "[a-zA-Z0-9\\.]+";
-    	String regex = "(draw "+nameReg+"( "+nameReg+")+)|"
-		    			+ "(users( "+nameReg+")+)|"
-						+ "(exit "+nameReg+")|"
-		    	        +"(boards( "+nameReg+")*)|"
-		        		+ "(checkAndAddUser ("+nameReg+" "+nameReg+" (true|false)))|"
-		    	        +"(newBoard "+nameReg+" (true|false))|"
-		        		+ "(switch "+nameReg+" "+nameReg+")|(testHello)";
-    	
-    	System.out.println("input: "+input);
-    	// make sure it's a valid input
-        if (input.matches(regex)) {
-            try {
-	        	String[] tokens = input.split(" ");
-	        	
-	            if (tokens[0].equals("boards")) {
-					client.setBoards(client.parseBoardsFromServerResponse(input));
-	            } 
-	            else if (tokens[0].equals("newBoard")) {
-	                client.parseNewBoardFromServerResponse(input);
-	            } 
-	            else if (tokens[0].equals("checkAndAddUser")) {
-	                client.parseNewUserFromServerResponse(input);
-	            } 
-	            else if (tokens[0].equals("users")) {
-	                if (client.checkForCorrectBoard(tokens[1])) {   
-	                    client.setUsers(client.parseUsersFromServerResponse(input));
-	                }
-	            } 
-	            else if (tokens[0].equals("exit")) {
-	                client.completeExit();
-	            } 
-	            else if (tokens[0].equals("draw")) {
-	                Command command = new Command(input);
-	                if (command.checkBoardName(client.getCurrentBoardName())) {
-	                    client.applyCommand(command);
-	                }
-	            }
-            } catch (Exception e) {
-            	e.printStackTrace();
-            }
-        }
-   
+        String[] tokens = MessageParser.parse(input);
+        if (tokens == null) {
+            // invalid input
+            return;
+        }
+        Handler handler = handlers.get(tokens[0]);
+        if (handler == null) {
+            // a valid message which needs nothing done
+            return;
+        }
+        try {
+            handler.handle(tokens, input);
+        } catch (Exception e) {
+            Log.error("Could not handle: " + input, e);
+        }
+    }
+    
+    /**
+     * Fills the dispatch table, from the verb of a message to its handler
+     */
+    private void addHandlers() {
+        handlers.put("boards", new Handler() {
+            public void handle(String[] tokens, String input) throws Exception {
+                client.setBoards(client.parseBoardsFromServerResponse(input));
+            }
+        });
+        handlers.put("newBoard", new Handler() {
+            public void handle(String[] tokens, String input) throws Exception {
+                client.parseNewBoardFromServerResponse(input);
+            }
+        });
+        handlers.put("checkAndAddUser", new Handler() {
+            public void handle(String[] tokens, String input) throws Exception {
+                client.parseNewUserFromServerResponse(input);
+            }
+        });
+        handlers.put("hello", new Handler() {
+            public void handle(String[] tokens, String input) {
+                if (tokens[3].equals("true")) {
+                    // the boards, users and log which follow are for this user and board
+                    client.setUsername(tokens[1]);
+                    client.setCurrentBoardName(tokens[2]);
+                }
+            }
+        });
+        handlers.put("users", new Handler() {
+            public void handle(String[] tokens, String input) throws Exception {
+                if (client.checkForCorrectBoard(tokens[1])) {
+                    client.setUsers(client.parseUsersFromServerResponse(input));
+                }
+            }
+        });
+        handlers.put("exit", new Handler() {
+            public void handle(String[] tokens, String input) {
+                client.completeExit();
+            }
+        });
+        handlers.put("draw", new Handler() {
+            public void handle(String[] tokens, String input) {
+                Command command = new Command(tokens);
+                if (command.checkBoardName(client.getCurrentBoardName())) {
+                    client.applyCommand(command);
+                }
+            }
+        });
+        handlers.put("drawBatch", new Handler() {
+            public void handle(String[] tokens, String input) {
+                if (client.checkForCorrectBoard(tokens[1])) {
+                    for (Command command : Command.fromBatch(tokens)) {
+                        client.applyCommand(command);
+                    }
+                }
+            }
+        });
+        handlers.put("echo", new Handler() {
+            public void handle(String[] tokens, String input) throws IOException {
+                echo(tokens[1]);
+            }
+        });
+        handlers.put("rejected", new Handler() {
+            public void handle(String[] tokens, String input) {
+                Log.warn("Request rejected by server: " + tokens[1]);
+                LocalEcho.Draw draw = requestId < 0 ? null : client.getLocalEcho().rejected(requestId);
+                if (draw != null && draw.getBoardName().equals(boardLog.getBoardName())
+                        && client.checkForCorrectBoard(draw.getBoardName())) {
+                    // take the draw off the canvas
+                    boardLog.redraw(ClientReceiveProtocol.this, client.getCanvas());
+                    drawPending();
+                }
+            }
+        });
+        handlers.put("reconnect", new Handler() {
+            public void handle(String[] tokens, String input) {
+                Log.info("Server is shutting down, reconnect in " + tokens[1] + " ms");
+                client.setReconnectDelay(Long.parseLong(tokens[1]));
+            }
+        });
+        handlers.put("switch", new Handler() {
+            public void handle(String[] tokens, String input) {
+                if (client.checkForCorrectBoard(tokens[3])) {
+                    // the board's log follows
+                    boardLog.reset(tokens[3]);
+                    client.getCanvas().restore(null);
+                    client.getLocalEcho().rendered();
+                    client.resumed();
+                }
+            }
+        });
+        handlers.put("resume", new Handler() {
+            public void handle(String[] tokens, String input) {
+                resume(tokens);
+            }
+        });
+        handlers.put("subscribe", new Handler() {
+            public void handle(String[] tokens, String input) {
+                subscribed(tokens);
+            }
+        });
+        handlers.put("stale", new Handler() {
+            public void handle(String[] tokens, String input) throws IOException {
+                resubscribe(tokens[1]);
+            }
+        });
+        handlers.put("seq", new Handler() {
+            public void handle(String[] tokens, String input) {
+                BoardLog log = logOf(tokens[1]);
+                if (log != null) {
+                    log.setNextSeq(Long.parseLong(tokens[2]));
+                }
+            }
+        });
+        handlers.put("undone", new Handler() {
+            public void handle(String[] tokens, String input) {
+                BoardLog log = logOf(tokens[1]);
+                if (log != null) {
+                    log.markNextUndone();
+                }
+            }
+        });
+        Handler setUndone = new Handler() {
+            public void handle(String[] tokens, String input) {
+                BoardLog log = logOf(tokens[1]);
+                if (log != null) {
+                    long[] ranges = new long[tokens.length - 2];
+                    for (int i = 0; i < ranges.length; i++) {
+                        ranges[i] = Long.parseLong(tokens[i + 2]);
+                    }
+                    log.setUndone(ranges, tokens[0].equals("undo"), ClientReceiveProtocol.this, client.getCanvas());
+                    if (log == boardLog) {
+                        drawPending();
+                    }
+                }
+            }
+        };
+        handlers.put("undo", setUndone);
+        handlers.put("redo", setUndone);
+    }
+    
+    /**
+     * @return the log of the board, if it is the current board or shown in a background tab, otherwise null
+     */
+    private BoardLog logOf(String boardName) {
+        if (client.checkForCorrectBoard(boardName)) {
+            return boardLog;
+        }
+        return watched.get(boardName);
+    }
+    
+    /**
+     * Subscribe response: brings the hidden log of a background board up to date
+     */
+    private void subscribed(String[] tokens) {
+        String boardName = tokens[1];
+        BoardLog log = watched.get(boardName);
+        if (log == null) {
+            // the tab was closed or selected since
+            return;
+        }
+        if (tokens[2].equals("false")) {
+            Log.warn("Could not show board " + boardName + " in a tab");
+            watched.remove(boardName);
+            resubscribing.remove(boardName);
+            client.tabFailed(boardName);
+            return;
+        }
+        long[] live = new long[tokens.length - 3];
+        for (int i = 0; i < live.length; i++) {
+            live[i] = Long.parseLong(tokens[i + 3]);
+        }
+        log.resume(Long.parseLong(tokens[2]), live, this, client.getCanvas());
+        resubscribing.remove(boardName);
+    }
+    
+    /**
+     * Stale response: asks again for the part of a background board's log the server dropped
+     */
+    private void resubscribe(String boardName) throws IOException {
+        BoardLog log = watched.get(boardName);
+        if (log == null || resubscribing.contains(boardName)) {
+            // the current board: the switch to it, on its way, resumes it
+            return;
+        }
+        resubscribing.add(boardName);
+        client.makeRequest("subscribe "+boardName+" "+log.getNextSeq());
+    }
+    
+    /**
+     * @return the number of the next entry of the log of each board shown in a background tab
+     */
+    private Map<String, Long> getWatchedSeqs() {
+        Map<String, Long> seqs = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, BoardLog> entry : watched.entrySet()) {
+            seqs.put(entry.getKey(), entry.getValue().getNextSeq());
+        }
+        return seqs;
+    }
+    
+    /**
+     * Resume response: redraws the board from the entries still live, or starts it over
+     */
+    private void resume(String[] tokens) {
+        if (tokens[3].equals("false")) {
+            Log.warn("Could not resume session, trying again");
+            client.resumeFailed();
+        } else if (!client.checkForCorrectBoard(tokens[2])) {
+            // the user switched boards while offline; the switch follows
+            client.resumed();
+        } else if (tokens[2].equals(boardLog.getBoardName())) {
+            long[] live = new long[tokens.length - 4];
+            for (int i = 0; i < live.length; i++) {
+                live[i] = Long.parseLong(tokens[i + 4]);
+            }
+            boardLog.resume(Long.parseLong(tokens[3]), live, this, client.getCanvas());
+            drawPending();
+            client.resumed();
+        } else {
+            // a log the client does not have: start from a blank board
+            boardLog.reset(tokens[2]);
+            boardLog.setNextSeq(Long.parseLong(tokens[3]));
+            client.getCanvas().restore(null);
+            drawPending();
+            client.resumed();
+        }
+    }
+    
+    /**
+     * Switches the log and the canvas to another board; called on the event
+     * dispatch thread, while holding this protocol's lock, before the switch
+     * request is sent.  The board left stays in a background tab if keepOld
+     * is set: its log is hidden and kept up to date.  Otherwise it is kept in
+     * the cache with the image of the canvas, unless the canvas holds local
+     * draws which are not in its log yet.  If the board switched to is in a
+     * background tab, it is drawn from its log; if it is in the cache, its
+     * image is shown at once.  Either way its log becomes the current log.
+     * @param newBoardName: the board switched to
+     * @param keepOld: true if the board left stays in a background tab
+     * @return the number of the next entry of the kept log of the board
+     *         switched to, or -1 if it was not kept
+     */
+    public synchronized long switchCachedBoard(String newBoardName, boolean keepOld) {
+        BoardLog shown = watched.remove(newBoardName);
+        resubscribing.remove(newBoardName);
+        BoardCache.Board cached = shown == null ? boardCache.take(newBoardName) : null;
+        BufferedImage image = cached == null ? null : cached.getImage();
+        BufferedImage left = client.getCanvas().swapBuffer(image);
+        String oldBoardName = boardLog.getBoardName();
+        if (oldBoardName != null && keepOld) {
+            // its local draws are logged when the server echoes them
+            boardLog.trimCheckpoints();
+            boardLog.setHidden(true);
+            watched.put(oldBoardName, boardLog);
+        } else if (oldBoardName != null && left != null && client.getLocalEcho().isIdle()) {
+            boardLog.trimCheckpoints();
+            boardCache.put(oldBoardName, boardLog, left);
+        }
+        client.getLocalEcho().rendered();
+        if (cached != null) {
+            shown = cached.getLog();
+        }
+        if (shown == null) {
+            boardLog = new BoardLog();
+            boardLog.reset(newBoardName);
+            return -1;
+        }
+        boardLog = shown;
+        boardLog.setHidden(false);
+        if (image == null) {
+            // a board from a background tab has no image: draw it from its log
+            boardLog.redraw(this, client.getCanvas());
+            drawPending();
+        }
+        return boardLog.getNextSeq();
+    }
+    
+    /**
+     * Starts keeping the log of a board shown in a background tab; called on
+     * the event dispatch thread before the subscribe request is sent
+     * @param boardName: the board, which is not the current board
+     * @return the number of the next entry of the board's log, 0 if the client has none
+     */
+    public synchronized long watchBoard(String boardName) {
+        BoardLog log = watched.get(boardName);
+        if (log == null) {
+            BoardCache.Board cached = boardCache.take(boardName);
+            if (cached != null) {
+                log = cached.getLog();
+            } else {
+                log = new BoardLog();
+                log.reset(boardName);
+            }
+            log.setHidden(true);
+            watched.put(boardName, log);
+        }
+        return log.getNextSeq();
+    }
+    
+    /**
+     * Stops keeping the log of a board of a background tab closed; the log is
+     * kept in the cache, to be drawn if the board is switched to again
+     * @param boardName: the board
+     */
+    public synchronized void unwatchBoard(String boardName) {
+        BoardLog log = watched.remove(boardName);
+        if (log != null && !resubscribing.remove(boardName)) {
+            boardCache.put(boardName, log, null);
+        }
+    }
+    
+    /**
+     * @return the number of the next entry of the log of a board in a background tab, or -1 if there is none
+     */
+    public synchronized long getWatchedNextSeq(String boardName) {
+        BoardLog log = watched.get(boardName);
+        return log == null ? -1 : log.getNextSeq();
+    }
+    
+    /**
+     * Echo response: logs the client's own draw in the place the server stored
+     * it, drawing it again only if something was drawn over it since
+     */
+    private void echo(String boardName) throws IOException {
+        LocalEcho localEcho = client.getLocalEcho();
+        LocalEcho.Draw draw = localEcho.echoed(requestId, boardName);
+        BoardLog watchedLog = watched.get(boardName);
+        if (watchedLog != null) {
+            // drawn before the board moved to a background tab
+            if (draw == null) {
+                resubscribe(boardName);
+            } else if (!resubscribing.contains(boardName)) {
+                byte[] line = draw.getMessage().getBytes();
+                watchedLog.receive(line, 0, line.length, this, client.getCanvas());
+            }
+            return;
+        }
+        if (!client.checkForCorrectBoard(boardName) || !boardName.equals(boardLog.getBoardName())) {
+            return;
+        }
+        if (draw == null) {
+            // the log would miss an entry: load the board again
+            Log.warn("Echo of an unknown draw on " + boardName + ", loading the board again");
+            client.makeRequest("switch "+client.getUsername()+" "+boardName+" "+boardName);
+            return;
+        }
+        byte[] line = draw.getMessage().getBytes();
+        boardLog.setCanvasAhead(!localEcho.isIdle());
+        if (localEcho.isCovered(draw)) {
+            boardLog.receive(line, 0, line.length, this, client.getCanvas());
+        } else {
+            boardLog.receiveDrawn(line, 0, line.length, client.getCanvas());
+        }
+    }
+    
+    /**
+     * Draws the local draws still waiting for their echo on top of the canvas,
+     * after it was redrawn from the log
+     */
+    private void drawPending() {
+        LocalEcho localEcho = client.getLocalEcho();
+        localEcho.rendered();
+        for (LocalEcho.Draw draw : localEcho.getPending(boardLog.getBoardName())) {
+            byte[] line = draw.getMessage().getBytes();
+            render(line, 0, line.length);
+        }
     }
  
     
@@ -1,37 +1,196 @@
 package client;
 
-import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+import log.Log;
 
 /**
- * Asynchronous protocol to send messages out over a PrintWriter socket
+ * Thread which sends messages to the server.  Messages are queued by send()
+ * and written by this one thread in the order they were queued, so draws
+ * reach the server in the order they were drawn.  Everything queued while
+ * the thread was writing is written together and flushed once.
+ *
+ * While the connection is down, messages stay queued, up to MAX_OFFLINE_MESSAGES.
+ * If a write fails, the draws of the failed batch are queued again, since
+ * the server may not have received them; other requests in it are dropped.
+ * On reconnect the handshake of the new connection is sent first, then
+ * everything queued while offline.
+ *
+ * Concurrency Argument:
+ *   - the queue is guarded by the monitor pattern
+ *   - only the sender thread writes to the PrintWriter, so messages
+ *     never interleave
+ *
  * @author Josh
  *
  */
 public class ClientSendProtocol implements Runnable {
-    
-    private final PrintWriter out;
-    private final String message;
-    
+
+    // most messages queued while the connection is down; later ones are dropped
+    public static final int MAX_OFFLINE_MESSAGES = 10000;
+
+    // per-request logs, sampled so they do not slow down sending
+    private static final Log.Sampler REQUEST_LOG = new Log.Sampler();
+    private static final Log.Sampler DROPPED_LOG = new Log.Sampler();
+
+    // the connection's writer, or null while the connection is down
+    private PrintWriter out;
+    private final Deque<String> queue = new ArrayDeque<String>();
+    // true while the queue is empty and everything written has been flushed
+    private boolean idle = true;
+    private boolean closed = false;
+
     /**
-     * Asynchronous printwriter.  Writes message to PrintWriter socket.
-     * @param out: PrintWriter to write message to
-     * @param message: message to write
+     * @param out: PrintWriter to write messages to; flushed by the sender
      */
-    public ClientSendProtocol(PrintWriter out, String message) {
+    public ClientSendProtocol(PrintWriter out) {
         this.out = out;
-        this.message = message;
     }
-    
+
     /**
-     * Sends message to server over a PrintWriter
-     * @throws IOException 
+     * Starts the sender thread, which does not keep the program running
+     */
+    public void start() {
+        Thread thread = new Thread(this, "ClientSendProtocol");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues a message, written after all messages queued before it
+     * @param message: the message, without a line terminator
+     */
+    public synchronized void send(String message) {
+        if (out == null && queue.size() >= MAX_OFFLINE_MESSAGES) {
+            if (DROPPED_LOG.isEnabled(Log.Level.WARN)) {
+                Log.warn("Offline, dropped request: "+message);
+            }
+            return;
+        }
+        if (!closed) {
+            queue.add(message);
+            idle = false;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Writes queued messages until the sender is closed
      */
     @Override
     public void run() {
-        System.out.println("Make Request: "+message);
-		out.println(message);
-		
+        String[] batch = new String[0];
+        try {
+            while (true) {
+                int count;
+                PrintWriter writer;
+                synchronized (this) {
+                    while ((queue.isEmpty() || out == null) && !closed) {
+                        wait();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    writer = out;
+                    batch = queue.toArray(batch);
+                    count = queue.size();
+                    queue.clear();
+                }
+                for (int i = 0; i < count; i++) {
+                    if (REQUEST_LOG.isEnabled(Log.Level.DEBUG)) {
+                        Log.debug("Make Request: "+batch[i]);
+                    }
+                    writer.println(batch[i]);
+                }
+                // checkError flushes the writer
+                boolean failed = writer.checkError();
+                synchronized (this) {
+                    if (failed) {
+                        disconnected(writer, batch, count);
+                    }
+                    idle = queue.isEmpty();
+                    notifyAll();
+                }
+                for (int i = 0; i < count; i++) {
+                    batch[i] = null;
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.error("Sender interrupted", e);
+        }
+    }
+
+    /**
+     * Marks the connection down after a failed write and queues the draws of the batch again
+     */
+    private void disconnected(PrintWriter writer, String[] batch, int count) {
+        if (out == writer) {
+            out = null;
+        }
+        for (int i = count - 1; i >= 0; i--) {
+            if (isDraw(batch[i])) {
+                queue.addFirst(batch[i]);
+            }
+        }
+    }
+
+    /**
+     * @return true if the message is a draw or drawBatch, with or without a request ID
+     */
+    private static boolean isDraw(String message) {
+        int start = message.startsWith("#") ? message.indexOf(' ') + 1 : 0;
+        return message.startsWith("draw", start);
+    }
+
+    /**
+     * Marks the connection down; messages are queued until reconnect()
+     */
+    public synchronized void disconnect() {
+        out = null;
+    }
+
+    /**
+     * Sends to a new connection: the handshake first, then everything queued
+     * @param out: PrintWriter of the new connection; flushed by the sender
+     * @param handshake: the first requests of the connection, in order
+     */
+    public synchronized void reconnect(PrintWriter out, List<String> handshake) {
+        for (int i = handshake.size() - 1; i >= 0; i--) {
+            queue.addFirst(handshake.get(i));
+        }
+        this.out = out;
+        idle = false;
+        notifyAll();
+    }
+
+    /**
+     * Waits until everything queued has been written and flushed
+     * @param timeoutMillis: longest time to wait
+     * @return true if everything was written, false if the time ran out first
+     * @throws InterruptedException
+     */
+    public synchronized boolean awaitIdle(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!idle && !closed) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return idle;
+    }
+
+    /**
+     * Drops queued messages and stops the sender thread
+     */
+    public synchronized void close() {
+        closed = true;
+        queue.clear();
+        notifyAll();
     }
 
 }
@@ -0,0 +1,64 @@
+package client;
+
+import static org.junit.Assert.*;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+/**
+ * Testing Strategy:
+ *  Order:
+ *      messages queued from several threads keep the order of each thread
+ *  Close:
+ *      messages queued after close are dropped
+ */
+public class ClientSendProtocolTest {
+
+    /******************** Order  *****************/
+    @Test
+    public void orderTest() throws InterruptedException {
+        StringWriter written = new StringWriter();
+        final ClientSendProtocol sender = new ClientSendProtocol(new PrintWriter(written));
+        sender.start();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int thread = t;
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < 500; i++) {
+                        sender.send(thread + " " + i);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(sender.awaitIdle(10000));
+        int[] next = new int[threads.length];
+        String[] lines = written.toString().split(System.getProperty("line.separator"));
+        assertEquals(500 * threads.length, lines.length);
+        for (String line : lines) {
+            String[] parts = line.split(" ");
+            int thread = Integer.parseInt(parts[0]);
+            assertEquals(next[thread]++, Integer.parseInt(parts[1]));
+        }
+        sender.close();
+    }
+
+    /******************** Close  *****************/
+    @Test
+    public void closeTest() throws InterruptedException {
+        StringWriter written = new StringWriter();
+        ClientSendProtocol sender = new ClientSendProtocol(new PrintWriter(written));
+        sender.start();
+        sender.send("first");
+        assertTrue(sender.awaitIdle(10000));
+        sender.close();
+        sender.send("second");
+        assertEquals("first" + System.getProperty("line.separator"), written.toString());
+    }
+}
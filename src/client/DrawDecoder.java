@@ -0,0 +1,428 @@
+package client;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import Command.Command;
+import Command.CompactEncoding;
+import Command.CommandRegistry;
+
+/**
+ * Decodes draw and drawBatch lines straight from the bytes of the receive
+ * buffer and hands each command to a Target, without creating a String, a
+ * token array or a Command for it.  The arguments of each command are parsed
+ * into a values array that is reused for every command of the same arity,
+ * and its point list, if any, into a single reused points array.
+ * 
+ * Compact draws and palette declarations (see CompactEncoding) are decoded
+ * the same way, with the palette kept by the decoder.
+ * 
+ * Only lines for the board passed to decode() are applied; draws for other
+ * boards are skipped without being parsed further.
+ * 
+ * Not thread safe; used only by the thread receiving from the server.
+ */
+public class DrawDecoder {
+    
+    /**
+     * Receives decoded commands
+     */
+    public interface Target {
+        /**
+         * @param operation: the drawing operation of the command
+         * @param values: the command's scalar arguments, as CommandRegistry.Operation.invoke takes them;
+         *                only valid until apply returns
+         * @param points: holds the command's point list in its first pointsLength ints;
+         *                only valid until apply returns
+         * @param pointsLength: number of ints in the point list
+         */
+        void apply(CommandRegistry.Operation operation, long[] values, int[] points, int pointsLength);
+    }
+    
+    private static final byte[] DRAW = "draw ".getBytes();
+    private static final byte[] DRAW_BATCH = "drawBatch ".getBytes();
+    private static final byte[] COMPACT = (CompactEncoding.PREFIX + " ").getBytes();
+    private static final byte[] PALETTE = (CompactEncoding.PALETTE + " ").getBytes();
+    private static final byte SEPARATOR = (byte) Command.BATCH_SEPARATOR.charAt(0);
+    private static final CommandRegistry.Operation SEGMENT = CommandRegistry.get("drawLineSegment");
+    private static final CommandRegistry.Operation POLYLINE = CommandRegistry.get("drawPolyline");
+    
+    // values arrays, indexed by arity
+    private long[][] values = new long[8][];
+    // point list of the command being decoded, grown as needed
+    private int[] points = new int[256];
+    // the operation of the last command decoded, reused while commands name the same operation
+    private CommandRegistry.Operation lastOperation;
+    // commands skipped because they did not fit their operation
+    private long invalidCommands = 0;
+    // colors declared by the server, by palette index
+    private final int[] palette = new int[CompactEncoding.PALETTE_SIZE];
+    // one more than the highest palette index declared
+    private int paletteSize = 0;
+    // index in the line of the compact number last read by readNumber, or -1 if the number was malformed
+    private int numberEnd;
+    
+    /**
+     * Decodes the line if it is a draw or drawBatch message
+     * @param line: buffer holding the line
+     * @param start: index of the first character of the line
+     * @param length: number of characters in the line
+     * @param boardName: the board whose commands are applied
+     * @param target: receives the commands of the line, in order
+     * @return true if the line was a draw, drawBatch, compact draw or palette message,
+     *         false if it is some other message
+     */
+    public boolean decode(byte[] line, int start, int length, String boardName, Target target) {
+        int end = start + length;
+        int position;
+        if (startsWith(line, start, end, COMPACT)) {
+            decodeCompact(line, start + COMPACT.length, end, boardName, target);
+            return true;
+        } else if (startsWith(line, start, end, PALETTE)) {
+            decodePalette(line, start + PALETTE.length, end);
+            return true;
+        } else if (startsWith(line, start, end, DRAW)) {
+            position = start + DRAW.length;
+        } else if (startsWith(line, start, end, DRAW_BATCH)) {
+            position = start + DRAW_BATCH.length;
+        } else {
+            return false;
+        }
+        int boardEnd = tokenEnd(line, position, end);
+        if (!equals(line, position, boardEnd, boardName)) {
+            return true;
+        }
+        position = boardEnd + 1;
+        while (position < end) {
+            position = decodeCommand(line, position, end, target);
+        }
+        return true;
+    }
+    
+    /**
+     * @return true if the line is a draw, drawBatch or compact draw message on the board
+     */
+    public boolean isDraw(byte[] line, int start, int length, String boardName) {
+        int end = start + length;
+        int position = boardStart(line, start, end);
+        return position >= 0 && equals(line, position, tokenEnd(line, position, end), boardName);
+    }
+    
+    /**
+     * @return the board of a draw, drawBatch or compact draw message, or null if the line is none of them
+     */
+    public String boardOf(byte[] line, int start, int length) {
+        int end = start + length;
+        int position = boardStart(line, start, end);
+        if (position < 0) {
+            return null;
+        }
+        return new String(line, position, tokenEnd(line, position, end) - position, StandardCharsets.US_ASCII);
+    }
+    
+    /**
+     * @return index of the board name of a draw, drawBatch or compact draw message, or -1 if the line is none of them
+     */
+    private static int boardStart(byte[] line, int start, int end) {
+        if (startsWith(line, start, end, COMPACT)) {
+            return start + COMPACT.length;
+        } else if (startsWith(line, start, end, DRAW)) {
+            return start + DRAW.length;
+        } else if (startsWith(line, start, end, DRAW_BATCH)) {
+            return start + DRAW_BATCH.length;
+        }
+        return -1;
+    }
+
+    /**
+     * @return number of commands skipped because they did not fit their operation
+     */
+    public long getInvalidCommands() {
+        return invalidCommands;
+    }
+    
+    /**
+     * Decodes one command and its arguments, up to the next separator or the end of the line
+     * @return index just past the command and its separator
+     */
+    private int decodeCommand(byte[] line, int position, int end, Target target) {
+        int nameEnd = tokenEnd(line, position, end);
+        CommandRegistry.Operation operation = lastOperation;
+        if (operation == null || !equals(line, position, nameEnd, operation.getName())) {
+            // a new operation: only now is a String needed for the lookup
+            operation = CommandRegistry.get(new String(line, position, nameEnd - position));
+            lastOperation = operation;
+        }
+        int arity = operation == null ? 0 : operation.getParameterCount();
+        long[] commandValues = valuesFor(arity);
+        int count = 0;
+        int pointsLength = 0;
+        boolean valid = operation != null;
+        position = nameEnd + 1;
+        while (position < end) {
+            int argumentEnd = tokenEnd(line, position, end);
+            if (argumentEnd - position == 1 && line[position] == SEPARATOR) {
+                position = argumentEnd + 1;
+                break;
+            }
+            if (valid && count < arity) {
+                try {
+                    commandValues[count] = parseValue(operation.getParameterType(count), line, position, argumentEnd);
+                } catch (IllegalArgumentException e) {
+                    valid = false;
+                }
+            } else if (valid && operation.hasPoints() && pointsLength < CommandRegistry.MAX_POINTS_LENGTH) {
+                long point = parseInteger(line, position, argumentEnd);
+                if (point >= Integer.MIN_VALUE && point <= Integer.MAX_VALUE) {
+                    pointFor(pointsLength)[pointsLength++] = (int) point;
+                } else {
+                    valid = false;
+                }
+            } else {
+                valid = false;
+            }
+            count++;
+            position = argumentEnd + 1;
+        }
+        if (valid && count == arity + pointsLength && operation.acceptsPoints(pointsLength)) {
+            target.apply(operation, commandValues, points, pointsLength);
+        } else {
+            invalidCommands++;
+        }
+        return position;
+    }
+    
+    /**
+     * @return the points array, grown if needed to hold index
+     */
+    private int[] pointFor(int index) {
+        if (index >= points.length) {
+            points = Arrays.copyOf(points, 2 * points.length);
+        }
+        return points;
+    }
+    
+    /**
+     * Decodes the commands of a compact draw, "c boardName ops"
+     */
+    private void decodeCompact(byte[] line, int position, int end, String boardName, Target target) {
+        int boardEnd = tokenEnd(line, position, end);
+        if (!equals(line, position, boardEnd, boardName)) {
+            return;
+        }
+        position = boardEnd + 1;
+        int lastX = 0;
+        int lastY = 0;
+        while (position < end) {
+            byte opcode = line[position];
+            boolean segment = opcode == CompactEncoding.SEGMENT;
+            if (!segment && opcode != CompactEncoding.POLYLINE) {
+                // the rest of the line cannot be found without knowing this command
+                invalidCommands++;
+                return;
+            }
+            CommandRegistry.Operation operation = segment ? SEGMENT : POLYLINE;
+            numberEnd = position + 1;
+            int color = readNumber(line, end);
+            int width = readNumber(line, end);
+            int x = lastX + readNumber(line, end);
+            int y = lastY + readNumber(line, end);
+            int count = segment ? 0 : readNumber(line, end);
+            if (numberEnd < 0 || color < 0 || color >= palette.length || width < 0
+                    || count < 0 || 2 * count > CommandRegistry.MAX_POINTS_LENGTH) {
+                invalidCommands++;
+                return;
+            }
+            long[] commandValues = valuesFor(operation.getParameterCount());
+            float strokeWidth = width / (float) CompactEncoding.WIDTH_STEPS;
+            if (segment) {
+                lastX = x + readNumber(line, end);
+                lastY = y + readNumber(line, end);
+                commandValues[0] = x;
+                commandValues[1] = y;
+                commandValues[2] = lastX;
+                commandValues[3] = lastY;
+                commandValues[4] = palette[color];
+                commandValues[5] = Float.floatToRawIntBits(strokeWidth);
+            } else {
+                lastX = x;
+                lastY = y;
+                for (int i = 0; i < 2 * count; i += 2) {
+                    int dx = readNumber(line, end);
+                    int dy = readNumber(line, end);
+                    pointFor(i + 1)[i] = dx;
+                    points[i + 1] = dy;
+                    lastX += dx;
+                    lastY += dy;
+                }
+                commandValues[0] = x;
+                commandValues[1] = y;
+                commandValues[2] = palette[color];
+                commandValues[3] = Float.floatToRawIntBits(strokeWidth);
+            }
+            if (numberEnd < 0) {
+                invalidCommands++;
+                return;
+            }
+            target.apply(operation, commandValues, points, 2 * count);
+            position = numberEnd;
+        }
+    }
+    
+    /**
+     * Reads the compact number at numberEnd and advances numberEnd past it
+     * @return the number, or 0 with numberEnd set to -1 if it is malformed
+     */
+    private int readNumber(byte[] line, int end) {
+        int position = numberEnd;
+        if (position < 0) {
+            return 0;
+        }
+        int bits = 0;
+        for (int shift = 0; position < end && shift < 35; shift += 5) {
+            int chunk = line[position++] - CompactEncoding.NUMBER_BASE;
+            if (chunk < 0 || chunk >= 2 * CompactEncoding.NUMBER_MORE) {
+                break;
+            }
+            bits |= (chunk & (CompactEncoding.NUMBER_MORE - 1)) << shift;
+            if ((chunk & CompactEncoding.NUMBER_MORE) == 0) {
+                numberEnd = position;
+                return (bits >>> 1) ^ -(bits & 1);
+            }
+        }
+        numberEnd = -1;
+        return 0;
+    }
+    
+    /**
+     * @return the colors declared by the server, by palette index, to be sent
+     *         with "encoding compact" when reconnecting so that compact lines
+     *         already received keep their colors
+     */
+    public int[] getPalette() {
+        int[] colors = new int[paletteSize];
+        System.arraycopy(palette, 0, colors, 0, paletteSize);
+        return colors;
+    }
+    
+    /**
+     * Decodes a palette declaration, "palette index color"
+     */
+    private void decodePalette(byte[] line, int position, int end) {
+        int indexEnd = tokenEnd(line, position, end);
+        long index = parseInteger(line, position, indexEnd);
+        long color = parseInteger(line, indexEnd + 1, end);
+        if (indexEnd < end && index >= 0 && index < palette.length && color >= Integer.MIN_VALUE && color <= Integer.MAX_VALUE) {
+            palette[(int) index] = (int) color;
+            paletteSize = Math.max(paletteSize, (int) index + 1);
+        } else {
+            invalidCommands++;
+        }
+    }
+    
+    private long[] valuesFor(int arity) {
+        if (arity >= values.length) {
+            long[][] grown = new long[arity + 1][];
+            System.arraycopy(values, 0, grown, 0, values.length);
+            values = grown;
+        }
+        if (values[arity] == null) {
+            values[arity] = new long[arity];
+        }
+        return values[arity];
+    }
+    
+    /**
+     * Parses an argument in the same form as CommandRegistry.parseValue.  ints and
+     * plain decimal floats are parsed in place; anything else falls back to parseValue.
+     */
+    private static long parseValue(Class<?> type, byte[] line, int start, int end) {
+        if (type == int.class) {
+            long value = parseInteger(line, start, end);
+            if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+                return value;
+            }
+        } else if (type == float.class) {
+            int point = end;
+            for (int i = start; i < end; i++) {
+                if (line[i] == '.') {
+                    point = i;
+                    break;
+                }
+            }
+            long whole = parseInteger(line, start, point);
+            long fraction = 0;
+            if (point + 1 < end) {
+                // the fraction is unsigned digits only
+                boolean digit = line[point + 1] >= '0' && line[point + 1] <= '9';
+                fraction = digit ? parseInteger(line, point + 1, end) : -1;
+            }
+            if (whole != Long.MIN_VALUE && fraction >= 0 && end - point <= 10) {
+                double scale = 1;
+                for (int i = point + 1; i < end; i++) {
+                    scale *= 10;
+                }
+                double magnitude = Math.abs(whole) + fraction / scale;
+                boolean negative = line[start] == '-';
+                return Float.floatToRawIntBits((float) (negative ? -magnitude : magnitude));
+            }
+        }
+        return CommandRegistry.parseValue(type, new String(line, start, end - start));
+    }
+    
+    /**
+     * @return the optionally signed decimal integer in line[start, end), or
+     *         Long.MIN_VALUE if it is not one or has more than 18 digits
+     */
+    private static long parseInteger(byte[] line, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (line[i] == '-' || line[i] == '+')) {
+            negative = line[i] == '-';
+            i++;
+        }
+        if (i == end || end - i > 18) {
+            return Long.MIN_VALUE;
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = line[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return Long.MIN_VALUE;
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+    
+    private static int tokenEnd(byte[] line, int position, int end) {
+        while (position < end && line[position] != ' ') {
+            position++;
+        }
+        return position;
+    }
+    
+    private static boolean startsWith(byte[] line, int start, int end, byte[] prefix) {
+        if (end - start < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (line[start + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static boolean equals(byte[] line, int start, int end, String name) {
+        if (name == null || end - start != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (line[start + i] != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,224 @@
+package client;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import Command.Command;
+import Command.CommandRegistry;
+import Command.CompactEncoding;
+
+/**
+ * Testing Strategy:
+ *  Decode:
+ *      Draw on the current board
+ *      Draw on another board
+ *      Batch of draws
+ *      Malformed draw
+ *      Compact draws and palette declarations, and text fallback
+ *      Other messages are left to handleRequest
+ *  Allocation:
+ *      Receive many draw lines without allocating per line
+ */
+public class DrawDecoderTest {
+    
+    /**
+     * Target which records the decoded commands as strings
+     */
+    private static class RecordingTarget implements DrawDecoder.Target {
+        List<String> commands = new ArrayList<String>();
+        
+        @Override
+        public void apply(CommandRegistry.Operation operation, long[] values, int[] points, int pointsLength) {
+            StringBuilder command = new StringBuilder(operation.getName());
+            for (int i = 0; i < values.length; i++) {
+                if (operation.getParameterType(i) == float.class) {
+                    command.append(" ").append(Float.intBitsToFloat((int) values[i]));
+                } else {
+                    command.append(" ").append(values[i]);
+                }
+            }
+            for (int i = 0; i < pointsLength; i++) {
+                command.append(" ").append(points[i]);
+            }
+            commands.add(command.toString());
+        }
+    }
+    
+    /**
+     * Target which only counts the decoded commands
+     */
+    private static class CountingTarget implements DrawDecoder.Target {
+        long count = 0;
+        long checksum = 0;
+        
+        @Override
+        public void apply(CommandRegistry.Operation operation, long[] values, int[] points, int pointsLength) {
+            count++;
+            checksum += values[0];
+        }
+    }
+    
+    private static List<String> decode(String input, String boardName) throws IOException {
+        LineReader reader = new LineReader(new ByteArrayInputStream(input.getBytes()));
+        DrawDecoder decoder = new DrawDecoder();
+        RecordingTarget target = new RecordingTarget();
+        while (reader.readLine()) {
+            assertTrue(decoder.decode(reader.buffer(), reader.lineStart(), reader.lineLength(), boardName, target));
+        }
+        return target.commands;
+    }
+    
+    /******************** Decode  *****************/
+    @Test
+    public void drawCurrentBoardTest() throws IOException {
+        List<String> commands = decode("draw board drawLineSegment 1 2 3 -4 16777216 10.5\n", "board");
+        assertEquals(1, commands.size());
+        assertEquals("drawLineSegment 1 2 3 -4 16777216 10.5", commands.get(0));
+    }
+    
+    @Test
+    public void drawOtherBoardTest() throws IOException {
+        List<String> commands = decode("draw board2 drawLineSegment 1 2 3 4 0 10.0\n", "board");
+        assertEquals(0, commands.size());
+    }
+    
+    @Test
+    public void drawBatchTest() throws IOException {
+        List<String> commands = decode("drawBatch board drawLineSegment 1 2 3 4 0 10.0 ; drawLineSegment 3 4 5 6 0 2\r\n", "board");
+        assertEquals(2, commands.size());
+        assertEquals("drawLineSegment 1 2 3 4 0 10.0", commands.get(0));
+        assertEquals("drawLineSegment 3 4 5 6 0 2.0", commands.get(1));
+    }
+    
+    @Test
+    public void malformedDrawTest() throws IOException {
+        List<String> commands = decode("draw board drawLineSegment 1 2 3 four 0 10.0\n"
+                + "draw board drawLineSegment 1 2 3 4 0\n"
+                + "draw board drawNothing 1\n", "board");
+        assertEquals(0, commands.size());
+    }
+    
+    @Test
+    public void polylineTest() throws IOException {
+        List<String> commands = decode("drawBatch board drawPolyline 10 20 0 2.0 5 -3 -1 4 ; drawRectangle 1 2 30 40 0 1.0\n"
+                + "draw board drawPolyline 10 20 0 2.0\n", "board");
+        assertEquals(3, commands.size());
+        assertEquals("drawPolyline 10 20 0 2.0 5 -3 -1 4", commands.get(0));
+        assertEquals("drawRectangle 1 2 30 40 0 1.0", commands.get(1));
+        assertEquals("drawPolyline 10 20 0 2.0", commands.get(2));
+    }
+    
+    @Test
+    public void malformedPolylineTest() throws IOException {
+        List<String> commands = decode("draw board drawPolyline 10 20 0 2.0 5\n"
+                + "draw board drawPolyline 10 20 0 2.0 5 1.5\n"
+                + "draw board drawRectangle 1 2 30 40 0 1.0 7 7\n", "board");
+        assertEquals(0, commands.size());
+    }
+    
+    @Test
+    public void compactRoundTripTest() throws IOException {
+        List<Command> commands = new ArrayList<Command>();
+        commands.add(new Command("draw board drawLineSegment 100 200 103 198 16777216 10.0"));
+        commands.add(new Command("draw board drawLineSegment 103 198 99 190 255 10.25"));
+        commands.add(new Command("draw board drawPolyline 99 190 16777216 2.5 3 -4 -120 7 0 0"));
+        String text = Command.toBatchString("board", Arrays.asList(
+                "drawLineSegment 100 200 103 198 16777216 10.0",
+                "drawLineSegment 103 198 99 190 255 10.25",
+                "drawPolyline 99 190 16777216 2.5 3 -4 -120 7 0 0"));
+        CompactEncoding.Encoder encoder = new CompactEncoding.Encoder();
+        String compact = encoder.encode("board", commands, text);
+        assertTrue(compact.startsWith("palette 0 16777216"));
+        
+        // a color is only declared the first time it is used
+        String again = encoder.encode("board", commands.subList(0, 1), "unused");
+        assertTrue(again.startsWith("c board "));
+        assertTrue(again.length() * 3 < commands.get(0).toString().length());
+        
+        List<String> decoded = decode(compact + "\n" + again + "\n", "board");
+        assertEquals(4, decoded.size());
+        assertEquals("drawLineSegment 100 200 103 198 16777216 10.0", decoded.get(0));
+        assertEquals("drawLineSegment 103 198 99 190 255 10.25", decoded.get(1));
+        assertEquals("drawPolyline 99 190 16777216 2.5 3 -4 -120 7 0 0", decoded.get(2));
+        assertEquals("drawLineSegment 100 200 103 198 16777216 10.0", decoded.get(3));
+    }
+    
+    @Test
+    public void compactFallbackTest() throws IOException {
+        // widths which are not whole quarter pixels are sent as text
+        List<Command> commands = Arrays.asList(new Command("draw board drawLineSegment 1 2 3 4 0 0.1"));
+        String text = commands.get(0).toString();
+        assertEquals(text, new CompactEncoding.Encoder().encode("board", commands, text));
+    }
+    
+    @Test
+    public void otherMessagesTest() throws IOException {
+        byte[] line = "users board user1 user2".getBytes();
+        assertFalse(new DrawDecoder().decode(line, 0, line.length, "board", new RecordingTarget()));
+    }
+    
+    /******************** Allocation  *****************/
+    @Test
+    public void noAllocationPerLineTest() throws IOException {
+        StringBuilder input = new StringBuilder();
+        int lines = 20000;
+        for (int i = 0; i < lines; i++) {
+            input.append("draw board drawLineSegment ").append(i % 800).append(" ").append(i % 600)
+                .append(" ").append((i + 3) % 800).append(" ").append((i + 5) % 600).append(" 16777216 10.0\n");
+        }
+        byte[] bytes = input.toString().getBytes();
+        DrawDecoder decoder = new DrawDecoder();
+        CountingTarget target = new CountingTarget();
+        
+        // warm up, so that the measured run is compiled code with its buffers in place
+        for (int run = 0; run < 5; run++) {
+            receive(bytes, decoder, target);
+        }
+        
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        int runs = 10;
+        for (int run = 0; run < runs; run++) {
+            receive(bytes, decoder, target);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        
+        assertEquals(15L * lines, target.count);
+        // the reader and stream are made once per run; nothing is made per line
+        double bytesPerLine = (double) allocated / (runs * lines);
+        assertTrue("allocated " + bytesPerLine + " bytes per line", bytesPerLine < 2);
+    }
+    
+    private static void receive(byte[] bytes, DrawDecoder decoder, DrawDecoder.Target target) throws IOException {
+        LineReader reader = new LineReader(new ByteArrayInputStream(bytes));
+        while (reader.readLine()) {
+            decoder.decode(reader.buffer(), reader.lineStart(), reader.lineLength(), "board", target);
+        }
+    }
+    
+    @Test
+    public void isDrawTest() {
+        DrawDecoder decoder = new DrawDecoder();
+        assertTrue(isDraw(decoder, "draw board drawLineSegment 1 2 3 4 0 1.0"));
+        assertTrue(isDraw(decoder, "drawBatch board drawLineSegment 1 2 3 4 0 1.0 ; drawLineSegment 3 4 5 6 0 1.0"));
+        assertTrue(isDraw(decoder, "c board S"));
+        assertFalse(isDraw(decoder, "draw other drawLineSegment 1 2 3 4 0 1.0"));
+        assertFalse(isDraw(decoder, "drawBatch boardX drawLineSegment 1 2 3 4 0 1.0"));
+        assertFalse(isDraw(decoder, "palette 0 255"));
+        assertFalse(isDraw(decoder, "undo board 0 3"));
+    }
+    
+    private static boolean isDraw(DrawDecoder decoder, String line) {
+        byte[] bytes = line.getBytes();
+        return decoder.isDraw(bytes, 0, bytes.length, "board");
+    }
+}
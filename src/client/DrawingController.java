@@ -1,29 +1,63 @@
 package client;
 
 import java.awt.Color;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
+import java.io.IOException;
+
+import javax.swing.Timer;
+
+import log.Log;
 
 
 /*
  * DrawingController handles the user's freehand drawing.
+ * 
+ * Segments are drawn on the canvas as soon as the mouse moves, but are sent
+ * to the server as a single polyline command per batch: a batch is flushed
+ * when it is full, when the mouse is released, or shortly after its first
+ * segment was drawn.  The next polyline starts where the last one ended.
  */
 public class DrawingController implements MouseListener, MouseMotionListener {
+    // most segments sent in a single polyline
+    private static final int MAX_BATCH_SIZE = 64;
+    // longest time a drawn segment waits before it is sent, in milliseconds
+    private static final int MAX_BATCH_DELAY = 30;
+    
     // store the coordinates of the last mouse event, so we can
     // draw a line segment from that last point to the point of the next mouse event.
     private int lastX, lastY;
     private final Client client;
+    // points of the stroke drawn but not yet sent to the server, in drawing order;
+    // the first is the end of what was already sent
+    private final int[] pendingX = new int[MAX_BATCH_SIZE + 1];
+    private final int[] pendingY = new int[MAX_BATCH_SIZE + 1];
+    private int pendingPoints = 0;
+    private int pendingColor;
+    private float pendingWidth;
+    private final Timer flushTimer;
 
     public DrawingController(Client client) {
         this.client = client;
+        // the timer fires on the event dispatch thread, like the mouse events
+        flushTimer = new Timer(MAX_BATCH_DELAY, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                flush();
+            }
+        });
+        flushTimer.setRepeats(false);
     }
     /*
      * When mouse button is pressed down, start drawing.
      */
     public void mousePressed(MouseEvent e) {
+        flush();
         lastX = e.getX();
         lastY = e.getY();
+        pendingPoints = 0;
     }
 
     /*
@@ -38,18 +72,66 @@ public class DrawingController implements MouseListener, MouseMotionListener {
         if (client.isErasing()) { color = Color.white; }
         
         // to make up for the height of the menu
-        client.getCanvas().drawLineSegmentAndCall(lastX, lastY, x, y, color.getRGB(), client.getCurrentWidth());
+        float width = client.getCurrentWidth();
+        // the segment is sent later, as part of a polyline
+        client.getLocalEcho().started();
+        client.getCanvas().drawLineSegment(lastX, lastY, x, y, color.getRGB(), width);
+        if (pendingPoints > 0 && (pendingColor != color.getRGB() || pendingWidth != width)) {
+            flush();
+            pendingPoints = 0;
+        }
+        if (pendingPoints == 0) {
+            pendingX[0] = lastX;
+            pendingY[0] = lastY;
+            pendingPoints = 1;
+            pendingColor = color.getRGB();
+            pendingWidth = width;
+        }
+        pendingX[pendingPoints] = x;
+        pendingY[pendingPoints] = y;
+        pendingPoints++;
+        if (pendingPoints > MAX_BATCH_SIZE) {
+            flush();
+        } else if (!flushTimer.isRunning()) {
+            flushTimer.start();
+        }
         lastX = x;
         lastY = y;
     }
+    
+    /*
+     * When the mouse button is released, send whatever is left of the stroke.
+     */
+    public void mouseReleased(MouseEvent e) {
+        flush();
+        pendingPoints = 0;
+    }
+    
+    /*
+     * Sends all pending segments to the server as one polyline, keeping
+     * its last point as the start of the next one
+     */
+    private void flush() {
+        flushTimer.stop();
+        if (pendingPoints < 2) {
+            return;
+        }
+        try {
+            client.makeDrawRequest(Canvas.polylineCommand(pendingX, pendingY, pendingPoints, pendingColor, pendingWidth));
+        } catch (IOException e) {
+            Log.error("Could not send draw", e);
+        }
+        pendingX[0] = pendingX[pendingPoints-1];
+        pendingY[0] = pendingY[pendingPoints-1];
+        pendingPoints = 1;
+    }
 
     // Ignore all these other mouse events.
     public void mouseMoved(MouseEvent e) { }
     public void mouseClicked(MouseEvent e) { }
-    public void mouseReleased(MouseEvent e) { }
     public void mouseEntered(MouseEvent e) { }
     public void mouseExited(MouseEvent e) { }
     
     
 
-} 
\ No newline at end of file
+} 
@@ -0,0 +1,68 @@
+package client;
+
+import java.awt.AWTEvent;
+import java.awt.EventQueue;
+import java.awt.Toolkit;
+
+/**
+ * Measures how long the event dispatch thread is kept from handling input.
+ * Once installed, every event dispatched is timed, and the longest dispatch
+ * is kept: while an event is being dispatched, no other event is, so the
+ * longest dispatch is the longest stall of the window.
+ *
+ * Concurrency Argument:
+ *   - events are dispatched on the event dispatch thread only
+ *   - the longest stall is volatile, so other threads read its latest value
+ *
+ */
+public class EdtStallMonitor extends EventQueue {
+
+    private volatile long longestStallNanos = 0;
+    private volatile long events = 0;
+
+    /**
+     * Starts timing the events of the system event queue
+     * @return the installed monitor
+     */
+    public static EdtStallMonitor install() {
+        EdtStallMonitor monitor = new EdtStallMonitor();
+        Toolkit.getDefaultToolkit().getSystemEventQueue().push(monitor);
+        return monitor;
+    }
+
+    @Override
+    protected void dispatchEvent(AWTEvent event) {
+        long start = System.nanoTime();
+        try {
+            super.dispatchEvent(event);
+        } finally {
+            long stall = System.nanoTime() - start;
+            if (stall > longestStallNanos) {
+                longestStallNanos = stall;
+            }
+            events++;
+        }
+    }
+
+    /**
+     * @return the longest time one event kept the event dispatch thread busy, in milliseconds
+     */
+    public long getLongestStallMillis() {
+        return longestStallNanos / 1000000;
+    }
+
+    /**
+     * @return number of events dispatched since the monitor was installed
+     */
+    public long getEvents() {
+        return events;
+    }
+
+    /**
+     * Forgets the stalls measured so far, to measure a new part of the session
+     */
+    public void reset() {
+        longestStallNanos = 0;
+        events = 0;
+    }
+}
@@ -0,0 +1,136 @@
+package client;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.SwingUtilities;
+
+import org.junit.Test;
+
+/**
+ * Testing Strategy:
+ *  Measure:
+ *      an event which blocks the event dispatch thread is measured as a stall
+ *  Scripted session:
+ *      menus opened several times while every reply takes REPLY_DELAY_MILLIS,
+ *      each list fetched on the event dispatch thread (as the menus did before ListWorker),
+ *      each list fetched by a ListWorker;
+ *      the longest stall of both sessions is printed
+ */
+public class EdtStallMonitorTest {
+
+    // how long the server takes to reply in the scripted session
+    private static final long REPLY_DELAY_MILLIS = 200;
+    // menus opened in the scripted session
+    private static final int MENUS_OPENED = 5;
+
+    private static final EdtStallMonitor MONITOR = EdtStallMonitor.install();
+
+    /**
+     * @return a reply which a server thread completes after REPLY_DELAY_MILLIS
+     */
+    private static ReplyFuture slowReply() {
+        final ReplyFuture reply = new ReplyFuture();
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(REPLY_DELAY_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                reply.complete("users board alice bob");
+            }
+        }).start();
+        return reply;
+    }
+
+    /**
+     * Opens a menu MENUS_OPENED times, one event after the other
+     * @param async: true to fetch the menu's list with a ListWorker
+     * @return the longest stall of the session in milliseconds
+     */
+    private static long session(final boolean async) throws Exception {
+        final CountDownLatch shown = new CountDownLatch(MENUS_OPENED);
+        SwingUtilities.invokeAndWait(new Runnable() {
+            public void run() {
+                MONITOR.reset();
+            }
+        });
+        for (int i = 0; i < MENUS_OPENED; i++) {
+            SwingUtilities.invokeAndWait(new Runnable() {
+                public void run() {
+                    if (!async) {
+                        try {
+                            slowReply().get(2 * REPLY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+                        } catch (Exception e) {
+                            throw new IllegalStateException(e);
+                        }
+                        shown.countDown();
+                        return;
+                    }
+                    new ListWorker() {
+                        protected String[] fetch() throws Exception {
+                            return slowReply().get(2 * REPLY_DELAY_MILLIS, TimeUnit.MILLISECONDS).split(" ");
+                        }
+                        protected void show(String[] items) {
+                            assertEquals("alice", items[2]);
+                            shown.countDown();
+                        }
+                    }.execute();
+                }
+            });
+        }
+        assertTrue(shown.await(10 * REPLY_DELAY_MILLIS, TimeUnit.MILLISECONDS));
+        flush();
+        return MONITOR.getLongestStallMillis();
+    }
+
+    /**
+     * Waits until the events posted so far have been dispatched and measured.
+     * invokeAndWait returns once its event has run, which may be before the
+     * monitor has measured it, but the next event is dispatched only after.
+     */
+    private static void flush() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            SwingUtilities.invokeAndWait(new Runnable() {
+                public void run() {
+                }
+            });
+        }
+    }
+
+    /******************** Measure  *****************/
+    @Test
+    public void measuresStallTest() throws Exception {
+        SwingUtilities.invokeAndWait(new Runnable() {
+            public void run() {
+                MONITOR.reset();
+            }
+        });
+        SwingUtilities.invokeAndWait(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        flush();
+        assertTrue(MONITOR.getLongestStallMillis() >= 50);
+        assertTrue(MONITOR.getEvents() >= 1);
+    }
+
+    /******************** Scripted session  *****************/
+    @Test
+    public void scriptedSessionTest() throws Exception {
+        long blocking = session(false);
+        long async = session(true);
+        System.out.println("longest event dispatch thread stall with " + REPLY_DELAY_MILLIS
+                + " ms replies: blocking " + blocking + " ms, ListWorker " + async + " ms");
+        assertTrue(blocking >= REPLY_DELAY_MILLIS);
+        assertTrue(async < REPLY_DELAY_MILLIS / 2);
+    }
+}
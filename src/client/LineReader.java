@@ -0,0 +1,118 @@
+package client;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads lines of the ASCII protocol from a stream into a reusable buffer.
+ * Unlike BufferedReader.readLine(), reading a line allocates nothing: the
+ * line stays in the buffer until the next call to readLine(), and a String
+ * is only made if lineString() is called.
+ * 
+ * If the server starts compressing the stream after some line, calling
+ * startInflating() after reading that line inflates everything after it.
+ * 
+ * Not thread safe; used only by the thread receiving from the server.
+ */
+public class LineReader {
+    
+    private InputStream in;
+    private byte[] buffer = new byte[16 * 1024];
+    // buffer[start, end) holds data read from the stream but not yet returned
+    private int start = 0;
+    private int end = 0;
+    // buffer[lineStart, lineEnd) holds the current line, without its terminator
+    private int lineStart = 0;
+    private int lineEnd = 0;
+    
+    public LineReader(InputStream in) {
+        this.in = in;
+    }
+    
+    /**
+     * Reads the next line, terminated by "\n" or "\r\n"
+     * @return true if a line was read, false at the end of the stream
+     * @throws IOException if the stream fails
+     */
+    public boolean readLine() throws IOException {
+        int scan = start;
+        while (true) {
+            for (int i = scan; i < end; i++) {
+                if (buffer[i] == '\n') {
+                    lineStart = start;
+                    lineEnd = (i > start && buffer[i - 1] == '\r') ? i - 1 : i;
+                    start = i + 1;
+                    return true;
+                }
+            }
+            // no complete line buffered: make room and read more
+            if (start > 0) {
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                start = 0;
+            } else if (end == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            scan = end;
+            int read = in.read(buffer, end, buffer.length - end);
+            if (read < 0) {
+                if (end > start) {
+                    // last line has no terminator
+                    lineStart = start;
+                    lineEnd = end;
+                    start = end;
+                    return true;
+                }
+                return false;
+            }
+            end += read;
+        }
+    }
+    
+    /**
+     * Inflates everything after the current line, which the server compresses
+     * with DEFLATE from there on.  Bytes already read past the current line are
+     * inflated first.
+     */
+    public void startInflating() {
+        InputStream compressed = in;
+        if (end > start) {
+            compressed = new SequenceInputStream(new ByteArrayInputStream(Arrays.copyOfRange(buffer, start, end)), in);
+        }
+        in = new InflaterInputStream(compressed);
+        end = start;
+    }
+    
+    /**
+     * @return the buffer holding the current line; valid until the next readLine()
+     */
+    public byte[] buffer() {
+        return buffer;
+    }
+    
+    /**
+     * @return index in buffer() of the first character of the current line
+     */
+    public int lineStart() {
+        return lineStart;
+    }
+    
+    /**
+     * @return number of characters in the current line
+     */
+    public int lineLength() {
+        return lineEnd - lineStart;
+    }
+    
+    /**
+     * @return the current line as a new String
+     */
+    public String lineString() {
+        return new String(buffer, lineStart, lineEnd - lineStart, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,59 @@
+package client;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.junit.Test;
+
+/**
+ * Testing Strategy:
+ *  Read Lines:
+ *      "\n" and "\r\n" terminators, last line without a terminator
+ *  Inflate:
+ *      compressed data already buffered with the last uncompressed line
+ *      compressed data sync-flushed in several parts
+ */
+public class LineReaderTest {
+    
+    /******************** Read Lines  *****************/
+    @Test
+    public void readLinesTest() throws IOException {
+        LineReader reader = new LineReader(new ByteArrayInputStream("one\r\ntwo\nthree".getBytes()));
+        assertTrue(reader.readLine());
+        assertEquals("one", reader.lineString());
+        assertTrue(reader.readLine());
+        assertEquals("two", reader.lineString());
+        assertTrue(reader.readLine());
+        assertEquals("three", reader.lineString());
+        assertFalse(reader.readLine());
+    }
+    
+    /******************** Inflate  *****************/
+    @Test
+    public void inflateAfterLineTest() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write("compress deflate\n".getBytes());
+        Deflater deflater = new Deflater();
+        DeflaterOutputStream compressed = new DeflaterOutputStream(stream, deflater, true);
+        compressed.write("draw board drawLineSegment 1 2 3 4 0 10.0\n".getBytes());
+        compressed.flush();
+        compressed.write("users board user1\n".getBytes());
+        compressed.flush();
+        deflater.end();
+        
+        // the whole stream is read at once, so the compressed data arrives with the first line
+        LineReader reader = new LineReader(new ByteArrayInputStream(stream.toByteArray()));
+        assertTrue(reader.readLine());
+        assertEquals("compress deflate", reader.lineString());
+        reader.startInflating();
+        assertTrue(reader.readLine());
+        assertEquals("draw board drawLineSegment 1 2 3 4 0 10.0", reader.lineString());
+        assertTrue(reader.readLine());
+        assertEquals("users board user1", reader.lineString());
+    }
+}
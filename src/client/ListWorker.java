@@ -0,0 +1,50 @@
+package client;
+
+import javax.swing.SwingWorker;
+
+import log.Log;
+
+/**
+ * Fetches a list from the server off the event dispatch thread and shows it
+ * on the event dispatch thread once it has arrived.  The GUI uses it for
+ * every request whose reply it waits for, so a slow reply never freezes
+ * the window.
+ *
+ * Concurrency Argument:
+ *   - fetch() runs on a worker thread and touches no Swing component
+ *   - show() runs on the event dispatch thread, after fetch() has returned
+ *
+ */
+public abstract class ListWorker extends SwingWorker<String[], Object> {
+
+    /**
+     * Asks the server for the list and waits for its reply; called on a worker thread
+     * @return the list, or null if there is nothing to show
+     */
+    protected abstract String[] fetch() throws Exception;
+
+    /**
+     * Shows the list; called on the event dispatch thread
+     * @param items: the list fetch() returned
+     */
+    protected abstract void show(String[] items);
+
+    @Override
+    protected String[] doInBackground() throws Exception {
+        return fetch();
+    }
+
+    @Override
+    protected void done() {
+        String[] items;
+        try {
+            items = get();
+        } catch (Exception e) {
+            Log.error("Could not get a reply from the server", e);
+            return;
+        }
+        if (items != null) {
+            show(items);
+        }
+    }
+}
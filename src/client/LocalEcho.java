@@ -0,0 +1,158 @@
+package client;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * The draws this client has drawn on its canvas before the server stored
+ * them.  Such a draw is sent with a request ID, and the server sends back
+ * "#id echo boardName" in its place among the board's draws instead of the
+ * draw itself, so the client neither receives nor draws its own strokes twice.
+ *
+ * The echo is drawn only if the canvas no longer has the local draw on top
+ * of everything the server sent before it: when something the server sent
+ * was drawn after the local draw was started, which includes redraws of the
+ * canvas.  Drawing the draw again then puts it on top, in the server's order.
+ *
+ * Draws of one connection on one board are stored in the order they were
+ * sent, so an echo also settles every earlier draw on its board which is
+ * still waiting: those were rejected, or stored before a reconnect and sent
+ * again in the board's log.
+ *
+ * Concurrency Argument:
+ *   - This class is made concurrent by the monitor pattern; draws are started
+ *     and sent on the event dispatch thread, echoed on the receive thread
+ *
+ */
+public class LocalEcho {
+
+    /**
+     * A draw drawn locally and sent to the server
+     */
+    public static class Draw {
+        private final long id;
+        private final String boardName;
+        private final String message;
+        // renders counted when the draw was started
+        private final long startedAt;
+
+        Draw(long id, String boardName, String message, long startedAt) {
+            this.id = id;
+            this.boardName = boardName;
+            this.message = message;
+            this.startedAt = startedAt;
+        }
+
+        public String getBoardName() {
+            return boardName;
+        }
+
+        /**
+         * @return the draw message sent, "draw boardName command param1 param2 ..."
+         */
+        public String getMessage() {
+            return message;
+        }
+    }
+
+    // draws sent and not yet echoed, in the order they were sent
+    private final List<Draw> pending = new LinkedList<Draw>();
+    // times something the server sent was drawn on the canvas
+    private long renders = 0;
+    // renders counted when the local drawing not yet sent was started, or -1 if there is none
+    private long startedAt = -1;
+
+    /**
+     * Called before drawing on the canvas a draw which is sent later
+     */
+    public synchronized void started() {
+        if (startedAt < 0) {
+            startedAt = renders;
+        }
+    }
+
+    /**
+     * Records a draw sent to the server; everything drawn locally since started() is part of it
+     * @param id: the request ID of the draw
+     * @param boardName: the board drawn on
+     * @param message: the draw message, "draw boardName command param1 param2 ..."
+     */
+    public synchronized void sent(long id, String boardName, String message) {
+        pending.add(new Draw(id, boardName, message, startedAt < 0 ? renders : startedAt));
+        startedAt = -1;
+    }
+
+    /**
+     * Called after drawing on the canvas something the server sent, or restoring the canvas
+     */
+    public synchronized void rendered() {
+        renders++;
+    }
+
+    /**
+     * Settles a draw the server echoed, with the earlier draws of its board which are still waiting
+     * @param id: the request ID of the echo
+     * @param boardName: the board of the echo
+     * @return the draw, or null if it was not waiting
+     */
+    public synchronized Draw echoed(long id, String boardName) {
+        Draw echoed = null;
+        for (Iterator<Draw> i = pending.iterator(); i.hasNext(); ) {
+            Draw draw = i.next();
+            if (draw.id <= id && draw.boardName.equals(boardName)) {
+                i.remove();
+                if (draw.id == id) {
+                    echoed = draw;
+                }
+            }
+        }
+        return echoed;
+    }
+
+    /**
+     * @param draw: a draw returned by echoed()
+     * @return true if something the server sent was drawn over the draw since it was started
+     */
+    public synchronized boolean isCovered(Draw draw) {
+        return draw.startedAt != renders;
+    }
+
+    /**
+     * Drops a draw the server rejected
+     * @param id: the request ID of the rejection
+     * @return the draw, or null if no draw with that ID was waiting
+     */
+    public synchronized Draw rejected(long id) {
+        for (Iterator<Draw> i = pending.iterator(); i.hasNext(); ) {
+            Draw draw = i.next();
+            if (draw.id == id) {
+                i.remove();
+                return draw;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the canvas holds no local drawing the server has not echoed
+     */
+    public synchronized boolean isIdle() {
+        return pending.isEmpty() && startedAt < 0;
+    }
+
+    /**
+     * @param boardName: a board
+     * @return the draws on the board waiting for their echo, in the order they were sent
+     */
+    public synchronized List<Draw> getPending(String boardName) {
+        List<Draw> draws = new ArrayList<Draw>();
+        for (Draw draw : pending) {
+            if (draw.boardName.equals(boardName)) {
+                draws.add(draw);
+            }
+        }
+        return draws;
+    }
+}
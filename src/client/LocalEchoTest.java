@@ -0,0 +1,95 @@
+package client;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Testing Strategy:
+ *  Echo:
+ *      echo of a draw nothing was drawn over, echo after a render,
+ *      render between starting a draw and sending it,
+ *      echo settles the earlier draws of its board but not of other boards,
+ *      echo of a draw which is not waiting
+ *  Reject:
+ *      rejected draw, rejection of a request which is not a draw
+ *  Idle:
+ *      idle until a draw is started, until every draw is echoed
+ */
+public class LocalEchoTest {
+
+    /******************** Echo  *****************/
+    @Test
+    public void notCoveredTest() {
+        LocalEcho echo = new LocalEcho();
+        echo.started();
+        echo.sent(1, "board", "draw board drawLineSegment 1 2 3 4 16777216 10.0");
+        LocalEcho.Draw draw = echo.echoed(1, "board");
+        assertEquals("draw board drawLineSegment 1 2 3 4 16777216 10.0", draw.getMessage());
+        assertFalse(echo.isCovered(draw));
+    }
+
+    @Test
+    public void coveredTest() {
+        LocalEcho echo = new LocalEcho();
+        echo.sent(1, "board", "draw board clearBoard");
+        echo.rendered();
+        assertTrue(echo.isCovered(echo.echoed(1, "board")));
+    }
+
+    @Test
+    public void renderedBeforeSentTest() {
+        LocalEcho echo = new LocalEcho();
+        echo.started();
+        echo.rendered();
+        echo.started();
+        echo.sent(1, "board", "draw board clearBoard");
+        // drawn locally before the render, so the render is over part of it
+        assertTrue(echo.isCovered(echo.echoed(1, "board")));
+    }
+
+    @Test
+    public void settlesEarlierTest() {
+        LocalEcho echo = new LocalEcho();
+        echo.sent(1, "board", "draw board clearBoard");
+        echo.sent(2, "other", "draw other clearBoard");
+        echo.sent(3, "board", "draw board clearBoard");
+        echo.sent(4, "board", "draw board clearBoard");
+        assertNotNull(echo.echoed(3, "board"));
+        assertNull(echo.echoed(1, "board"));
+        assertEquals(1, echo.getPending("board").size());
+        assertEquals(1, echo.getPending("other").size());
+        assertNotNull(echo.echoed(2, "other"));
+    }
+
+    @Test
+    public void unknownEchoTest() {
+        LocalEcho echo = new LocalEcho();
+        assertNull(echo.echoed(5, "board"));
+    }
+
+    /******************** Reject  *****************/
+    @Test
+    public void rejectedTest() {
+        LocalEcho echo = new LocalEcho();
+        echo.sent(1, "board", "draw board clearBoard");
+        echo.sent(2, "board", "draw board clearBoard");
+        assertEquals("board", echo.rejected(1).getBoardName());
+        assertNull(echo.rejected(1));
+        assertNull(echo.rejected(7));
+        assertEquals(1, echo.getPending("board").size());
+    }
+
+    /******************** Idle  *****************/
+    @Test
+    public void idleTest() {
+        LocalEcho echo = new LocalEcho();
+        assertTrue(echo.isIdle());
+        echo.started();
+        assertFalse(echo.isIdle());
+        echo.sent(1, "board", "draw board clearBoard");
+        assertFalse(echo.isIdle());
+        echo.echoed(1, "board");
+        assertTrue(echo.isIdle());
+    }
+}
@@ -0,0 +1,277 @@
+package client;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Splits messages from the server into tokens and checks them against the
+ * grammar of their verb, the first token.  The characters of a message are
+ * read once: each token is classified while it is split off, and the grammar
+ * of the verb, looked up in a table, checks only the classes of the tokens.
+ * No regular expression is compiled or matched.
+ *
+ * The grammar is the one ClientReceiveProtocol.handleRequest documents; names
+ * are made of letters, digits and '.', draw arguments may also contain '-',
+ * and numbers are at most MAX_NUMBER_DIGITS digits, so they fit in a long.
+ *
+ * Concurrency Argument:
+ *   - the grammar table is filled when the class is loaded and only read afterwards
+ *   - parse() keeps its state in local variables
+ *
+ */
+public class MessageParser {
+
+    // longest number accepted; 18 digits always fit in a long
+    private static final int MAX_NUMBER_DIGITS = 18;
+
+    // classes of a token; a token may be in more than one
+    private static final int NAME = 1;      // [a-zA-Z0-9.]+
+    private static final int ARG = 2;       // [a-zA-Z0-9.-]+
+    private static final int NUMBER = 4;    // [0-9]{1,18}
+    private static final int SEPARATOR = 8; // ";", between the commands of a drawBatch
+
+    /**
+     * Grammar of the tokens following one verb
+     */
+    private static abstract class Grammar {
+        /**
+         * @param tokens: the tokens of the message, the verb first
+         * @param kinds: the classes of the tokens
+         * @param count: number of tokens
+         * @return true if the message is valid
+         */
+        abstract boolean accepts(String[] tokens, int[] kinds, int count);
+    }
+
+    private static final Map<String, Grammar> GRAMMAR = new HashMap<String, Grammar>();
+
+    static {
+        // "draw boardName command param1 param2 ..."
+        GRAMMAR.put("draw", new Grammar() {
+            boolean accepts(String[] tokens, int[] kinds, int count) {
+                return count >= 3 && is(kinds[1], NAME) && all(kinds, 2, count, ARG);
+            }
+        });
+        // "drawBatch boardName command param1 ... ; command param1 ..."
+        GRAMMAR.put("drawBatch", new Grammar() {
+            boolean accepts(String[] tokens, int[] kinds, int count) {
+                if (count < 3 || !is(kinds[1], NAME)) {
+                    return false;
+                }
+                // every separator follows a command and is followed by one
+                boolean inCommand = false;
+                for (int i = 2; i < count; i++) {
+                    if (is(kinds[i], ARG)) {
+                        inCommand = true;
+                    } else if (kinds[i] == SEPARATOR && inCommand) {
+                        inCommand = false;
+                    } else {
+                        return false;
+                    }
+                }
+                return inCommand;
+            }
+        });
+        // "users boardName user1 user2 ..."
+        GRAMMAR.put("users", new Grammar() {
+            boolean accepts(String[] tokens, int[] kinds, int count) {
+                return count >= 2 && all(kinds, 1, count, NAME);
+            }
+        });
+        // "boards board1 board2 ..."
+        GRAMMAR.put("boards", new Grammar() {
+            boolean accepts(String[] tokens, int[] kinds, int count) {
+                return all(kinds, 1, count, NAME);
+            }
+        });
+        // "echo boardName", in place of the client's own draw
+        GRAMMAR.put("echo", new Grammar() {
+            boolean accepts(String[] tokens, int[] kinds, int count) {
+                return count == 2 && is(kinds[1], NAME);
+            }
+        });
+        // "exit username"
+        GRAMMAR.put("exit", new Grammar() {
+            boolean accepts(String[] tokens, int[] kinds, int count) {
+                return count == 2 && is(kinds[1], NAME);
+            }
+        });
+        // "checkAndAddUser username boardName boolean"
+        GRAMMAR.put("checkAndAddUser", new Grammar() {
+            boolean accepts(String[] tokens, int[] kinds, int count) {
+                return count == 4 && all(kinds, 1, 3, NAME) && isBoolean(tokens[3]);
+            }
+        });
+        // "hello username boardName boolean"
+        GRAMMAR.put("hello", new Grammar() {
+            boolean accepts(String[] tokens, int[] kinds, int count) {
+                return count == 4 && all(kinds, 1, 3, NAME) && isBoolean(tokens[3]);
+            }
+        });
+        // "newBoard boardName boolean"
+        GRAMMAR.put("newBoard", new Grammar() {
+            boolean accepts(String[] tokens, int[] kinds, int count) {
+                return count == 3 && is(kinds[1], NAME) && isBoolean(tokens[2]);
+            }
+        });
+        // "switch username oldBoardName newBoardName"
+        GRAMMAR.put("switch", new Grammar() {
+            boolean accepts(String[] tokens, int[] kinds, int count) {
+                return count == 4 && all(kinds, 1, 4, NAME);
+            }
+        });
+        GRAMMAR.put("testHello", new Grammar() {
+            boolean accepts(String[] tokens, int[] kinds, int count) {
+                return count == 1;
+            }
+        });
+        // "rejected reason"
+        GRAMMAR.put("rejected", new Grammar() {
+            boolean accepts(String[] tokens, int[] kinds, int count) {
+                return count == 2 && is(kinds[1], NAME);
+            }
+        });
+        // "reconnect delay"
+        GRAMMAR.put("reconnect", new Grammar() {
+            boolean accepts(String[] tokens, int[] kinds, int count) {
+                return count == 2 && is(kinds[1], NUMBER);
+            }
+        });
+        GRAMMAR.put("encoding", new Grammar() {
+            boolean accepts(String[] tokens, int[] kinds, int count) {
+                return count == 2 && tokens[1].equals("compact");
+            }
+        });
+        GRAMMAR.put("compress", new Grammar() {
+            boolean accepts(String[] tokens, int[] kinds, int count) {
+                return count == 2 && (tokens[1].equals("deflate") || tokens[1].equals("none"));
+            }
+        });
+        // "resume username boardName start firstSeq1 lastSeq1 ..." or "resume username boardName false"
+        GRAMMAR.put("resume", new Grammar() {
+            boolean accepts(String[] tokens, int[] kinds, int count) {
+                if (count < 4 || !all(kinds, 1, 3, NAME)) {
+                    return false;
+                }
+                if (count == 4 && tokens[3].equals("false")) {
+                    return true;
+                }
+                return count % 2 == 0 && all(kinds, 3, count, NUMBER);
+            }
+        });
+        // "subscribe boardName start firstSeq1 lastSeq1 ..." or "subscribe boardName false"
+        GRAMMAR.put("subscribe", new Grammar() {
+            boolean accepts(String[] tokens, int[] kinds, int count) {
+                if (count < 3 || !is(kinds[1], NAME)) {
+                    return false;
+                }
+                if (count == 3 && tokens[2].equals("false")) {
+                    return true;
+                }
+                return count % 2 == 1 && all(kinds, 2, count, NUMBER);
+            }
+        });
+        // "unsubscribe boardName", and "stale boardName"
+        Grammar board = new Grammar() {
+            boolean accepts(String[] tokens, int[] kinds, int count) {
+                return count == 2 && is(kinds[1], NAME);
+            }
+        };
+        GRAMMAR.put("unsubscribe", board);
+        GRAMMAR.put("stale", board);
+        // "seq boardName n"
+        GRAMMAR.put("seq", new Grammar() {
+            boolean accepts(String[] tokens, int[] kinds, int count) {
+                return count == 3 && is(kinds[1], NAME) && is(kinds[2], NUMBER);
+            }
+        });
+        // "undone boardName"
+        GRAMMAR.put("undone", new Grammar() {
+            boolean accepts(String[] tokens, int[] kinds, int count) {
+                return count == 2 && is(kinds[1], NAME);
+            }
+        });
+        // "undo boardName firstSeq1 lastSeq1 ...", and the same for redo
+        Grammar ranges = new Grammar() {
+            boolean accepts(String[] tokens, int[] kinds, int count) {
+                return count >= 4 && count % 2 == 0 && is(kinds[1], NAME) && all(kinds, 2, count, NUMBER);
+            }
+        };
+        GRAMMAR.put("undo", ranges);
+        GRAMMAR.put("redo", ranges);
+    }
+
+    private MessageParser() {
+    }
+
+    /**
+     * Splits a message into tokens and checks it against the grammar of its verb
+     * @param message: message from the server, without a request ID
+     * @return the tokens of the message, or null if it is not a valid message
+     */
+    public static String[] parse(String message) {
+        String[] tokens = new String[16];
+        int[] kinds = new int[16];
+        int count = 0;
+        int length = message.length();
+        int start = 0;
+        int kind = NAME | ARG | NUMBER;
+        for (int i = 0; i <= length; i++) {
+            char c = i < length ? message.charAt(i) : ' ';
+            if (c == ' ') {
+                if (i == start) {
+                    // empty token: leading, trailing or doubled space
+                    return null;
+                }
+                if (count == tokens.length) {
+                    tokens = Arrays.copyOf(tokens, 2 * count);
+                    kinds = Arrays.copyOf(kinds, 2 * count);
+                }
+                if (i - start > MAX_NUMBER_DIGITS) {
+                    kind &= ~NUMBER;
+                }
+                tokens[count] = message.substring(start, i);
+                kinds[count] = kind;
+                count++;
+                start = i + 1;
+                kind = NAME | ARG | NUMBER;
+            } else if (c >= '0' && c <= '9') {
+                kind &= ~SEPARATOR;
+            } else if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '.') {
+                kind &= NAME | ARG;
+            } else if (c == '-') {
+                kind &= ARG;
+            } else if (c == ';' && i == start) {
+                kind = SEPARATOR;
+            } else {
+                kind = 0;
+            }
+        }
+        Grammar grammar = GRAMMAR.get(tokens[0]);
+        if (grammar == null || !grammar.accepts(tokens, kinds, count)) {
+            return null;
+        }
+        return count == tokens.length ? tokens : Arrays.copyOf(tokens, count);
+    }
+
+    private static boolean is(int kind, int expected) {
+        return (kind & expected) != 0;
+    }
+
+    /**
+     * @return true if the tokens from start up to end are all of the expected class
+     */
+    private static boolean all(int[] kinds, int start, int end, int expected) {
+        for (int i = start; i < end; i++) {
+            if ((kinds[i] & expected) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isBoolean(String token) {
+        return token.equals("true") || token.equals("false");
+    }
+}
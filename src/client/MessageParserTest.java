@@ -0,0 +1,200 @@
+package client;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Testing Strategy:
+ *  Valid:
+ *      each verb, with the fewest and with several tokens;
+ *      negative draw arguments, batches of one and several commands
+ *  Invalid:
+ *      unknown verb, empty message, leading, trailing and doubled spaces,
+ *      characters outside the grammar, too few or too many tokens,
+ *      names where numbers are expected, numbers too long for a long,
+ *      batches with empty commands
+ *  Speed:
+ *      lines per second per core, against matching the regex handleRequest
+ *      used to build for every message
+ */
+public class MessageParserTest {
+
+    // the grammar as handleRequest used to match it, rebuilt for every message
+    private static boolean matchesLegacy(String input) {
+        String nameReg = "[a-zA-Z0-9\\.]+";
+        String argReg = "[a-zA-Z0-9\\.\\-]+";
+        String regex = "(draw "+nameReg+"(?: "+argReg+")++)|"
+                + "(drawBatch "+nameReg+"(?: "+argReg+")++(?: ;(?: "+argReg+")++)*+)|"
+                + "(users( "+nameReg+")+)|"
+                + "(exit "+nameReg+")|"
+                + "(boards( "+nameReg+")*)|"
+                + "(checkAndAddUser ("+nameReg+" "+nameReg+" (true|false)))|"
+                + "(newBoard "+nameReg+" (true|false))|"
+                + "(switch "+nameReg+" "+nameReg+" "+nameReg+")|(testHello)|"
+                + "(rejected "+nameReg+")|(reconnect [0-9]+)|(encoding compact)|(compress (deflate|none))|"
+                + "(resume "+nameReg+" "+nameReg+" (false|[0-9]+( [0-9]+ [0-9]+)*))|"
+                + "(seq "+nameReg+" [0-9]+)|(undone "+nameReg+")|((undo|redo) "+nameReg+"( [0-9]+ [0-9]+)+)";
+        return input.matches(regex);
+    }
+
+    private static final String[] VALID = {
+        "draw board drawLineSegment 1 2 3 4 16777216 10.0",
+        "draw board drawPolyline 5 5 16777216 1.0 -3 4 2 -1",
+        "drawBatch board drawLineSegment 1 2 3 4 16777216 10.0",
+        "drawBatch board drawLineSegment 1 2 3 4 16777216 10.0 ; clearBoard",
+        "users board",
+        "users board alice bob.2",
+        "boards",
+        "boards board1 board2",
+        "exit alice",
+        "checkAndAddUser alice board true",
+        "newBoard board false",
+        "switch alice board1 board2",
+        "testHello",
+        "rejected boardRate",
+        "reconnect 250",
+        "encoding compact",
+        "compress none",
+        "resume alice board false",
+        "resume alice board 7",
+        "resume alice board 7 0 3 5 6",
+        "seq board 12",
+        "undone board",
+        "undo board 3 4",
+        "redo board 3 4 8 9",
+    };
+
+    private static final String[] INVALID = {
+        "",
+        "hello board",
+        " boards",
+        "boards ",
+        "users  board",
+        "users",
+        "users board!",
+        "exit",
+        "exit alice bob",
+        "echo",
+        "draw board",
+        "draw -board drawLineSegment 1",
+        "draw board drawLineSegment 1 2;",
+        "drawBatch board ; clearBoard",
+        "drawBatch board clearBoard ;",
+        "drawBatch board clearBoard ; ; clearBoard",
+        "checkAndAddUser alice board maybe",
+        "hello alice board",
+        "hello alice board maybe",
+        "subscribe board",
+        "subscribe board 7 0",
+        "subscribe board true",
+        "unsubscribe",
+        "stale board 7",
+        "newBoard board",
+        "switch alice board",
+        "testHello again",
+        "reconnect soon",
+        "encoding text",
+        "compress gzip",
+        "resume alice board",
+        "resume alice board 7 0",
+        "resume alice board x 0 3",
+        "seq board 1234567890123456789",
+        "undo board 3",
+        "redo board",
+    };
+
+    /******************** Valid  *****************/
+    @Test
+    public void validTest() {
+        for (String line : VALID) {
+            String[] tokens = MessageParser.parse(line);
+            assertNotNull(line, tokens);
+            assertEquals(line, Arrays.asList(line.split(" ")), Arrays.asList(tokens));
+            assertTrue(line, matchesLegacy(line));
+        }
+        // added after the regex
+        assertEquals(Arrays.asList("echo", "board"), Arrays.asList(MessageParser.parse("echo board")));
+        assertEquals(Arrays.asList("hello", "alice", "board", "true"), Arrays.asList(MessageParser.parse("hello alice board true")));
+        for (String line : new String[] {"subscribe board 7", "subscribe board 7 0 3 5 6", "subscribe board false",
+                "unsubscribe board", "stale board"}) {
+            assertEquals(line, Arrays.asList(line.split(" ")), Arrays.asList(MessageParser.parse(line)));
+        }
+    }
+
+    @Test
+    public void manyTokensTest() {
+        StringBuilder line = new StringBuilder("draw board drawPolyline 0 0 16777216 1.0");
+        for (int i = 0; i < 100; i++) {
+            line.append(" 1 -1");
+        }
+        String[] tokens = MessageParser.parse(line.toString());
+        assertEquals(207, tokens.length);
+        assertEquals("-1", tokens[206]);
+    }
+
+    /******************** Invalid  *****************/
+    @Test
+    public void invalidTest() {
+        for (String line : INVALID) {
+            assertNull(line, MessageParser.parse(line));
+        }
+    }
+
+    /******************** Speed  *****************/
+    @Test
+    public void fasterThanRegexTest() {
+        int lines = 20000;
+        String[] messages = new String[lines];
+        for (int i = 0; i < lines; i++) {
+            // mostly draws, like the traffic of a busy board
+            messages[i] = i % 10 == 0 ? VALID[i / 10 % VALID.length]
+                    : "draw board drawLineSegment " + (i % 800) + " " + (i % 600) + " " + ((i + 3) % 800)
+                        + " " + ((i + 5) % 600) + " 16777216 10.0";
+        }
+        // warm up, so that both are measured as compiled code
+        for (int run = 0; run < 3; run++) {
+            legacy(messages);
+            parse(messages);
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long start = threads.getCurrentThreadCpuTime();
+        int matched = legacy(messages);
+        long legacyNanos = Math.max(1, threads.getCurrentThreadCpuTime() - start);
+        start = threads.getCurrentThreadCpuTime();
+        int parsed = parse(messages);
+        long parseNanos = Math.max(1, threads.getCurrentThreadCpuTime() - start);
+
+        assertEquals(lines, matched);
+        assertEquals(lines, parsed);
+        long legacyRate = lines * 1000000000L / legacyNanos;
+        long parseRate = lines * 1000000000L / parseNanos;
+        System.out.println("client messages per second per core: regex " + legacyRate + ", parser " + parseRate);
+        assertTrue("regex " + legacyRate + " lines/s, parser " + parseRate + " lines/s", parseRate > legacyRate);
+    }
+
+    private static int legacy(String[] messages) {
+        int matched = 0;
+        for (String message : messages) {
+            if (matchesLegacy(message) && message.split(" ").length > 0) {
+                matched++;
+            }
+        }
+        return matched;
+    }
+
+    private static int parse(String[] messages) {
+        int parsed = 0;
+        for (String message : messages) {
+            if (MessageParser.parse(message) != null) {
+                parsed++;
+            }
+        }
+        return parsed;
+    }
+}
@@ -0,0 +1,88 @@
+package client;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The server's reply to a request sent with a request ID.  Completed by the
+ * receive thread when a reply starting with the request's ID arrives, after
+ * the reply has been handled, so the client's state already reflects it.
+ *
+ * Concurrency Argument:
+ *   - This class is made concurrent by the monitor pattern
+ *
+ */
+public class ReplyFuture implements Future<String> {
+
+    private String reply;
+    private boolean done = false;
+    private boolean cancelled = false;
+
+    /**
+     * Completes the future with the server's reply; has no effect if it is already done
+     * @param reply: the reply, without its request ID
+     * @return true if this call completed the future
+     */
+    public synchronized boolean complete(String reply) {
+        if (done) {
+            return false;
+        }
+        this.reply = reply;
+        done = true;
+        notifyAll();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+        if (done) {
+            return false;
+        }
+        cancelled = true;
+        done = true;
+        notifyAll();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public synchronized String get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        return result();
+    }
+
+    @Override
+    public synchronized String get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!done) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return result();
+    }
+
+    private String result() {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        return reply;
+    }
+}
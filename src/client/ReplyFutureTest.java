@@ -0,0 +1,62 @@
+package client;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+/**
+ * Testing Strategy:
+ *  Complete:
+ *      completed before get, completed by another thread while get waits,
+ *      completed twice
+ *  Timeout and Cancel:
+ *      no reply before the timeout, cancelled then completed
+ */
+public class ReplyFutureTest {
+
+    /******************** Complete  *****************/
+    @Test
+    public void completeBeforeGetTest() throws Exception {
+        ReplyFuture reply = new ReplyFuture();
+        assertFalse(reply.isDone());
+        assertTrue(reply.complete("boards a b"));
+        assertFalse(reply.complete("boards c"));
+        assertTrue(reply.isDone());
+        assertEquals("boards a b", reply.get());
+    }
+
+    @Test
+    public void completeWhileWaitingTest() throws Exception {
+        final ReplyFuture reply = new ReplyFuture();
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+                reply.complete("users board alice");
+            }
+        }).start();
+        assertEquals("users board alice", reply.get(10, TimeUnit.SECONDS));
+    }
+
+    /******************** Timeout and Cancel  *****************/
+    @Test(expected=TimeoutException.class)
+    public void timeoutTest() throws Exception {
+        new ReplyFuture().get(20, TimeUnit.MILLISECONDS);
+    }
+
+    @Test(expected=CancellationException.class)
+    public void cancelTest() throws Exception {
+        ReplyFuture reply = new ReplyFuture();
+        assertTrue(reply.cancel(false));
+        assertFalse(reply.complete("boards"));
+        assertTrue(reply.isCancelled());
+        reply.get();
+    }
+}
@@ -0,0 +1,201 @@
+package log;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logging shared by the client and the server.  Messages below the current
+ * level are dropped by the caller's isEnabled() check, before their text is
+ * built.  Messages which are logged are queued and written to the console by
+ * one background thread, so a thread that logs never waits on the console;
+ * if the queue is full the message is dropped and counted.
+ *
+ * Messages about single requests and draws are logged at TRACE, or at DEBUG
+ * through a Sampler which lets through one in every getSampleRate() of them.
+ * Both are off at the default level, INFO.
+ *
+ * The level is read from the system property "whiteboard.log.level" and the
+ * sample rate from "whiteboard.log.sample"; both can be changed at run time.
+ *
+ * Concurrency Argument:
+ *   - the level and sample rate are volatile, the counters atomic
+ *   - the queue is thread safe, and only the appender thread writes to the console
+ *
+ */
+public class Log {
+
+    public enum Level { TRACE, DEBUG, INFO, WARN, ERROR, OFF }
+
+    // most messages waiting to be written; more are dropped
+    private static final int QUEUE_SIZE = 8192;
+
+    private static volatile Level level = parseLevel(System.getProperty("whiteboard.log.level"), Level.INFO);
+    private static volatile int sampleRate = parseRate(System.getProperty("whiteboard.log.sample"), 100);
+    private static final BlockingQueue<Message> queue = new ArrayBlockingQueue<Message>(QUEUE_SIZE);
+    private static final AtomicLong dropped = new AtomicLong();
+
+    static {
+        Thread appender = new Thread(new Runnable() {
+            public void run() {
+                append();
+            }
+        }, "Log");
+        appender.setDaemon(true);
+        appender.start();
+    }
+
+    private static class Message {
+        private final Level level;
+        private final String text;
+
+        Message(Level level, String text) {
+            this.level = level;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Lets through one in every getSampleRate() of the messages logged through it
+     */
+    public static class Sampler {
+        private final AtomicLong count = new AtomicLong();
+
+        /**
+         * @return true if a message of the given level should be logged:
+         *         always at TRACE, one in getSampleRate() at DEBUG
+         */
+        public boolean isEnabled(Level messageLevel) {
+            if (!Log.isEnabled(messageLevel)) {
+                return false;
+            }
+            return level == Level.TRACE || count.getAndIncrement() % sampleRate == 0;
+        }
+    }
+
+    private Log() {
+    }
+
+    /**
+     * @return true if messages of the given level are logged
+     */
+    public static boolean isEnabled(Level messageLevel) {
+        return messageLevel.compareTo(level) >= 0 && messageLevel != Level.OFF;
+    }
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    public static Level getLevel() {
+        return level;
+    }
+
+    /**
+     * @param rate: log one in rate sampled messages, at least 1
+     */
+    public static void setSampleRate(int rate) {
+        sampleRate = Math.max(1, rate);
+    }
+
+    public static int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * @return number of messages dropped because the queue was full
+     */
+    public static long getDropped() {
+        return dropped.get();
+    }
+
+    public static void trace(String text) {
+        log(Level.TRACE, text);
+    }
+
+    public static void debug(String text) {
+        log(Level.DEBUG, text);
+    }
+
+    public static void info(String text) {
+        log(Level.INFO, text);
+    }
+
+    public static void warn(String text) {
+        log(Level.WARN, text);
+    }
+
+    public static void error(String text) {
+        log(Level.ERROR, text);
+    }
+
+    /**
+     * Logs a message with the stack trace of an exception
+     */
+    public static void error(String text, Throwable e) {
+        if (isEnabled(Level.ERROR)) {
+            StringWriter trace = new StringWriter();
+            e.printStackTrace(new PrintWriter(trace));
+            log(Level.ERROR, text + System.getProperty("line.separator") + trace);
+        }
+    }
+
+    /**
+     * Queues a message if its level is enabled
+     */
+    public static void log(Level messageLevel, String text) {
+        if (isEnabled(messageLevel) && !queue.offer(new Message(messageLevel, text))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Writes queued messages to the console; warnings and errors go to the error stream
+     */
+    private static void append() {
+        long reportedDropped = 0;
+        while (true) {
+            Message message;
+            try {
+                message = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            long droppedNow = dropped.get();
+            if (droppedNow != reportedDropped) {
+                System.err.println("[WARN] " + (droppedNow - reportedDropped) + " log messages dropped");
+                reportedDropped = droppedNow;
+            }
+            PrintStream stream = message.level.compareTo(Level.WARN) >= 0 ? System.err : System.out;
+            stream.println("[" + message.level + "] " + message.text);
+        }
+    }
+
+    /**
+     * @return the level named by name, ignoring case, or otherwise if name is null or not a level
+     */
+    public static Level parseLevel(String name, Level otherwise) {
+        if (name == null) {
+            return otherwise;
+        }
+        try {
+            return Level.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return otherwise;
+        }
+    }
+
+    private static int parseRate(String rate, int otherwise) {
+        if (rate == null) {
+            return otherwise;
+        }
+        try {
+            return Math.max(1, Integer.parseInt(rate));
+        } catch (NumberFormatException e) {
+            return otherwise;
+        }
+    }
+}
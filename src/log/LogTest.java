@@ -0,0 +1,64 @@
+package log;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Testing Strategy:
+ *  Levels:
+ *      messages below, at and above the level; OFF
+ *  Sampling:
+ *      DEBUG lets through one in the sample rate, TRACE lets through all,
+ *      INFO lets through none of the DEBUG messages
+ */
+public class LogTest {
+
+    /******************** Levels  *****************/
+    @Test
+    public void levelTest() {
+        Log.Level saved = Log.getLevel();
+        try {
+            Log.setLevel(Log.Level.INFO);
+            assertFalse(Log.isEnabled(Log.Level.DEBUG));
+            assertTrue(Log.isEnabled(Log.Level.INFO));
+            assertTrue(Log.isEnabled(Log.Level.ERROR));
+            Log.setLevel(Log.Level.OFF);
+            assertFalse(Log.isEnabled(Log.Level.ERROR));
+            assertFalse(Log.isEnabled(Log.Level.OFF));
+            assertEquals(Log.Level.WARN, Log.parseLevel("warn", null));
+            assertNull(Log.parseLevel("loud", null));
+        } finally {
+            Log.setLevel(saved);
+        }
+    }
+
+    /******************** Sampling  *****************/
+    @Test
+    public void samplingTest() {
+        Log.Level savedLevel = Log.getLevel();
+        int savedRate = Log.getSampleRate();
+        try {
+            Log.setSampleRate(10);
+            Log.setLevel(Log.Level.DEBUG);
+            assertEquals(10, count(new Log.Sampler(), 100));
+            Log.setLevel(Log.Level.TRACE);
+            assertEquals(100, count(new Log.Sampler(), 100));
+            Log.setLevel(Log.Level.INFO);
+            assertEquals(0, count(new Log.Sampler(), 100));
+        } finally {
+            Log.setLevel(savedLevel);
+            Log.setSampleRate(savedRate);
+        }
+    }
+
+    private static int count(Log.Sampler sampler, int messages) {
+        int logged = 0;
+        for (int i = 0; i < messages; i++) {
+            if (sampler.isEnabled(Log.Level.DEBUG)) {
+                logged++;
+            }
+        }
+        return logged;
+    }
+}
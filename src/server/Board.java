@@ -1,63 +1,601 @@
 package server;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import Command.Command;
+import Command.CommandRegistry;
 
 /**
- * Object which represents a whiteboard stored on the server.  Stores a list
- * of all commands ever sent to whiteboard so that it can be recreated on all
+ * Object which represents a whiteboard stored on the server.  Stores a log
+ * of all draws ever sent to whiteboard so that it can be recreated on all
  * clients.  Also stores all current users connected to this whiteboard.
  * 
+ * Each draw message accepted on the board is one entry of the log and gets
+ * the next sequence number of the board, so clients, which receive the draws
+ * of a board in log order, can count the sequence numbers themselves.  A
+ * user can undo their last stroke: its entries are kept as tombstones, which
+ * the user can redo until they draw again.  A stroke is an entry and the
+ * earlier entries of the same user which it continues (see Entry.continues).
+ * 
+ * If a simplification tolerance is set, the last entry is held open while
+ * entries of the same user continue it, and merged with them into a single
+ * command, simplified by StrokeSimplifier, once the stroke ends: when an
+ * entry which does not continue it is added, or when the log is read.  The
+ * merged entry covers the sequence numbers of all the entries in it.
+ * 
+ * An entry with a clearBoard command drops every entry before it from the
+ * log, so the log starts over from a blank board.  An entry with a clearRect
+ * command drops the entries before it which lie entirely inside the cleared
+ * rectangle.  What a clear drops is gone, so clears cannot be undone.
+ * 
  * Concurrency Argument:
  *   - This class is made concurrent by the monitor pattern
+ *   - the users are guarded by the users list's own lock instead of the
+ *     board's, and nothing else is locked while it is held, so users are
+ *     entered and removed without taking any board's lock
  * 
  * @author Josh
  *
  */
 public class Board {
+    
+    // draw commands per second accepted on one board, summed over all of its users
+    public static final int COMMANDS_PER_SECOND = 2000;
+    // bytes of draw requests per second accepted on one board
+    public static final int BYTES_PER_SECOND = 256 * 1024;
+    // the limits allow bursts of this many seconds worth of traffic
+    private static final int BURST_SECONDS = 2;
+    // most strokes a user can redo; older undone strokes are dropped
+    public static final int MAX_REDO = 64;
+    // most entries undone as one stroke
+    private static final int MAX_STROKE_ENTRIES = 1024;
+
+    /**
+     * One draw message in the log of a board
+     */
+    public static class Entry {
+        private final long firstSeq;
+        private long lastSeq;
+        // the user who drew the entry, or null if it is not known
+        private final String author;
+        private List<Command> commands;
+        // the draw message as received, or null if it has to be made from the commands
+        private String message;
+        private boolean undone = false;
+        // whether the commands form one line of the same color and width, and if so its ends
+        private final boolean stroke;
+        private int startX, startY, endX, endY, color;
+        private float width;
+        // whether the entry has a clearBoard command
+        private boolean clearsBoard = false;
+        // the rectangles cleared by the entry's clearRect commands, as x, y, x+width, y+height
+        private List<int[]> clearedRects;
+        // whether the entry only draws inside the box (minX, minY)-(maxX, maxY)
+        private boolean bounded;
+        private int minX, minY, maxX, maxY;
+        
+        private Entry(long seq, String author, List<Command> commands, String message) {
+            this.firstSeq = seq;
+            this.lastSeq = seq;
+            this.author = author;
+            this.commands = commands;
+            this.message = message;
+            this.stroke = measureStroke();
+            this.bounded = measureBounds();
+        }
+        
+        /**
+         * @return the sequence number of the entry, the first one if it was merged from several
+         */
+        public long getFirstSeq() {
+            return firstSeq;
+        }
+        
+        /**
+         * @return the sequence number of the last entry merged into this one
+         */
+        public long getLastSeq() {
+            return lastSeq;
+        }
+        
+        public List<Command> getCommands() {
+            return Collections.unmodifiableList(commands);
+        }
+        
+        /**
+         * @return true if the entry has been undone
+         */
+        public boolean isUndone() {
+            return undone;
+        }
+        
+        /**
+         * @param boardName: the board of the entry
+         * @return the entry as one draw or drawBatch message
+         */
+        public String toMessage(String boardName) {
+            if (message == null) {
+                if (commands.size() == 1) {
+                    message = commands.get(0).toString();
+                } else {
+                    List<String> texts = new ArrayList<String>(commands.size());
+                    for (Command command : commands) {
+                        texts.add(command.getCommandString());
+                    }
+                    message = Command.toBatchString(boardName, texts);
+                }
+            }
+            return message;
+        }
+        
+        /**
+         * @param previous: an earlier entry
+         * @return true if this entry is a stroke which carries on from where previous,
+         *         a stroke by the same author (or both by unknown authors), ends,
+         *         with the same color and width
+         */
+        private boolean continues(Entry previous) {
+            boolean sameAuthor = author == null ? previous.author == null : author.equals(previous.author);
+            return stroke && previous.stroke && sameAuthor
+                    && color == previous.color && width == previous.width
+                    && startX == previous.endX && startY == previous.endY;
+        }
+        
+        /**
+         * @return true if the entry clears all or part of the board
+         */
+        private boolean clears() {
+            return clearsBoard || clearedRects != null;
+        }
+        
+        /**
+         * @return true if everything the entry draws lies inside one of the rectangles cleared by clear
+         */
+        private boolean clearedBy(Entry clear) {
+            if (clear.clearsBoard) {
+                return true;
+            }
+            if (!bounded || clear.clearedRects == null) {
+                return false;
+            }
+            for (int[] rect : clear.clearedRects) {
+                if (minX >= rect[0] && minY >= rect[1] && maxX < rect[2] && maxY < rect[3]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        /**
+         * Finds the box the entry's commands draw in, and the areas they clear
+         * @return true if every command draws inside a known box
+         */
+        private boolean measureBounds() {
+            minX = minY = Integer.MAX_VALUE;
+            maxX = maxY = Integer.MIN_VALUE;
+            boolean known = true;
+            for (Command command : commands) {
+                String name = command.getName();
+                if (name.equals("clearBoard")) {
+                    clearsBoard = true;
+                    continue;
+                }
+                if (!command.isValid()) {
+                    known = false;
+                    continue;
+                }
+                if (name.equals("drawLineSegment")) {
+                    int pad = pad(command.getFloat(5));
+                    include(command.getInt(0), command.getInt(1), pad);
+                    include(command.getInt(2), command.getInt(3), pad);
+                } else if (name.equals("drawPolyline") || name.equals("fillRegion")) {
+                    boolean polyline = name.equals("drawPolyline");
+                    int pad = pad(polyline ? command.getFloat(3) : 1);
+                    int x = command.getInt(0);
+                    int y = command.getInt(1);
+                    include(x, y, pad);
+                    for (int i = 0; i < command.getPointsLength(); i += 2) {
+                        x += command.getPoint(i);
+                        y += command.getPoint(i+1);
+                        include(x, y, pad);
+                    }
+                } else if (name.equals("drawRectangle") || name.equals("drawEllipse")) {
+                    int pad = pad(command.getFloat(5));
+                    include(command.getInt(0), command.getInt(1), pad);
+                    include(command.getInt(0) + command.getInt(2), command.getInt(1) + command.getInt(3), pad);
+                } else if (name.equals("clearRect")) {
+                    int x = command.getInt(0);
+                    int y = command.getInt(1);
+                    int rectangleWidth = command.getInt(2);
+                    int rectangleHeight = command.getInt(3);
+                    if (rectangleWidth > 0 && rectangleHeight > 0) {
+                        if (clearedRects == null) {
+                            clearedRects = new ArrayList<int[]>(1);
+                        }
+                        clearedRects.add(new int[] {x, y, x + rectangleWidth, y + rectangleHeight});
+                    }
+                    include(x, y, 0);
+                    include(x + rectangleWidth, y + rectangleHeight, 0);
+                } else {
+                    known = false;
+                }
+            }
+            return known && !clearsBoard && !commands.isEmpty();
+        }
+        
+        private void include(int x, int y, int pad) {
+            minX = Math.min(minX, x - pad);
+            minY = Math.min(minY, y - pad);
+            maxX = Math.max(maxX, x + pad);
+            maxY = Math.max(maxY, y + pad);
+        }
+        
+        /**
+         * @return how far a line of the given width may draw from its points, allowing for antialiasing
+         */
+        private static int pad(float width) {
+            return (int) Math.ceil(Math.abs(width) / 2) + 1;
+        }
+        
+        /**
+         * Finds the ends, color and width of the entry's commands
+         * @return true if they are drawLineSegment and drawPolyline commands of the
+         *         same color and width, each starting where the one before it ends
+         */
+        private boolean measureStroke() {
+            boolean first = true;
+            for (Command command : commands) {
+                boolean segment = command.getName().equals("drawLineSegment");
+                if (!command.isValid() || !segment && !command.getName().equals("drawPolyline")) {
+                    return false;
+                }
+                int x = command.getInt(0);
+                int y = command.getInt(1);
+                int commandColor = command.getInt(segment ? 4 : 2);
+                float commandWidth = command.getFloat(segment ? 5 : 3);
+                if (first) {
+                    startX = x;
+                    startY = y;
+                    color = commandColor;
+                    width = commandWidth;
+                    first = false;
+                } else if (x != endX || y != endY || commandColor != color || commandWidth != width) {
+                    return false;
+                }
+                if (segment) {
+                    endX = command.getInt(2);
+                    endY = command.getInt(3);
+                } else {
+                    endX = x;
+                    endY = y;
+                    for (int i = 0; i < command.getPointsLength(); i += 2) {
+                        endX += command.getPoint(i);
+                        endY += command.getPoint(i+1);
+                    }
+                }
+            }
+            return !first;
+        }
+    }
 
-    private LinkedList<Command> commands = new LinkedList<Command>();
-    private List<String> users = new LinkedList<String>();
+    private LinkedList<Entry> entries = new LinkedList<Entry>();
+    private long nextSeq = 0;
+    // strokes each user can redo, the last undone first
+    private final Map<String, LinkedList<List<Entry>>> redoStacks = new HashMap<String, LinkedList<List<Entry>>>();
+    private final List<String> users = new LinkedList<String>();
+    private final TokenBucket commandRate = new TokenBucket(COMMANDS_PER_SECOND, COMMANDS_PER_SECOND * BURST_SECONDS);
+    private final TokenBucket byteRate = new TokenBucket(BYTES_PER_SECOND, BYTES_PER_SECOND * BURST_SECONDS);
+    // greatest distance in pixels simplification may move a stroke, 0 to store commands as drawn
+    private double simplifyTolerance = 0;
+    // the open entry, whose points are strokeX and strokeY; null if there is none
+    private Entry openStroke;
+    private boolean openStrokeMerged;
+    private int[] strokeX = new int[64];
+    private int[] strokeY = new int[64];
+    private int strokePoints;
     
     /**
-     * Returns all commands ever sent to this board
-     * @return
+     * Sets how far simplification may move a stored stroke.  Strokes drawn
+     * from then on are simplified; 0 stores commands exactly as drawn.
+     * @param tolerance: distance in pixels, at least 0
+     */
+    public synchronized void setSimplifyTolerance(double tolerance) {
+        sealStroke();
+        simplifyTolerance = tolerance;
+    }
+    
+    /**
+     * Returns the commands of all entries of the log which are not undone
+     * @return a copy of the board's commands, which later draws do not change
      */
     public synchronized LinkedList<Command> getCommands() {
+        sealStroke();
+        LinkedList<Command> commands = new LinkedList<Command>();
+        for (Entry entry : entries) {
+            if (!entry.undone) {
+                commands.addAll(entry.commands);
+            }
+        }
         return commands;
     }
     
     /**
-     * Adds a command to the board
+     * Returns the entries of the log, including the undone entries which can still be redone.
+     * Only read the entries while holding the board's lock.
+     * @return a copy of the log, in sequence order
+     */
+    public synchronized List<Entry> getEntries() {
+        sealStroke();
+        return new ArrayList<Entry>(entries);
+    }
+    
+    /**
+     * @return the sequence number the next draw on the board will get
+     */
+    public synchronized long getNextSeq() {
+        return nextSeq;
+    }
+    
+    /**
+     * Adds a command to the board as an entry of its own
      * @param command
      */
     public synchronized void addCommand(Command command) {
-        this.commands.add(command);
+        addDraw(null, Collections.singletonList(command), null);
+    }
+    
+    /**
+     * Adds a batch of commands to the board as one entry, preserving their order
+     * @param commands
+     */
+    public synchronized void addCommands(List<Command> commands) {
+        addDraw(null, commands, null);
+    }
+    
+    /**
+     * Adds a draw message to the log as the next entry.  The author can no longer
+     * redo the strokes they undid.
+     * @param author: the user who drew it, or null if not known
+     * @param commands: the commands of the message, in order
+     * @param message: the draw message, or null to make it from the commands when needed
+     */
+    public synchronized void addDraw(String author, List<Command> commands, String message) {
+        if (author != null) {
+            LinkedList<List<Entry>> redoStack = redoStacks.remove(author);
+            if (redoStack != null) {
+                for (List<Entry> stroke : redoStack) {
+                    entries.removeAll(stroke);
+                }
+            }
+        }
+        Entry entry = new Entry(nextSeq++, author, commands, message);
+        if (openStroke != null && entry.continues(openStroke) && strokePoints - 1 + pointCount(entry) <= CommandRegistry.MAX_POINTS_LENGTH / 2) {
+            addStrokePoints(entry);
+            openStroke.lastSeq = entry.firstSeq;
+            openStroke.endX = entry.endX;
+            openStroke.endY = entry.endY;
+            openStrokeMerged = true;
+            return;
+        }
+        sealStroke();
+        if (entry.clears()) {
+            dropCleared(entry);
+        }
+        entries.add(entry);
+        if (simplifyTolerance > 0 && entry.stroke && pointCount(entry) + 1 <= CommandRegistry.MAX_POINTS_LENGTH / 2) {
+            openStroke = entry;
+            openStrokeMerged = false;
+            strokePoints = 0;
+            addStrokePoint(entry.startX, entry.startY);
+            addStrokePoints(entry);
+        }
+    }
+    
+    /**
+     * Drops the entries of the log which a clear covers, including undone ones
+     * @param clear: an entry which clears all or part of the board, about to be added
+     */
+    private void dropCleared(Entry clear) {
+        if (clear.clearsBoard) {
+            entries = new LinkedList<Entry>();
+            redoStacks.clear();
+            return;
+        }
+        List<Entry> dropped = new ArrayList<Entry>();
+        Iterator<Entry> it = entries.iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.clearedBy(clear)) {
+                it.remove();
+                dropped.add(entry);
+            }
+        }
+        if (dropped.isEmpty()) {
+            return;
+        }
+        // an undone entry which is dropped can no longer be redone
+        for (LinkedList<List<Entry>> redoStack : redoStacks.values()) {
+            Iterator<List<Entry>> strokes = redoStack.iterator();
+            while (strokes.hasNext()) {
+                List<Entry> stroke = strokes.next();
+                stroke.removeAll(dropped);
+                if (stroke.isEmpty()) {
+                    strokes.remove();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Undoes the last stroke of a user which is not undone
+     * @param author: the user
+     * @return the entries undone, in sequence order; empty if the user has nothing to undo
+     */
+    public synchronized List<Entry> undo(String author) {
+        sealStroke();
+        List<Entry> stroke = new LinkedList<Entry>();
+        Entry last = null;
+        Iterator<Entry> it = entries.descendingIterator();
+        while (it.hasNext() && stroke.size() < MAX_STROKE_ENTRIES) {
+            Entry entry = it.next();
+            if (entry.undone || entry.clears() || author == null || !author.equals(entry.author)) {
+                continue;
+            }
+            if (last != null && !last.continues(entry)) {
+                break;
+            }
+            stroke.add(0, entry);
+            last = entry;
+        }
+        if (stroke.isEmpty()) {
+            return stroke;
+        }
+        for (Entry entry : stroke) {
+            entry.undone = true;
+        }
+        LinkedList<List<Entry>> redoStack = redoStacks.get(author);
+        if (redoStack == null) {
+            redoStack = new LinkedList<List<Entry>>();
+            redoStacks.put(author, redoStack);
+        }
+        redoStack.addFirst(stroke);
+        if (redoStack.size() > MAX_REDO) {
+            entries.removeAll(redoStack.removeLast());
+        }
+        return stroke;
+    }
+    
+    /**
+     * Redoes the stroke a user undid last
+     * @param author: the user
+     * @return the entries redone, in sequence order; empty if the user has nothing to redo
+     */
+    public synchronized List<Entry> redo(String author) {
+        LinkedList<List<Entry>> redoStack = redoStacks.get(author);
+        if (redoStack == null || redoStack.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Entry> stroke = redoStack.removeFirst();
+        for (Entry entry : stroke) {
+            entry.undone = false;
+        }
+        return stroke;
+    }
+    
+    /**
+     * @return number of points the commands of a stroke entry add after its start
+     */
+    private static int pointCount(Entry entry) {
+        int count = 0;
+        for (Command command : entry.commands) {
+            count += command.getName().equals("drawLineSegment") ? 1 : command.getPointsLength() / 2;
+        }
+        return count;
+    }
+    
+    /**
+     * Adds the points of a stroke entry, after its start, to the open stroke
+     */
+    private void addStrokePoints(Entry entry) {
+        for (Command command : entry.commands) {
+            if (command.getName().equals("drawLineSegment")) {
+                addStrokePoint(command.getInt(2), command.getInt(3));
+            } else {
+                for (int i = 0; i < command.getPointsLength(); i += 2) {
+                    addStrokePoint(strokeX[strokePoints-1] + command.getPoint(i), strokeY[strokePoints-1] + command.getPoint(i+1));
+                }
+            }
+        }
+    }
+    
+    private void addStrokePoint(int x, int y) {
+        if (strokePoints == strokeX.length) {
+            strokeX = Arrays.copyOf(strokeX, 2 * strokeX.length);
+            strokeY = Arrays.copyOf(strokeY, strokeX.length);
+        }
+        strokeX[strokePoints] = x;
+        strokeY[strokePoints] = y;
+        strokePoints++;
+    }
+    
+    /**
+     * Replaces the commands of the open entry, if any, with a single simplified command
+     */
+    private void sealStroke() {
+        if (openStroke == null) {
+            return;
+        }
+        Entry entry = openStroke;
+        openStroke = null;
+        int drawn = strokePoints;
+        int kept = StrokeSimplifier.simplify(strokeX, strokeY, strokePoints, simplifyTolerance);
+        if (!openStrokeMerged && entry.commands.size() == 1 && kept == drawn) {
+            return;
+        }
+        String[] arguments = new String[4 + 2*(kept-1)];
+        arguments[0] = Integer.toString(strokeX[0]);
+        arguments[1] = Integer.toString(strokeY[0]);
+        arguments[2] = Integer.toString(entry.color);
+        arguments[3] = Float.toString(entry.width);
+        for (int i = 1; i < kept; i++) {
+            arguments[2 + 2*i] = Integer.toString(strokeX[i] - strokeX[i-1]);
+            arguments[3 + 2*i] = Integer.toString(strokeY[i] - strokeY[i-1]);
+        }
+        String boardName = entry.commands.get(0).getBoardName();
+        entry.commands = Collections.singletonList(new Command(boardName, "drawPolyline", arguments));
+        entry.message = null;
+        // the bounds measured when the stroke opened cover only its first draw
+        entry.bounded = entry.measureBounds();
+    }
+    
+    /**
+     * Checks a draw request against the board's rate limits
+     * @param commandCount: number of commands in the request
+     * @param bytes: size of the request
+     * @return true if the request may be drawn on the board, false if it is throttled
+     */
+    public synchronized boolean admitDraw(int commandCount, int bytes) {
+        if (!commandRate.tryConsume(commandCount)) {
+            return false;
+        }
+        if (!byteRate.tryConsume(bytes)) {
+            // a throttled request is not charged to the board
+            commandRate.refund(commandCount);
+            return false;
+        }
+        return true;
     }
     
     /**
      * Deletes user from board if user is in board
      * @param username
      */
-    public synchronized void deleteUser(String username) {
-    	Iterator<String> it = users.iterator();
-    	while(it.hasNext()) {
-    		String user = it.next();
-    		if (user.equals(username)) {
-    			it.remove();
-    		}
-    	}
+    public void deleteUser(String username) {
+        synchronized (users) {
+            Iterator<String> it = users.iterator();
+            while (it.hasNext()) {
+                if (it.next().equals(username)) {
+                    it.remove();
+                }
+            }
+        }
     }
     
     /**
      * Adds user to board
      * @param username
      */
-    public synchronized void addUser(String username) {
-        users.add(username);
+    public void addUser(String username) {
+        synchronized (users) {
+            users.add(username);
+        }
     }
     
     /**
@@ -65,17 +603,21 @@ public class Board {
      * @param username
      * @return: true if username is not contained in board's users, false otherwise
      */
-    public synchronized boolean checkUsernameAvailable(String username) {
-        return !users.contains(username);
+    public boolean checkUsernameAvailable(String username) {
+        synchronized (users) {
+            return !users.contains(username);
+        }
     }
     
     /**
      * Returns list of all users in board
      * @return
      */
-    public synchronized String[] getUsers() {
-        String[] usersArray = new String[users.size()];
-    	return users.toArray(usersArray);
+    public String[] getUsers() {
+        synchronized (users) {
+            String[] usersArray = new String[users.size()];
+            return users.toArray(usersArray);
+        }
     }
 
 }
@@ -0,0 +1,512 @@
+package server;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import Command.Command;
+import Command.CompactEncoding;
+
+import log.Log;
+
+/**
+ * Outbound side of a client connection.  Messages are queued in one of two
+ * lanes and written to the socket by a dedicated writer thread:
+ *   - the control lane holds small replies (boards, newBoard, users,
+ *     checkAndAddUser, exit, rejections) and is always written first
+ *   - the bulk lane holds draw broadcasts and switch history dumps, written
+ *     in the order they were queued so that draws on a board keep their order
+ * Bulk messages are written in slices that end on line boundaries, so control
+ * replies can be interleaved between the lines of a large history dump.
+ * 
+ * A connection follows the board its user is on and the boards it subscribed
+ * to, which its client shows in background tabs; draws on other boards are
+ * not sent to it.  A connection which has chosen no board yet follows every
+ * board.  At most MAX_BACKGROUND_DRAWS draws of each background board wait
+ * in the bulk lane: beyond that, the board's draws are dropped and the client
+ * is sent "stale boardName", so a busy background board can not hold up the
+ * board the user is drawing on.  The client subscribes to a stale board again
+ * to receive the part of its log it missed.
+ * 
+ * The bulk lane as a whole holds at most MAX_QUEUED_BULK_CHARS characters,
+ * besides a single message queued while the lane is empty, such as the log
+ * of a large board.  A client which stops reading falls that far behind on
+ * the board the user is on, whose draws are never dropped; the connection is
+ * then closed, and the client reconnects and resumes the board's log from
+ * the last entry it received.
+ * 
+ * Once the client asks for compact encoding, draws are encoded for it with
+ * its own CompactEncoding.Encoder.  A draw is encoded and queued while
+ * holding the encoder's lock, so palette declarations are always queued
+ * before the draws which use them.  A reconnecting client sends the palette
+ * of its earlier connection with its request, and the encoder starts from it.
+ * 
+ * Once the client asks for compression, everything written after the reply
+ * to that request goes through a DEFLATE stream.  The stream is sync-flushed
+ * whenever the lanes run empty, so a live draw is never held back waiting
+ * for more data.  The compression ratio and the time spent compressing are
+ * reported when the connection closes.
+ * 
+ * Concurrency Argument:
+ *   - the lanes are guarded by the monitor pattern
+ *   - only the writer thread touches the socket's output stream, so
+ *     messages from different threads never interleave mid-line
+ *
+ */
+public class ClientConnection implements Runnable {
+    
+    // approximate number of characters of a bulk message written between checks of the control lane
+    private static final int BULK_SLICE_SIZE = 8 * 1024;
+    // most draws of one background board waiting in the bulk lane
+    public static final int MAX_BACKGROUND_DRAWS = 256;
+    // most characters waiting in the bulk lane before the connection is closed
+    public static final int MAX_QUEUED_BULK_CHARS = 8 * 1024 * 1024;
+    
+    /**
+     * A message of the bulk lane, with the board whose draw it is
+     */
+    private static class Bulk {
+        private final String message;
+        // the board of the draw, or null if the message is not a draw
+        private final String boardName;
+        
+        Bulk(String message, String boardName) {
+            this.message = message;
+            this.boardName = boardName;
+        }
+    }
+    
+    private final Socket socket;
+    private Writer out;
+    private final String newLine = System.getProperty("line.separator");
+    private final Deque<String> controlLane = new ArrayDeque<String>();
+    private final Deque<Bulk> bulkLane = new ArrayDeque<Bulk>();
+    // the board the user is on, or null until the user logs in
+    private volatile String currentBoard;
+    // the boards shown in the client's background tabs
+    private final Set<String> subscriptions = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // number of draws of each board waiting in the bulk lane
+    private final Map<String, Integer> queuedDraws = new HashMap<String, Integer>();
+    // number of characters of the messages waiting in the bulk lane
+    private long queuedBulkChars = 0;
+    // background boards whose draws are dropped until the client subscribes to them again
+    private final Set<String> staleBoards = new HashSet<String>();
+    private boolean closed = false;
+    // true while both lanes are empty and everything written has been flushed
+    private boolean idle = true;
+    private final CompactEncoding.Encoder encoder = new CompactEncoding.Encoder();
+    // true once the client has asked for compact encoding; never reset
+    private volatile boolean compact = false;
+    // the reply after which output is compressed, or null if compression was not asked for
+    private String compressionReply;
+    // compresses the output once compression has started, otherwise null; set only by the writer thread
+    private volatile TimedDeflater deflater;
+    // the compression stats of the connection once its deflater is released, otherwise null
+    private volatile String compressionStats;
+    
+    /**
+     * Deflater which keeps the time spent compressing
+     */
+    private static class TimedDeflater extends Deflater {
+        private long nanos = 0;
+        
+        public TimedDeflater() {
+            super(Deflater.DEFAULT_COMPRESSION);
+        }
+        
+        @Override
+        public int deflate(byte[] b, int off, int len, int flush) {
+            long start = System.nanoTime();
+            try {
+                return super.deflate(b, off, len, flush);
+            } finally {
+                nanos += System.nanoTime() - start;
+            }
+        }
+    }
+    
+    public ClientConnection(Socket socket) throws IOException {
+        this.socket = socket;
+        this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+    }
+    
+    /**
+     * Starts the writer thread of this connection
+     */
+    public void start() {
+        new Thread(this).start();
+    }
+    
+    /**
+     * Queues a control reply, written ahead of any pending bulk traffic
+     * @param message: the reply, without a line terminator
+     */
+    public synchronized void sendControl(String message) {
+        if (!closed) {
+            controlLane.add(message);
+            idle = false;
+            notifyAll();
+        }
+    }
+    
+    /**
+     * Queues a control reply, after which everything written to the client is compressed
+     * @param message: the reply, without a line terminator; written uncompressed
+     */
+    public synchronized void sendControlAndCompress(String message) {
+        if (!closed && compressionReply == null) {
+            compressionReply = message;
+            sendControl(message);
+        }
+    }
+    
+    /**
+     * Queues bulk traffic, written after all bulk traffic queued before it
+     * @param message: the message, without a final line terminator
+     */
+    public void sendBulk(String message) {
+        sendBulk(message, null);
+    }
+    
+    private void sendBulk(String message, String boardName) {
+        if (!queueBulk(message, boardName)) {
+            Log.info("Connection " + socket.getRemoteSocketAddress() + " closed: client not reading, over "
+                    + MAX_QUEUED_BULK_CHARS + " characters queued");
+            close();
+        }
+    }
+    
+    /**
+     * @return false if the message was not queued because the bulk lane is full
+     */
+    private synchronized boolean queueBulk(String message, String boardName) {
+        if (closed) {
+            return true;
+        }
+        if (queuedBulkChars > 0 && queuedBulkChars + message.length() > MAX_QUEUED_BULK_CHARS) {
+            return false;
+        }
+        bulkLane.add(new Bulk(message, boardName));
+        queuedBulkChars += message.length();
+        idle = false;
+        notifyAll();
+        return true;
+    }
+    
+    /**
+     * Queues a draw broadcast as bulk traffic, compact encoded if the client asked for it.
+     * Nothing is queued if the connection does not follow the board, or if the board is
+     * a background board with MAX_BACKGROUND_DRAWS draws waiting.  Called while holding
+     * the board's lock.
+     * @param boardName: the board the commands are drawn on
+     * @param commands: the commands of the draw, in order
+     * @param message: the draw as text
+     */
+    public void sendDraw(String boardName, List<Command> commands, String message) {
+        // decided before encoding, so a palette declaration is never dropped with a draw
+        if (!follows(boardName) || !admitDraw(boardName)) {
+            return;
+        }
+        if (!compact) {
+            sendBulk(message, boardName);
+            return;
+        }
+        synchronized (encoder) {
+            sendBulk(encoder.encode(boardName, commands, message), boardName);
+        }
+    }
+    
+    /**
+     * Queues a message about a board, such as an undo, if the connection follows the board
+     * @param boardName: the board the message is about
+     * @param message: the message, without a final line terminator
+     */
+    public void sendBoardMessage(String boardName, String message) {
+        if (follows(boardName)) {
+            sendBulk(message);
+        }
+    }
+    
+    /**
+     * Counts a draw about to be queued, or drops it if its board is a background
+     * board whose draws are not being read fast enough
+     * @return true if the draw is to be queued
+     */
+    private synchronized boolean admitDraw(String boardName) {
+        if (boardName.equals(currentBoard)) {
+            return true;
+        }
+        if (staleBoards.contains(boardName)) {
+            return false;
+        }
+        Integer queued = queuedDraws.get(boardName);
+        if (queued != null && queued >= MAX_BACKGROUND_DRAWS) {
+            staleBoards.add(boardName);
+            // after the draws already queued, so the client knows where its log stops
+            sendBulk("stale " + boardName);
+            return false;
+        }
+        queuedDraws.put(boardName, queued == null ? 1 : queued + 1);
+        return true;
+    }
+    
+    /**
+     * Uncounts a draw once it is written
+     */
+    private synchronized void drawWritten(String boardName) {
+        Integer queued = queuedDraws.get(boardName);
+        if (queued == null) {
+            return;
+        }
+        if (queued <= 1) {
+            queuedDraws.remove(boardName);
+        } else {
+            queuedDraws.put(boardName, queued - 1);
+        }
+    }
+    
+    /**
+     * @param boardName: a board
+     * @return true if draws on the board are sent to the client
+     */
+    public boolean follows(String boardName) {
+        String current = currentBoard;
+        if (current == null && subscriptions.isEmpty()) {
+            return true;
+        }
+        return boardName.equals(current) || subscriptions.contains(boardName);
+    }
+    
+    /**
+     * Sets the board the user is on, whose draws are never dropped.  Called
+     * while holding the board's lock, before the board's log is queued.
+     * @param boardName: the board
+     */
+    public synchronized void setCurrentBoard(String boardName) {
+        currentBoard = boardName;
+        staleBoards.remove(boardName);
+    }
+    
+    /**
+     * Follows a board shown in a background tab of the client.  Called while
+     * holding the board's lock, before the part of the board's log the client
+     * is missing is queued.
+     * @param boardName: the board
+     */
+    public synchronized void subscribe(String boardName) {
+        subscriptions.add(boardName);
+        staleBoards.remove(boardName);
+    }
+    
+    /**
+     * Stops following a board the client no longer shows, unless the user is on it
+     * @param boardName: the board
+     */
+    public synchronized void unsubscribe(String boardName) {
+        subscriptions.remove(boardName);
+        staleBoards.remove(boardName);
+    }
+    
+    /**
+     * @return number of boards subscribed to
+     */
+    public int getSubscriptionCount() {
+        return subscriptions.size();
+    }
+    
+    /**
+     * @param boardName: a board
+     * @return true if the board's draws are being dropped until the client subscribes to it again
+     */
+    public synchronized boolean isStale(String boardName) {
+        return staleBoards.contains(boardName);
+    }
+    
+    /**
+     * Switches the connection to compact encoding of draws
+     * @param palette: the colors the client already has by palette index, from an
+     *        earlier connection; ignored if draws have been encoded for the client
+     *        or the colors are not a valid palette
+     */
+    public void setCompact(int[] palette) {
+        synchronized (encoder) {
+            encoder.seed(palette);
+            compact = true;
+        }
+    }
+    
+    /**
+     * @return true if draws are compact encoded for the client
+     */
+    public boolean isCompact() {
+        return compact;
+    }
+    
+    /**
+     * @return the encoder of the connection; hold its lock from encoding a message until it is queued
+     */
+    public CompactEncoding.Encoder getEncoder() {
+        return encoder;
+    }
+    
+    /**
+     * Writes queued messages to the socket until the connection is closed
+     */
+    @Override
+    public void run() {
+        String bulkMessage = null;
+        String bulkBoard = null;
+        int bulkOffset = 0;
+        try {
+            while (true) {
+                String controlMessage;
+                boolean idle;
+                synchronized (this) {
+                    if (closed) {
+                        return;
+                    }
+                    controlMessage = controlLane.poll();
+                    if (controlMessage == null && bulkMessage == null) {
+                        Bulk bulk = bulkLane.poll();
+                        if (bulk != null) {
+                            queuedBulkChars -= bulk.message.length();
+                            bulkMessage = bulk.message;
+                            bulkBoard = bulk.boardName;
+                            bulkOffset = 0;
+                        }
+                    }
+                    idle = controlMessage == null && bulkMessage == null;
+                }
+                if (idle) {
+                    // nothing left to write: push out what was written and wait for more
+                    out.flush();
+                    synchronized (this) {
+                        idle = controlLane.isEmpty() && bulkLane.isEmpty();
+                        notifyAll();
+                        while (controlLane.isEmpty() && bulkLane.isEmpty() && !closed) {
+                            wait();
+                        }
+                    }
+                    continue;
+                }
+                if (controlMessage != null) {
+                    out.write(controlMessage);
+                    out.write(newLine);
+                    if (controlMessage == compressionReply && deflater == null) {
+                        startCompression();
+                    }
+                } else {
+                    int end = bulkMessage.indexOf('\n', bulkOffset + BULK_SLICE_SIZE);
+                    if (end < 0) {
+                        out.write(bulkMessage, bulkOffset, bulkMessage.length() - bulkOffset);
+                        out.write(newLine);
+                        bulkMessage = null;
+                        if (bulkBoard != null) {
+                            drawWritten(bulkBoard);
+                        }
+                    } else {
+                        out.write(bulkMessage, bulkOffset, end + 1 - bulkOffset);
+                        bulkOffset = end + 1;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // connection has closed
+        } catch (InterruptedException e) {
+            Log.error("Writer interrupted", e);
+        } finally {
+            close();
+            if (deflater != null) {
+                compressionStats = getCompressionStats();
+                Log.info("Connection " + socket.getRemoteSocketAddress() + " compression: " + compressionStats);
+                deflater.end();
+            }
+        }
+    }
+    
+    /**
+     * Flushes what was written so far uncompressed and compresses everything written after it.
+     * Called only by the writer thread.
+     */
+    private void startCompression() throws IOException {
+        out.flush();
+        deflater = new TimedDeflater();
+        out = new BufferedWriter(new OutputStreamWriter(new DeflaterOutputStream(socket.getOutputStream(), deflater, true)));
+    }
+    
+    /**
+     * @return the compression ratio and time spent compressing, or "off" if the output is not compressed
+     */
+    public String getCompressionStats() {
+        if (compressionStats != null) {
+            return compressionStats;
+        }
+        TimedDeflater compressor = deflater;
+        if (compressor == null) {
+            return "off";
+        }
+        long in = compressor.getBytesRead();
+        long out = compressor.getBytesWritten();
+        return "in=" + in + " out=" + out + " ratio=" + String.format("%.1f", out == 0 ? 0 : (double) in / out)
+                + " cpuMillis=" + compressor.nanos / 1000000;
+    }
+    
+    /**
+     * Waits until everything queued on this connection has been written and flushed
+     * @param deadline: System.nanoTime() after which to stop waiting
+     * @return true if the connection drained, false if the deadline passed first
+     * @throws InterruptedException
+     */
+    public synchronized boolean awaitIdle(long deadline) throws InterruptedException {
+        while (!idle && !closed) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining / 1000000 + 1);
+        }
+        return true;
+    }
+    
+    /**
+     * Drops all queued messages and closes the socket
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            controlLane.clear();
+            bulkLane.clear();
+            queuedBulkChars = 0;
+            notifyAll();
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.debug("Could not close socket: " + e);
+        }
+    }
+    
+    /**
+     * @return true once the connection has been closed
+     */
+    public synchronized boolean isClosed() {
+        return closed || socket.isClosed();
+    }
+    
+    public Socket getSocket() {
+        return socket;
+    }
+}
@@ -0,0 +1,57 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+/**
+ * Executor which runs its tasks one at a time, in the order they were
+ * submitted, on threads of an underlying shared executor.  Used to keep the
+ * requests of one connection to one board in order while requests to other
+ * boards run in parallel.
+ * 
+ * Concurrency Argument:
+ *   - This class is made concurrent by the monitor pattern
+ *   - a task is handed to the underlying executor only after the previous
+ *     task has finished, so at most one task of this executor runs at a time
+ *
+ */
+public class SerialExecutor implements Executor {
+    
+    private final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+    private final Executor executor;
+    private Runnable active;
+    
+    /**
+     * @param executor: the executor whose threads run the tasks
+     */
+    public SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+    
+    /**
+     * Queues task to run after every task submitted before it has finished
+     */
+    @Override
+    public synchronized void execute(final Runnable task) {
+        tasks.add(new Runnable() {
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    scheduleNext();
+                }
+            }
+        });
+        if (active == null) {
+            scheduleNext();
+        }
+    }
+    
+    private synchronized void scheduleNext() {
+        active = tasks.poll();
+        if (active != null) {
+            executor.execute(active);
+        }
+    }
+}
@@ -10,9 +10,15 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import Command.Command;
 
+import log.Log;
+
 /**
  * Server for collaborative whiteboard application
  * 
@@ -25,10 +31,29 @@ import Command.Command;
  */
 public class Server {
     
+    // most client connections served at once
+    public static final int DEFAULT_MAX_CONNECTIONS = 256;
+    // time allowed to drain connections when the server is shut down, in milliseconds
+    public static final long DEFAULT_DRAIN_TIMEOUT = 5000;
+    // clients are told to reconnect after a random delay of up to this many milliseconds
+    public static final int RECONNECT_SPREAD = 10000;
+    // threads handling client requests
+    private static final int WORKER_THREADS = 2 * Runtime.getRuntime().availableProcessors();
+    
     //stores all the boards created as Board objects associated with names
     private Hashtable<String, Board> boards = new Hashtable<String, Board>();
-    private List<Socket> clients = new LinkedList<Socket>();
+    private List<ClientConnection> clients = new CopyOnWriteArrayList<ClientConnection>();
     private final ServerSocket serverSocket;
+    private final ServerMetrics metrics = new ServerMetrics();
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    // tolerance in pixels of the stroke simplification of stored history, 0 if it is off
+    private double simplifyTolerance = 0;
+    // true if clients may ask for a compressed stream
+    private volatile boolean compressionEnabled = true;
+    private volatile boolean draining = false;
+    // threads which handle the requests read by every ServerProtocol
+    private final ExecutorService workers = Executors.newFixedThreadPool(WORKER_THREADS);
+    private final Random random = new Random();
     
     /**
      * Create our server on port port
@@ -43,24 +68,86 @@ public class Server {
  
     /**
      * Run the server, listening for client connections and handling them.
-     * Never returns unless an exception is thrown.
+     * Never returns unless an exception is thrown or the server is drained.
      * 
      * @throws IOException if the main server socket is broken
      *   Note: (IOExceptions from individual clients do *not* terminate serve())
      */
     public void serve() throws IOException {
-    	System.out.println("Server serving");
+    	Log.info("Server serving");
         while (true) {
         	
             // block until a client connects
-            Socket socket = serverSocket.accept();
-            clients.add(socket);
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (draining) {
+                    // drain() closed the server socket
+                    return;
+                }
+                throw e;
+            }
+            if (clients.size() >= maxConnections) {
+                rejectConnection(socket);
+                continue;
+            }
+            ClientConnection connection;
+            try {
+                connection = new ClientConnection(socket);
+            } catch (IOException e) {
+                Log.warn("Could not open connection: " + e);
+                socket.close();
+                continue;
+            }
+            clients.add(connection);
+            connection.start();
 
             // create new thread for each connection
-            new Thread(new ServerProtocol(socket, this)).start();
+            new Thread(new ServerProtocol(connection, this)).start();
+        }
+    }
+    
+    /**
+     * Tells a client that the server is full and closes its connection
+     * @param socket: the connection to turn away
+     */
+    private void rejectConnection(Socket socket) {
+        metrics.connectionRejected();
+        try {
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            out.println("rejected serverFull");
+            socket.close();
+        } catch (IOException e) {
+            Log.debug("Could not reject connection: " + e);
         }
     }
     
+    /**
+     * Forgets a client connection once it has closed
+     * @param connection: the connection that closed
+     */
+    public void removeClient(ClientConnection connection) {
+        clients.remove(connection);
+    }
+    
+    /**
+     * Sets the most client connections served at once.  Connections beyond
+     * the limit are told "rejected serverFull" and closed.
+     * @param maxConnections
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+    
+    /**
+     * Returns the counters of traffic turned away by the server
+     * @return
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+    
     /**
      * Add the command on the server's queue of commands Requires valid board
      * name
@@ -72,6 +159,140 @@ public class Server {
         boards.get(boardName).addCommand(command);
     }
     
+    /**
+     * Adds a batch of commands to the board's queue of commands in one step
+     * Requires valid board name
+     * 
+     * @param boardName: the board to draw on
+     * @param commands: the commands to perform on the board, in order
+     */
+    public void updateBoard(String boardName, List<Command> commands) {
+        boards.get(boardName).addCommands(commands);
+    }
+    
+    /**
+     * Adds commands to a board and broadcasts them as one message.  Both happen
+     * while holding the board's lock, so every client receives the draws on a
+     * board in the order they were stored.
+     * Requires valid board name
+     * 
+     * @param boardName: the board to draw on
+     * @param author: the user drawing, or null if not known
+     * @param commands: the commands to perform on the board, in order
+     * @param message: the message which carries the commands to the clients
+     */
+    public void draw(String boardName, String author, List<Command> commands, String message) {
+        draw(boardName, author, commands, message, null, null);
+    }
+    
+    /**
+     * Like draw, but the author's connection is sent a short echo in place of
+     * the draw, which its client has already drawn.  The echo takes the draw's
+     * place among the other draws on the board, so the author can still tell
+     * in which order the server stored them.
+     * Requires valid board name
+     * 
+     * @param boardName: the board to draw on
+     * @param author: the user drawing, or null if not known
+     * @param commands: the commands to perform on the board, in order
+     * @param message: the message which carries the commands to the clients
+     * @param authorConnection: the connection the draw came from, or null to send it the draw
+     * @param echo: the message sent to authorConnection instead of the draw
+     */
+    public void draw(String boardName, String author, List<Command> commands, String message,
+            ClientConnection authorConnection, String echo) {
+        Board board = boards.get(boardName);
+        synchronized (board) {
+            board.addDraw(author, commands, message);
+            sendDrawToClients(boardName, commands, message, authorConnection, echo);
+        }
+    }
+    
+    /**
+     * Undoes the last stroke of a user on a board and tells the clients
+     * which entries of the board's log were undone, as
+     * "undo boardName firstSeq1 lastSeq1 firstSeq2 lastSeq2 ..."
+     * Requires valid board name
+     * 
+     * @param boardName: the board to undo on
+     * @param author: the user undoing
+     * @return true if there was a stroke to undo
+     */
+    public boolean undo(String boardName, String author) {
+        Board board = boards.get(boardName);
+        synchronized (board) {
+            return sendSeqRanges("undo", boardName, board.undo(author));
+        }
+    }
+    
+    /**
+     * Redoes the stroke a user undid last on a board and tells the clients
+     * which entries of the board's log were redone, as
+     * "redo boardName firstSeq1 lastSeq1 firstSeq2 lastSeq2 ..."
+     * Requires valid board name
+     * 
+     * @param boardName: the board to redo on
+     * @param author: the user redoing
+     * @return true if there was a stroke to redo
+     */
+    public boolean redo(String boardName, String author) {
+        Board board = boards.get(boardName);
+        synchronized (board) {
+            return sendSeqRanges("redo", boardName, board.redo(author));
+        }
+    }
+    
+    /**
+     * Broadcasts the sequence numbers of entries
+     * @return false if there are no entries, and nothing was sent
+     */
+    private boolean sendSeqRanges(String verb, String boardName, List<Board.Entry> entries) {
+        if (entries.isEmpty()) {
+            return false;
+        }
+        StringBuilder message = new StringBuilder(verb).append(' ').append(boardName);
+        for (Board.Entry entry : entries) {
+            message.append(' ').append(entry.getFirstSeq()).append(' ').append(entry.getLastSeq());
+        }
+        for (ClientConnection client: clients) {
+            if (!client.isClosed()) {
+                client.sendBoardMessage(boardName, message.toString());
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Turns on simplification of the strokes stored by every board, current
+     * and future.  Live broadcasts are not simplified.
+     * @param tolerance: greatest distance in pixels a stored stroke may be moved, 0 to turn it off
+     */
+    public synchronized void setSimplifyTolerance(double tolerance) {
+        simplifyTolerance = tolerance;
+        for (Board board : boards.values()) {
+            board.setSimplifyTolerance(tolerance);
+        }
+    }
+    
+    /**
+     * @param enabled: true to let clients ask for a compressed stream
+     */
+    public void setCompressionEnabled(boolean enabled) {
+        compressionEnabled = enabled;
+    }
+    
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+    
+    /**
+     * Returns the threads which handle client requests
+     * @return
+     */
+    public ExecutorService getWorkers() {
+        return workers;
+    }
+    
     /**
      * Checks if the board name is unique
      * Creates a new board with the specified board name
@@ -83,7 +304,9 @@ public class Server {
         if(boards.containsKey(boardName)) {
         	return false;
         } else {
-            boards.put(boardName, new Board());
+            Board board = new Board();
+            board.setSimplifyTolerance(simplifyTolerance);
+            boards.put(boardName, board);
             return true;
         }
     }
@@ -94,18 +317,55 @@ public class Server {
      * @param Command - command to be sent to all clients 
      */
     public void sendCommandToClients(Command command) {
-    	for (Socket client: clients) {
-			try {
-	    		if (!client.isClosed()) {
-					PrintWriter out = new PrintWriter(client.getOutputStream(), true);
-					out.println(command.toString());
-				}
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+        sendMessageToClients(command.toString());
+    }
+    
+    /**
+     * Iterates through all the connections and queues the message on each
+     * as a single frame of bulk traffic
+     * 
+     * @param message - message to be sent to all clients
+     */
+    public void sendMessageToClients(String message) {
+    	for (ClientConnection client: clients) {
+    		if (!client.isClosed()) {
+    			client.sendBulk(message);
+    		}
     	}
     }
     
+    /**
+     * Queues a draw on every connection which follows the board, compact encoded for the clients which asked for it
+     * 
+     * @param boardName: the board the commands are drawn on
+     * @param commands: the commands of the draw, in order
+     * @param message: the draw as text
+     */
+    public void sendDrawToClients(String boardName, List<Command> commands, String message) {
+        sendDrawToClients(boardName, commands, message, null, null);
+    }
+    
+    /**
+     * Queues a draw on every connection which follows the board but the author's,
+     * which is sent the echo instead
+     * 
+     * @param authorConnection: the connection the draw came from, or null to send the draw to all
+     * @param echo: the message sent to authorConnection
+     */
+    private void sendDrawToClients(String boardName, List<Command> commands, String message,
+            ClientConnection authorConnection, String echo) {
+        for (ClientConnection client: clients) {
+            if (client.isClosed()) {
+                continue;
+            }
+            if (client == authorConnection) {
+                client.sendBulk(echo);
+            } else {
+                client.sendDraw(boardName, commands, message);
+            }
+        }
+    }
+    
     /**
      * Gets the users from a board
      * 
@@ -133,12 +393,12 @@ public class Server {
      * @param username: the username of the user making the switch
      * @param oldBoardName: name of the board the user is switching from
      * @param newBoardName: the name of the board the user is switching to
-     * @return: List of Commands of the new Board the user is switching to           
+     * @return: the new Board the user is switching to           
      */
-    public List<Command> switchBoard(String username, String oldBoardName, String newBoardName) {
+    public Board switchBoard(String username, String oldBoardName, String newBoardName) {
         boards.get(oldBoardName).deleteUser(username);
         boards.get(newBoardName).addUser(username);
-        return boards.get(newBoardName).getCommands();
+        return boards.get(newBoardName);
     }
     
     /**
@@ -202,7 +462,7 @@ public class Server {
      * Returns clients connected to server
      * @return
      */
-    public List<Socket> getClients() {
+    public List<ClientConnection> getClients() {
         return clients;
     }
     
@@ -215,15 +475,56 @@ public class Server {
         return boards.get(boardName);
     }
     
+    /**
+     * Shuts the server down gracefully:
+     *   - stops accepting connections and new draws (draws are answered "rejected draining")
+     *   - waits for every connection to write out its queued broadcasts and history dumps
+     *   - tells each client "reconnect delay", with delay spread randomly over
+     *     RECONNECT_SPREAD milliseconds so that clients do not all return at once
+     *   - closes every connection
+     * Connections that have not drained by the deadline are closed anyway.
+     * 
+     * @param timeout: the most milliseconds to spend draining
+     * @throws IOException
+     */
+    public void drain(long timeout) throws IOException {
+        long deadline = System.nanoTime() + timeout * 1000000;
+        draining = true;
+        serverSocket.close();
+        try {
+            for (ClientConnection client: clients) {
+                client.awaitIdle(deadline);
+            }
+            for (ClientConnection client: clients) {
+                client.sendControl("reconnect " + random.nextInt(RECONNECT_SPREAD));
+            }
+            for (ClientConnection client: clients) {
+                client.awaitIdle(deadline);
+            }
+        } catch (InterruptedException e) {
+            Log.warn("Drain interrupted, shutting down: " + e);
+        }
+        shutDown();
+    }
+    
+    /**
+     * @return true once drain() has started, after which no new draws are accepted
+     */
+    public boolean isDraining() {
+        return draining;
+    }
+    
     /**
      * Shuts down all client connections and then shuts down serverSocket
      * @throws IOException
      */
     public void shutDown() throws IOException {
-    	for (Socket client: clients) {
+    	for (ClientConnection client: clients) {
     		client.close();
     	}
     	serverSocket.close();
+    	workers.shutdown();
+    	Log.info("Server metrics: " + metrics);
     }
     
     public void addShutDownHook() {
@@ -232,7 +533,7 @@ public class Server {
         Runtime.getRuntime().addShutdownHook(new Thread() {
             public void run() {
                 try {
-					shutDown();
+					drain(DEFAULT_DRAIN_TIMEOUT);
 					mainThread.join();
 				} catch (IOException e) {
 					e.printStackTrace();
@@ -250,6 +551,9 @@ public class Server {
     public static void main(String[] args) {
 
         int port = 4444; // default port
+        int maxConnections = DEFAULT_MAX_CONNECTIONS;
+        double simplifyTolerance = 0;
+        boolean compressionEnabled = true;
 
         // Check for and parse command line arguments
         Queue<String> arguments = new LinkedList<String>(Arrays.asList(args));
@@ -262,6 +566,25 @@ public class Server {
                         if (port < 0 || port > 65535) {
                             throw new IllegalArgumentException("port " + port + " out of range");
                         }
+                    } else if (flag.equals("--max-connections")) {
+                        maxConnections = Integer.parseInt(arguments.remove());
+                        if (maxConnections < 1) {
+                            throw new IllegalArgumentException("max connections " + maxConnections + " out of range");
+                        }
+                    } else if (flag.equals("--log-level")) {
+                        String level = arguments.remove();
+                        Log.Level parsed = Log.parseLevel(level, null);
+                        if (parsed == null) {
+                            throw new IllegalArgumentException("unknown log level " + level);
+                        }
+                        Log.setLevel(parsed);
+                    } else if (flag.equals("--no-compression")) {
+                        compressionEnabled = false;
+                    } else if (flag.equals("--simplify")) {
+                        simplifyTolerance = Double.parseDouble(arguments.remove());
+                        if (!(simplifyTolerance >= 0) || Double.isInfinite(simplifyTolerance)) {
+                            throw new IllegalArgumentException("simplify tolerance " + simplifyTolerance + " out of range");
+                        }
                     } else {
                         throw new IllegalArgumentException("unknown option: \"" + flag + "\"");
                     }
@@ -273,7 +596,7 @@ public class Server {
             }
         } catch (IllegalArgumentException iae) {
             System.err.println(iae.getMessage());
-            System.err.println("usage: Server [--port PORT]");
+            System.err.println("usage: Server [--port PORT] [--max-connections N] [--simplify PIXELS] [--no-compression] [--log-level LEVEL]");
             return;
         }
     	
@@ -281,6 +604,9 @@ public class Server {
     	// Try to launch the server
 		try {
 			Server server = new Server(4444);
+			server.setMaxConnections(maxConnections);
+			server.setSimplifyTolerance(simplifyTolerance);
+			server.setCompressionEnabled(compressionEnabled);
 			server.serve();
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -0,0 +1,73 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the traffic the server turned away, shared by all connections.
+ * 
+ * Concurrency Argument:
+ *   - all counters are atomic
+ *
+ */
+public class ServerMetrics {
+    
+    // connections closed because the server already had too many
+    private final AtomicLong rejectedConnections = new AtomicLong();
+    // draw commands dropped by a connection's command limit
+    private final AtomicLong throttledConnectionCommands = new AtomicLong();
+    // draw commands dropped by a board's command limit
+    private final AtomicLong throttledBoardCommands = new AtomicLong();
+    // bytes of requests dropped by a connection's or board's byte limit
+    private final AtomicLong throttledBytes = new AtomicLong();
+    // draw requests rejected because they did not fit a drawing operation
+    private final AtomicLong invalidDraws = new AtomicLong();
+    
+    public void connectionRejected() {
+        rejectedConnections.incrementAndGet();
+    }
+    
+    public void connectionCommandsThrottled(int commands) {
+        throttledConnectionCommands.addAndGet(commands);
+    }
+    
+    public void boardCommandsThrottled(int commands) {
+        throttledBoardCommands.addAndGet(commands);
+    }
+    
+    public void bytesThrottled(int bytes) {
+        throttledBytes.addAndGet(bytes);
+    }
+    
+    public void invalidDraw() {
+        invalidDraws.incrementAndGet();
+    }
+    
+    public long getRejectedConnections() {
+        return rejectedConnections.get();
+    }
+    
+    public long getThrottledConnectionCommands() {
+        return throttledConnectionCommands.get();
+    }
+    
+    public long getThrottledBoardCommands() {
+        return throttledBoardCommands.get();
+    }
+    
+    public long getThrottledBytes() {
+        return throttledBytes.get();
+    }
+    
+    public long getInvalidDraws() {
+        return invalidDraws.get();
+    }
+    
+    @Override
+    public String toString() {
+        return "rejectedConnections=" + getRejectedConnections()
+                + " throttledConnectionCommands=" + getThrottledConnectionCommands()
+                + " throttledBoardCommands=" + getThrottledBoardCommands()
+                + " throttledBytes=" + getThrottledBytes()
+                + " invalidDraws=" + getInvalidDraws();
+    }
+}
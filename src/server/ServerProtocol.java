@@ -3,30 +3,113 @@ package server;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Pattern;
 
 import Command.Command;
 
+import log.Log;
+
 /**
  * Thread which handles each individual connection with each client and
  * communicates through the following grammar
  * 
+ * Requests are pipelined: this thread reads and parses requests as they
+ * arrive and hands them to the server's worker threads, so a slow broadcast
+ * does not hold up the next request.  Replies come back in this order:
+ *   - draw, drawBatch, switch and subscribe requests run in order per board
+ *   - control requests without a request ID run in the order they were sent,
+ *     and the requests to a board wait for those sent before them, so a
+ *     switch to a board runs after the newBoard which made it
+ *   - control requests with a request ID ("#id request") may complete in any
+ *     order; their replies start with the same "#id " so the client can match them
+ * 
  * Concurrency Argument:
- *   - this thread only performs actions on thread safe objects (Board, Server)
- *     (See Board.java and Server.java) 
+ *   - this thread only performs actions on thread safe objects (Board, Server,
+ *     ClientConnection, TokenBucket, SerialExecutor) (See their classes)
+ *   - a switch reply is queued while holding the lock of the board switched to,
+ *     and draws on a board are stored and broadcast while holding its lock, so a
+ *     client never receives a draw before the history it comes after
+ *   - locks are taken in one order: the Server's before a board's, and a
+ *     board's before the connection's encoder.  A switch, resume or hello
+ *     moves the user between boards, which takes the Server's lock and the
+ *     users of other boards, before taking the board's lock, and nothing
+ *     holding a board's lock calls a synchronized method of Server
+ *   - the counts of control requests and the requests to boards waiting
+ *     for them are guarded by the lock of the waiting queue, which is taken
+ *     before the lanes' locks and never while holding a board's
  * 
  *
  */
 public class ServerProtocol implements Runnable {
     
-    private final Socket socket;
+    // draw commands per second accepted from one connection
+    public static final int COMMANDS_PER_SECOND = 500;
+    // bytes of requests per second accepted from one connection
+    public static final int BYTES_PER_SECOND = 64 * 1024;
+    // the limits allow bursts of this many seconds worth of traffic
+    private static final int BURST_SECONDS = 2;
+    // most requests of one connection read but not yet handled; reading pauses beyond this
+    private static final int MAX_PENDING_REQUESTS = 256;
+    
+    private static final String NAME_REG = "[a-zA-Z0-9\\.]+";
+    // arguments of draw commands, which may be negative; the argument lists
+    // are matched possessively, since backtracking into a long polyline overflows the stack
+    private static final String ARG_REG = "[a-zA-Z0-9\\.\\-]+";
+    private static final Pattern REQUEST = Pattern.compile("(boards)|(newBoard "+NAME_REG+")|"
+            + "(switch "+NAME_REG+" "+NAME_REG+" "+NAME_REG+"( [0-9]{1,18})?)|"
+            + "(exit "+NAME_REG+")|(users "+NAME_REG+")|"
+            + "(checkAndAddUser "+NAME_REG+" "+NAME_REG+")|(hello "+NAME_REG+" "+NAME_REG+")|"
+            + "(encoding compact(?: -?[0-9]{1,10}){0,256})|(compress deflate)|"
+            + "(undo "+NAME_REG+" "+NAME_REG+")|(redo "+NAME_REG+" "+NAME_REG+")|"
+            + "(resume "+NAME_REG+" "+NAME_REG+" [0-9]{1,18})|"
+            + "(subscribe "+NAME_REG+" [0-9]{1,18})|(unsubscribe "+NAME_REG+")|"
+            + "(draw "+NAME_REG+"(?: "+ARG_REG+")++)|"
+            + "(drawBatch "+NAME_REG+"(?: "+ARG_REG+")++(?: ;(?: "+ARG_REG+")++)*+)");
+    private static final Pattern REQUEST_ID = Pattern.compile("#[0-9]+");
+    public static final String COMPRESS_DEFLATE = "compress deflate";
+    private static final String COMPRESS_NONE = "compress none";
+    
+    private final ClientConnection connection;
     private final Server server;
+    private static final String REJECTED_CONNECTION_RATE = "rejected connectionRate";
+    private static final String REJECTED_BOARD_RATE = "rejected boardRate";
+    private static final String REJECTED_DRAINING = "rejected draining";
+    private static final String REJECTED_INVALID_DRAW = "rejected invalidDraw";
+    private static final String REJECTED_NOT_USER = "rejected notUser";
+    // per-request logs, sampled so a flood of bad requests does not slow down the server
+    private static final Log.Sampler INVALID_LOG = new Log.Sampler();
+    private static final Log.Sampler FAILED_LOG = new Log.Sampler();
     
-    public ServerProtocol(Socket socket, Server server) {
-        this.socket = socket;
+    private final TokenBucket commandRate = new TokenBucket(COMMANDS_PER_SECOND, COMMANDS_PER_SECOND * BURST_SECONDS);
+    private final TokenBucket byteRate = new TokenBucket(BYTES_PER_SECOND, BYTES_PER_SECOND * BURST_SECONDS);
+    
+    // keeps control requests without a request ID in order
+    private final SerialExecutor controlLane;
+    // keeps the requests to each board in order
+    private final Map<String, SerialExecutor> boardLanes = new HashMap<String, SerialExecutor>();
+    // requests to boards waiting for the control requests read before them, in the order read
+    private final Queue<DeferredRequest> deferredRequests = new ArrayDeque<DeferredRequest>();
+    // control requests without a request ID handed to the control lane, and finished; guarded by deferredRequests
+    private long controlRequestsQueued = 0;
+    private long controlRequestsDone = 0;
+    private final Semaphore pendingRequests = new Semaphore(MAX_PENDING_REQUESTS);
+    // the user logged in on this connection, the author of its draws; null until the user logs in
+    private volatile String username;
+    
+    public ServerProtocol(ClientConnection connection, Server server) {
+        this.connection = connection;
         this.server = server;
+        this.controlLane = new SerialExecutor(server.getWorkers());
     }
     
     /**
@@ -36,15 +119,16 @@ public class ServerProtocol implements Runnable {
     public void run() {
         // handle the connection with the client
         try {
-            handleConnection(socket);
+            handleConnection(connection.getSocket());
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.debug("Connection " + connection.getSocket().getRemoteSocketAddress() + " closed: " + e);
         } finally {
-            try {
-				socket.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+            server.removeClient(connection);
+            connection.close();
+            if (username != null) {
+                // the user can log in again, or resume on a new connection
+                server.exit(username);
+            }
         }
     }
     
@@ -57,50 +141,291 @@ public class ServerProtocol implements Runnable {
     private void handleConnection(Socket socket) throws IOException {
 
         BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
         try {
             for (String line = in.readLine(); line != null; line = in.readLine()) {
+                String requestId = null;
+                String request = line;
+                int space = line.indexOf(' ');
+                if (space > 0 && REQUEST_ID.matcher(line.substring(0, space)).matches()) {
+                    requestId = line.substring(0, space);
+                    request = line.substring(space + 1);
+                }
+                // each line costs its length plus the line terminator; the rejection carries
+                // the request's ID, so the client can take a rejected draw off its canvas
+                if (!byteRate.tryConsume(line.length() + 1)) {
+                    server.getMetrics().bytesThrottled(line.length() + 1);
+                    connection.sendControl(requestId == null ? REJECTED_CONNECTION_RATE
+                            : requestId + " " + REJECTED_CONNECTION_RATE);
+                    continue;
+                }
+                
+                String[] tokens = parseRequest(request);
+                if (tokens == null) {
+                    continue;
+                }
+                
+                pendingRequests.acquireUninterruptibly();
                 try {
-                    
-	            	String output = handleRequest(line);
-	            	if(output != null) {
-	            		out.println(output);
-	            	}
-	                
-                } catch (IllegalArgumentException e) {
-	                	e.printStackTrace();   
-                }                
+                    submit(laneFor(tokens, requestId), new RequestTask(tokens, request, requestId));
+                } catch (RejectedExecutionException e) {
+                    // the server has shut down
+                    return;
+                }
             }
         } finally {
-            out.close();
             in.close();
         }
     }
     
+    /**
+     * @param tokens: a parsed request
+     * @param requestId: the request's ID, or null if it has none
+     * @return the executor which keeps the request in order with the requests it depends on
+     */
+    private Executor laneFor(String[] tokens, String requestId) {
+        String boardName;
+        if (tokens[0].equals("draw") || tokens[0].equals("drawBatch")
+                || tokens[0].equals("undo") || tokens[0].equals("redo")) {
+            boardName = tokens[1];
+        } else if (tokens[0].equals("switch")) {
+            boardName = tokens[3];
+        } else if (tokens[0].equals("resume") || tokens[0].equals("hello")) {
+            boardName = tokens[2];
+        } else if (tokens[0].equals("subscribe") || tokens[0].equals("unsubscribe")) {
+            boardName = tokens[1];
+        } else if (requestId != null) {
+            return server.getWorkers();
+        } else {
+            return controlLane;
+        }
+        SerialExecutor lane = boardLanes.get(boardName);
+        if (lane == null) {
+            lane = new SerialExecutor(server.getWorkers());
+            boardLanes.put(boardName, lane);
+        }
+        return lane;
+    }
+    
+    /**
+     * A request to a board, with the number of control requests which must finish before it runs
+     */
+    private static class DeferredRequest {
+        private final Executor lane;
+        private final Runnable task;
+        private final long after;
+        
+        DeferredRequest(Executor lane, Runnable task, long after) {
+            this.lane = lane;
+            this.task = task;
+            this.after = after;
+        }
+    }
+    
+    /**
+     * Hands a request to its lane.  A request to a board read while control
+     * requests without a request ID are pending waits until they have finished.
+     * Called only by the reading thread.
+     * @param lane: the executor laneFor chose for the request
+     * @param task: the request
+     */
+    private void submit(Executor lane, final Runnable task) {
+        if (lane == controlLane) {
+            synchronized (deferredRequests) {
+                controlRequestsQueued++;
+            }
+            controlLane.execute(new Runnable() {
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        controlRequestDone();
+                    }
+                }
+            });
+            return;
+        }
+        if (lane != server.getWorkers()) {
+            synchronized (deferredRequests) {
+                if (controlRequestsDone < controlRequestsQueued) {
+                    deferredRequests.add(new DeferredRequest(lane, task, controlRequestsQueued));
+                    return;
+                }
+            }
+        }
+        lane.execute(task);
+    }
+    
+    /**
+     * Counts a finished control request and hands on the requests to boards which waited for it
+     */
+    private void controlRequestDone() {
+        synchronized (deferredRequests) {
+            controlRequestsDone++;
+            while (!deferredRequests.isEmpty() && deferredRequests.peek().after <= controlRequestsDone) {
+                DeferredRequest deferred = deferredRequests.poll();
+                try {
+                    deferred.lane.execute(deferred.task);
+                } catch (RejectedExecutionException e) {
+                    // the server has shut down
+                    return;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Handles one parsed request on a worker thread and queues its reply
+     */
+    private class RequestTask implements Runnable {
+        private final String[] tokens;
+        private final String request;
+        private final String requestId;
+        
+        public RequestTask(String[] tokens, String request, String requestId) {
+            this.tokens = tokens;
+            this.request = request;
+            this.requestId = requestId;
+        }
+        
+        @Override
+        public void run() {
+            try {
+                if (tokens[0].equals("switch") || tokens[0].equals("resume") || tokens[0].equals("hello")) {
+                    // the user is moved onto the board before the board's lock is taken
+                    String prefix = enterBoard(tokens);
+                    if (prefix == null) {
+                        connection.sendControl(withRequestId(tokens[0].equals("resume")
+                                ? resumeFailed(tokens) : helloFailed(tokens)));
+                        return;
+                    }
+                    // history dumps share the bulk lane with draw broadcasts, so
+                    // they keep their order and do not hold up control replies; a
+                    // compact dump is queued before the encoder encodes another draw
+                    Board board = server.getCommands(boardEntered(tokens));
+                    synchronized (board) {
+                        synchronized (connection.getEncoder()) {
+                            connection.sendBulk(withRequestId(boardLog(tokens, prefix)));
+                        }
+                    }
+                } else if (tokens[0].equals("subscribe")) {
+                    // like a resume, but of a board shown in a background tab
+                    Board board = server.getCommands(tokens[1]);
+                    if (board == null) {
+                        connection.sendControl(withRequestId(subscribeFailed(tokens)));
+                        return;
+                    }
+                    synchronized (board) {
+                        synchronized (connection.getEncoder()) {
+                            String output = handleTokens(tokens, request, requestId);
+                            connection.sendBulk(withRequestId(output));
+                        }
+                    }
+                } else if (tokens[0].equals("compress")) {
+                    String output = handleTokens(tokens, request, requestId);
+                    if (output.equals(COMPRESS_DEFLATE)) {
+                        // the reply is the last thing the client reads uncompressed
+                        connection.sendControlAndCompress(withRequestId(output));
+                    } else {
+                        connection.sendControl(withRequestId(output));
+                    }
+                } else {
+                    String output = handleTokens(tokens, request, requestId);
+                    if (output != null) {
+                        connection.sendControl(withRequestId(output));
+                    }
+                }
+            } catch (RuntimeException e) {
+                if (FAILED_LOG.isEnabled(Log.Level.WARN)) {
+                    Log.warn("Request failed: " + request + ": " + e);
+                }
+            } finally {
+                pendingRequests.release();
+            }
+        }
+        
+        private String withRequestId(String output) {
+            return requestId == null ? output : requestId + " " + output;
+        }
+    }
+    
     /**
      * Handler for client input, performing requested operations and returning an output message.
      * 
      * Receives:
 	 * 
 	 * New Board = "newBoard boardName"
-	 * Switch Board = "switch username oldBoardName newBoardName"
+	 * Switch Board = "switch username oldBoardName newBoardName", or
+	 *      "switch username oldBoardName newBoardName seq" if the client still has the board's
+	 *      log up to entry seq, to receive only the rest of the log in the form of a resume
 	 * Exit = "exit username"
 	 * Draw = "draw boardName command param1 param2 param3 ... "
 	 *        Example: "draw boardName drawLineSegment x1 y1 x2 y2 color width"
+	 * Draw Batch = "drawBatch boardName command param1 param2 ... ; command param1 param2 ..."
 	 * Get Users = "users boardName"
 	 * Get boards = "boards"
 	 * Check and add User = "checkAndAddUser username boardName"
+	 * Hello = "hello username boardName", logs the user in on the board in one round trip
+	 * Encoding = "encoding compact color0 color1 ...", to receive draws in the form of CompactEncoding;
+	 *      the colors, sent when reconnecting, are the palette of the earlier connection by index
+	 * Compress = "compress deflate", to receive everything after the reply DEFLATE compressed
+	 * Undo = "undo boardName username", undoes the user's last stroke on the board; username
+	 *      must be the user logged in on the connection
+	 * Redo = "redo boardName username", redoes the stroke the user undid last on the board; username
+	 *      must be the user logged in on the connection
+	 * Resume = "resume username boardName seq", sent after reconnecting: logs the user in again
+	 *      on the board and sends the board's log from entry seq on, seq being the number of
+	 *      the next entry the client would have received
+	 * Subscribe = "subscribe boardName seq", the client shows the board in a background tab:
+	 *      its draws are sent to the client from now on, as well as those of the user's board,
+	 *      and the part of its log from entry seq on; seq is 0 for a board the client has no log of
+	 * Unsubscribe = "unsubscribe boardName", the client no longer shows the board
+	 * 
+	 * Any request may be prefixed with a request ID, "#id request", whose reply is then "#id reply"
+	 * A draw or drawBatch with a request ID is one the client has already drawn: it is not sent
+	 * back to the client, which is sent "#id echo boardName" in its place among the board's draws
 	 * 
 	 * 
 	 * Sends: 
 	 * 
 	 * New Board = "newBoard boardName boolean"
-	 * Switch Board = "switch username oldBoardName newBoardName command1 command2 command3..."
+	 * Switch Board = "switch username oldBoardName newBoardName", then the board's log, one
+	 *      draw message per line; the lines are numbered from 0, except that "seq boardName n"
+	 *      numbers the next line n, and a line after "undone boardName" is an undone entry
+	 * Resume = "resume username boardName start firstSeq1 lastSeq1 ...", then the board's log from
+	 *      entry start on, in the form of a switch; the client's entries before start which are
+	 *      numbered in the ranges are drawn, and all its other entries are dropped or undone.
+	 *      If the board's log is older than what the client has, a switch is sent instead.
+	 *      "resume username boardName false" if the username is taken or the board does not exist
+	 * Subscribe = "subscribe boardName start firstSeq1 lastSeq1 ...", then the board's log from
+	 *      entry start on, like a resume; "subscribe boardName false" if the board does not exist
+	 * Unsubscribe = "unsubscribe boardName"
+	 * Stale = "stale boardName", the client's background board fell too far behind: its draws
+	 *      are dropped from here on until the client subscribes to it again
+	 * Draws, undos and redos are sent only for the boards the client follows: the user's
+	 *      board and the boards subscribed to, or every board until the user logs in
+	 * Undo = "undo boardName firstSeq1 lastSeq1 ...", the entries numbered in the ranges are undone
+	 * Redo = "redo boardName firstSeq1 lastSeq1 ...", the entries numbered in the ranges are redone
 	 * Update Users = "users boardName user1 user2 user3..."
 	 * Update Available Boards = "boards board1 board2 board3"
 	 * Draw = "draw boardName command param1 param2 param3"
 	 *      Example: "draw boardName drawLineSegment x1 y1 x2 y2 color width"
+	 * Draw Batch = "drawBatch boardName command param1 param2 ... ; command param1 param2 ..."
+	 * Echo = "#id echo boardName", sent to the author of a draw with a request ID instead of the draw
 	 * Check and add User = "checkAndAddUser username boardName boolean"
+	 * Hello = "hello username boardName true", then "boards board1 board2 ...", then
+	 *      "users boardName user1 user2 ...", then the board's log in the form of a switch
+	 *      "hello username boardName false" if the username is taken or the board does not exist
+	 * Encoding = "encoding compact"
+	 * Compress = "compress deflate" if the stream is compressed from the next byte on, "compress none" if not
+	 * Compact Draw = "c boardName ops", instead of draw and drawBatch once compact encoding is chosen
+	 * Palette = "palette index color", declares a color before compact draws use it
+	 * Rejected = "rejected reason", sent instead of the reply when a request is throttled
+	 *      reason is connectionRate, boardRate, invalidDraw (unknown operation or arguments
+	 *      which do not fit it), draining (the server is shutting down, and
+	 *      refuses draws, undos and redos), notUser (an undo
+	 *      or redo of another user's strokes),
+	 *      or serverFull (sent just before the server closes a new connection)
+	 * Reconnect = "reconnect delay", sent before the server shuts down: reconnect after delay milliseconds
 	 * 
      * 
      * 
@@ -109,21 +434,37 @@ public class ServerProtocol implements Runnable {
      * @throws IOException 
      */
     private String handleRequest(String input) throws IOException, IllegalArgumentException {
-        
-    	String nameReg = "[a-zA-Z0-9\\.]+";
-    	String regex = "(boards)|(newBoard "+nameReg+")|"
-    			+ "(switch "+nameReg+" "+nameReg+" "+nameReg+")|"
-    			+ "(exit "+nameReg+")|(users "+nameReg+")|"
-    			+ "(checkAndAddUser "+nameReg+" "+nameReg+")|"
-    			+ "(draw "+nameReg+"( "+nameReg+")+)";
-        
-        if ( ! input.matches(regex)) {
+        String[] tokens = parseRequest(input);
+        if (tokens == null) {
+            return null;
+        }
+        return handleTokens(tokens, input, null);
+    }
+    
+    /**
+     * Checks a request against the grammar and splits it into tokens
+     * @param input: message from client, without a request ID
+     * @return the tokens of the request, or null if the request is invalid
+     */
+    private String[] parseRequest(String input) {
+        if ( ! REQUEST.matcher(input).matches()) {
             // invalid input
-        	System.out.println("Invalid input");
+            if (INVALID_LOG.isEnabled(Log.Level.DEBUG)) {
+                Log.debug("Invalid input: " + input);
+            }
             return null;
         }
-
-        String[] tokens = input.split(" ");
+        return input.split(" ");
+    }
+    
+    /**
+     * Performs a parsed request
+     * @param tokens: the tokens of the request
+     * @param input: the request the tokens were split from
+     * @param requestId: the request's ID, or null if it has none
+     * @return message to client
+     */
+    private String handleTokens(String[] tokens, String input, String requestId) {
         
         // Get Boards
         if (tokens[0].equals("boards")) {
@@ -143,16 +484,50 @@ public class ServerProtocol implements Runnable {
         } 
         // Draw Command 
         else if (tokens[0].equals("draw")) {
-        	return draw(tokens);
+        	return draw(tokens, requestId);
         } 
+        // Batched Draw Command
+        else if (tokens[0].equals("drawBatch")) {
+            return drawBatch(tokens, input, requestId);
+        }
         // Check and add User
         else if (tokens[0].equals("checkAndAddUser")) {
         	return checkAndAddUser(tokens);
         } 
+        // Log in
+        else if (tokens[0].equals("hello")) {
+            return hello(tokens);
+        }
+        // Background tabs
+        else if (tokens[0].equals("subscribe")) {
+            return subscribe(tokens);
+        }
+        else if (tokens[0].equals("unsubscribe")) {
+            return unsubscribe(tokens);
+        }
         // Get Users
         else if (tokens[0].equals("users")) {
         	return users(tokens);
         }
+        // Resume after reconnecting
+        else if (tokens[0].equals("resume")) {
+            return resume(tokens);
+        }
+        // Undo and Redo
+        else if (tokens[0].equals("undo")) {
+            return undo(tokens);
+        }
+        else if (tokens[0].equals("redo")) {
+            return redo(tokens);
+        }
+        // Choose Encoding
+        else if (tokens[0].equals("encoding")) {
+            return encoding(tokens);
+        }
+        // Compress Stream
+        else if (tokens[0].equals("compress")) {
+            return compress(tokens);
+        }
 
         // Should never get here-- should return in each of the valid cases above.
         throw new UnsupportedOperationException();
@@ -184,16 +559,184 @@ public class ServerProtocol implements Runnable {
      * @return
      */
     public String switchBoard(String[] tokens) {
+        return boardLog(tokens, enterBoard(tokens));
+    }
+    
+    /**
+     * Resume response: logs the user in again and sends the part of the board's
+     * log which the client has not seen.  The log is sent from the first entry
+     * holding sequence number seq, so an entry merged from entries the client
+     * has partly seen is sent whole.  Requires the board to exist.
+     * @param tokens
+     * @return
+     */
+    public String resume(String[] tokens) {
+        String prefix = enterBoard(tokens);
+        if (prefix == null) {
+            return resumeFailed(tokens);
+        }
+        return boardLog(tokens, prefix);
+    }
+    
+    /**
+     * The part of a switch, resume or hello which moves the user between
+     * boards: claims the username and enters the user on the board.  Takes
+     * the Server's lock and the users of boards, so it is never called while
+     * holding a board's lock.
+     * @param tokens
+     * @return the part of the reply in front of the board's log, or null if the request is refused
+     */
+    private String enterBoard(String[] tokens) {
+        String userName = tokens[1];
+        if (tokens[0].equals("switch")) {
+            server.switchBoard(userName, tokens[2], tokens[3]);
+            return "";
+        }
+        String boardName = tokens[2];
+        if (server.getCommands(boardName) == null || !server.checkUser(userName, boardName)) {
+            return null;
+        }
+        if (tokens[0].equals("resume")) {
+            return "";
+        }
+        String newLine = System.getProperty("line.separator");
+        return "hello " + userName + " " + boardName + " true" + newLine
+                + "boards " + server.getBoards() + newLine
+                + "users " + boardName + " " + server.getUsers(boardName) + newLine;
+    }
+    
+    /**
+     * @param tokens: a switch, resume or hello
+     * @return the board the user enters
+     */
+    private static String boardEntered(String[] tokens) {
+        return tokens[0].equals("switch") ? tokens[3] : tokens[2];
+    }
+    
+    /**
+     * The part of a switch, resume or hello which sends the board's log, once
+     * enterBoard has entered the user on the board.  Called holding the board's
+     * lock, so no draw is sent to the client ahead of the log.
+     * @param tokens
+     * @param prefix: the part of the reply enterBoard returned
+     * @return the reply
+     */
+    private String boardLog(String[] tokens, String prefix) {
         String userName = tokens[1];
-        String oldBoardName = tokens[2];
-        String newBoardName = tokens[3];
+        String boardName = boardEntered(tokens);
+        Board board = server.getCommands(boardName);
+        username = userName;
+        if (connection != null) {
+            connection.setCurrentBoard(boardName);
+        }
+        if (tokens[0].equals("resume")) {
+            return logFrom(userName, boardName, board, Long.parseLong(tokens[3]));
+        }
+        if (tokens[0].equals("switch") && tokens.length > 4) {
+            return logFrom(userName, boardName, board, Long.parseLong(tokens[4]));
+        }
+        String newLine = System.getProperty("line.separator");
+        String oldBoardName = tokens[0].equals("switch") ? tokens[2] : boardName;
+        StringBuilder str = new StringBuilder(prefix).append("switch ").append(userName).append(' ')
+                .append(oldBoardName).append(' ').append(boardName).append(newLine);
+        appendEntries(str, boardName, board, board.getEntries(), 0);
+        return str.toString();
+    }
+    
+    /**
+     * Resume response of a user on a board, for a client which has the board's
+     * log up to entry seq: the part of the log the client has not seen
+     * @param seq: the number of the next entry the client would have received
+     * @return
+     */
+    private String logFrom(String userName, String boardName, Board board, long seq) {
         String newLine = System.getProperty("line.separator");
-        List<Command> commands = server.switchBoard(userName, oldBoardName, newBoardName);
-    	String str =  "switch " + userName + " " + oldBoardName + " " + newBoardName + newLine;
-    	for (Command command: commands) {
-    	    str += command.toString() + newLine;
-    	}
-    	return str;
+        List<Board.Entry> entries = board.getEntries();
+        if (seq > board.getNextSeq()) {
+            // the client saw a board of the same name with a longer log
+            StringBuilder str = new StringBuilder("switch ").append(userName).append(' ')
+                    .append(boardName).append(' ').append(boardName).append(newLine);
+            appendEntries(str, boardName, board, entries, 0);
+            return str.toString();
+        }
+        StringBuilder str = new StringBuilder("resume ").append(userName).append(' ').append(boardName);
+        appendLogFrom(str, boardName, board, seq);
+        return str.toString();
+    }
+    
+    /**
+     * Appends " start firstSeq1 lastSeq1 ..." and the board's log from entry
+     * start on, for a client which has the board's log up to entry seq: the
+     * entries before start which are numbered in the ranges are still drawn
+     * @param seq: the number of the next entry the client would have received, at most the board's next
+     */
+    private void appendLogFrom(StringBuilder str, String boardName, Board board, long seq) {
+        String newLine = System.getProperty("line.separator");
+        List<Board.Entry> entries = board.getEntries();
+        long start = seq;
+        int first = entries.size();
+        for (int i = entries.size() - 1; i >= 0 && entries.get(i).getLastSeq() >= seq; i--) {
+            first = i;
+            start = Math.min(start, entries.get(i).getFirstSeq());
+        }
+        // the entries the client has which are still drawn, as ranges of sequence numbers
+        str.append(' ').append(start);
+        long rangeFirst = -1;
+        long rangeLast = -1;
+        for (Board.Entry entry : entries.subList(0, first)) {
+            if (entry.isUndone()) {
+                continue;
+            }
+            if (rangeFirst >= 0 && entry.getFirstSeq() == rangeLast + 1) {
+                rangeLast = entry.getLastSeq();
+                continue;
+            }
+            if (rangeFirst >= 0) {
+                str.append(' ').append(rangeFirst).append(' ').append(rangeLast);
+            }
+            rangeFirst = entry.getFirstSeq();
+            rangeLast = entry.getLastSeq();
+        }
+        if (rangeFirst >= 0) {
+            str.append(' ').append(rangeFirst).append(' ').append(rangeLast);
+        }
+        str.append(newLine);
+        appendEntries(str, boardName, board, entries.subList(first, entries.size()), start);
+    }
+    
+    private String resumeFailed(String[] tokens) {
+        return "resume " + tokens[1] + " " + tokens[2] + " false";
+    }
+    
+    /**
+     * Appends entries of a board's log, one draw message per line.  The client
+     * numbers the entries it receives from seq on; a seq line tells it the
+     * number of the next entry where the log has gaps, and "undone" marks an
+     * entry it records but does not draw.  Compact encodes the entries if the
+     * client asked for it; the caller holds the encoder's lock until the
+     * reply is queued.
+     * @param seq: the number the client gives the first entry
+     */
+    private void appendEntries(StringBuilder str, String boardName, Board board, List<Board.Entry> entries, long seq) {
+        String newLine = System.getProperty("line.separator");
+        for (Board.Entry entry : entries) {
+            if (entry.getFirstSeq() != seq) {
+                str.append("seq ").append(boardName).append(' ').append(entry.getFirstSeq()).append(newLine);
+            }
+            if (entry.isUndone()) {
+                str.append("undone ").append(boardName).append(newLine);
+            }
+            if (connection != null && connection.isCompact()) {
+                str.append(connection.getEncoder().encode(boardName, entry.getCommands(), entry.toMessage(boardName)));
+            } else {
+                str.append(entry.toMessage(boardName));
+            }
+            str.append(newLine);
+            seq = entry.getFirstSeq() + 1;
+        }
+        if (board.getNextSeq() != seq) {
+            str.append("seq ").append(boardName).append(' ').append(board.getNextSeq()).append(newLine);
+        }
     }
     
     /**
@@ -204,6 +747,7 @@ public class ServerProtocol implements Runnable {
     public String exit(String[] tokens) {
         String username = tokens[1];
         server.exit(username);
+        this.username = null;
         return "exit " + username;
     }
     
@@ -213,13 +757,134 @@ public class ServerProtocol implements Runnable {
      * @return
      */
     public String draw(String[] tokens) {
+        return draw(tokens, null);
+    }
+    
+    /**
+     * draw response.  A draw with a request ID is echoed to this connection
+     * instead of being sent back to it, and has no other reply unless it is rejected.
+     * @param tokens
+     * @param requestId: the request's ID, or null if it has none
+     * @return
+     */
+    private String draw(String[] tokens, String requestId) {
         String boardName = tokens[1];
-        Command command = new Command(tokens);
-        server.updateBoard(boardName, command);
-        server.sendCommandToClients(command);
+        Command command;
+        try {
+            command = new Command(tokens);
+        } catch (IllegalArgumentException e) {
+            server.getMetrics().invalidDraw();
+            return REJECTED_INVALID_DRAW;
+        }
+        if (!command.isValid()) {
+            server.getMetrics().invalidDraw();
+            return REJECTED_INVALID_DRAW;
+        }
+        String rejection = admitDraw(boardName, 1, tokens);
+        if (rejection != null) {
+            return rejection;
+        }
+        if (requestId != null && connection != null) {
+            server.draw(boardName, username, Collections.singletonList(command), command.toString(),
+                    connection, echo(requestId, boardName));
+            return null;
+        }
+        server.draw(boardName, username, Collections.singletonList(command), command.toString());
         return "draw";
     }
     
+    /**
+     * @return the echo of a draw with a request ID, sent to its author instead of the draw
+     */
+    private static String echo(String requestId, String boardName) {
+        return requestId + " echo " + boardName;
+    }
+    
+    /**
+     * Checks a draw request against this connection's and the board's rate limits.
+     * A request the board throttles is refunded to this connection's buckets.
+     * @param boardName: the board drawn on
+     * @param commandCount: number of commands in the request
+     * @param tokens: the tokens of the request
+     * @return the rejection to reply with, or null if the request is admitted
+     */
+    private String admitDraw(String boardName, int commandCount, String[] tokens) {
+        if (server.isDraining()) {
+            return REJECTED_DRAINING;
+        }
+        if (!commandRate.tryConsume(commandCount)) {
+            server.getMetrics().connectionCommandsThrottled(commandCount);
+            return REJECTED_CONNECTION_RATE;
+        }
+        int bytes = requestLength(tokens);
+        if (!server.getCommands(boardName).admitDraw(commandCount, bytes)) {
+            // the connection is charged only for draws the board admits
+            commandRate.refund(commandCount);
+            byteRate.refund(bytes);
+            server.getMetrics().boardCommandsThrottled(commandCount);
+            return REJECTED_BOARD_RATE;
+        }
+        return null;
+    }
+    
+    /**
+     * @param tokens: the tokens of a request
+     * @return the length of the request the tokens were split from
+     */
+    private static int requestLength(String[] tokens) {
+        int length = tokens.length;
+        for (String token : tokens) {
+            length += token.length();
+        }
+        return length;
+    }
+    
+    /**
+     * drawBatch response. The whole batch is added to the board in one step
+     * and broadcast to the clients as a single frame.  If any command of the
+     * batch is invalid, none of the batch is drawn.
+     * @param tokens
+     * @param input: the batch request as received
+     * @return
+     */
+    public String drawBatch(String[] tokens, String input) {
+        return drawBatch(tokens, input, null);
+    }
+    
+    /**
+     * drawBatch response, echoed like a draw if the request has an ID
+     * @param tokens
+     * @param input: the batch request as received
+     * @param requestId: the request's ID, or null if it has none
+     * @return
+     */
+    private String drawBatch(String[] tokens, String input, String requestId) {
+        String boardName = tokens[1];
+        List<Command> commands;
+        try {
+            commands = Command.fromBatch(tokens);
+        } catch (IllegalArgumentException e) {
+            server.getMetrics().invalidDraw();
+            return REJECTED_INVALID_DRAW;
+        }
+        for (Command command : commands) {
+            if (!command.isValid()) {
+                server.getMetrics().invalidDraw();
+                return REJECTED_INVALID_DRAW;
+            }
+        }
+        String rejection = admitDraw(boardName, commands.size(), tokens);
+        if (rejection != null) {
+            return rejection;
+        }
+        if (requestId != null && connection != null) {
+            server.draw(boardName, username, commands, input, connection, echo(requestId, boardName));
+            return null;
+        }
+        server.draw(boardName, username, commands, input);
+        return "drawBatch";
+    }
+    
     /**
      * checkAndAddUser response
      * @param tokens
@@ -228,7 +893,74 @@ public class ServerProtocol implements Runnable {
     public String checkAndAddUser(String[] tokens) {
         String boardName = tokens[2];
         String username = tokens[1];
-        return "checkAndAddUser " + username + " " + boardName + " " + String.valueOf(server.checkUser(username, boardName));
+        boolean added = server.checkUser(username, boardName);
+        if (added) {
+            this.username = username;
+        }
+        return "checkAndAddUser " + username + " " + boardName + " " + String.valueOf(added);
+    }
+    
+    /**
+     * Hello response: logs the user in with a single reply instead of a round
+     * trip each for the boards, the username, the board's log and its users.
+     * Claims the username, enters the user on the board and sends the boards,
+     * the board's users and the board's log, in the form of a switch.
+     * Requires the board to exist.
+     * @param tokens
+     * @return
+     */
+    public String hello(String[] tokens) {
+        String prefix = enterBoard(tokens);
+        if (prefix == null) {
+            return helloFailed(tokens);
+        }
+        return boardLog(tokens, prefix);
+    }
+    
+    private String helloFailed(String[] tokens) {
+        return "hello " + tokens[1] + " " + tokens[2] + " false";
+    }
+    
+    /**
+     * Subscribe response: the board's draws are sent to the client from now
+     * on, and the part of the board's log it has not seen, like a resume
+     * @param tokens
+     * @return
+     */
+    public String subscribe(String[] tokens) {
+        String boardName = tokens[1];
+        long seq = Long.parseLong(tokens[2]);
+        Board board = server.getCommands(boardName);
+        if (board == null) {
+            return subscribeFailed(tokens);
+        }
+        if (connection != null) {
+            connection.subscribe(boardName);
+        }
+        if (seq > board.getNextSeq()) {
+            // the client saw a board of the same name with a longer log
+            seq = 0;
+        }
+        StringBuilder str = new StringBuilder("subscribe ").append(boardName);
+        appendLogFrom(str, boardName, board, seq);
+        return str.toString();
+    }
+    
+    private String subscribeFailed(String[] tokens) {
+        return "subscribe " + tokens[1] + " false";
+    }
+    
+    /**
+     * Unsubscribe response: the board's draws are no longer sent to the client,
+     * unless the user is on the board
+     * @param tokens
+     * @return
+     */
+    public String unsubscribe(String[] tokens) {
+        if (connection != null) {
+            connection.unsubscribe(tokens[1]);
+        }
+        return "unsubscribe " + tokens[1];
     }
     
     /**
@@ -241,6 +973,76 @@ public class ServerProtocol implements Runnable {
         return "users "+boardName+" "+server.getUsers(boardName);
     }
     
+    /**
+     * Undo response: the user's last stroke on the board is undone, and the
+     * clients are told which entries of the board's log it was.  Only the
+     * user logged in on this connection can be undone.
+     * @param tokens
+     * @return
+     */
+    public String undo(String[] tokens) {
+        // the log stops changing while the clients are told to reconnect
+        if (server.isDraining()) {
+            return REJECTED_DRAINING;
+        }
+        if (!tokens[2].equals(username)) {
+            return REJECTED_NOT_USER;
+        }
+        server.undo(tokens[1], username);
+        return "undo";
+    }
+    
+    /**
+     * Redo response: the stroke the user undid last on the board is redone.
+     * Only the user logged in on this connection can be redone.
+     * @param tokens
+     * @return
+     */
+    public String redo(String[] tokens) {
+        // the log stops changing while the clients are told to reconnect
+        if (server.isDraining()) {
+            return REJECTED_DRAINING;
+        }
+        if (!tokens[2].equals(username)) {
+            return REJECTED_NOT_USER;
+        }
+        server.redo(tokens[1], username);
+        return "redo";
+    }
+    
+    /**
+     * Encoding response: draws are compact encoded for the client from now on,
+     * with the palette the client kept from its earlier connection if it sent one
+     * @param tokens
+     * @return
+     */
+    public String encoding(String[] tokens) {
+        int[] palette = new int[tokens.length - 2];
+        for (int i = 0; i < palette.length; i++) {
+            long color = Long.parseLong(tokens[i + 2]);
+            if (color < Integer.MIN_VALUE || color > Integer.MAX_VALUE) {
+                // not a palette the server sent; start a fresh one
+                palette = new int[0];
+                break;
+            }
+            palette[i] = (int) color;
+        }
+        if (connection != null) {
+            connection.setCompact(palette);
+        }
+        return "encoding " + tokens[1];
+    }
+    
+    /**
+     * Compress response: the server compresses everything it sends after the
+     * reply, unless compression is turned off on the server
+     * @param tokens
+     * @return
+     */
+    public String compress(String[] tokens) {
+        return server.isCompressionEnabled() ? COMPRESS_DEFLATE : COMPRESS_NONE;
+    }
+    
     /**
      * testing purposes for handleRequest()
      * 
@@ -3,14 +3,21 @@ package server;
 import static org.junit.Assert.*;
 
 import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import org.junit.Test;
 
 import Command.Command;
+import Command.CommandRegistry;
 import client.Client;
 
 /**
@@ -25,6 +32,8 @@ import client.Client;
  *      basic switch board
  *      switch board with few Commands
  *      switch board with 1,000 Commands
+ *      switch back to a board the client has cached
+ *      users switching between two boards in opposite directions, logging in and leaving at once
  *  Check Boards:
  *      Check no boards
  *      Check one board
@@ -33,6 +42,14 @@ import client.Client;
  *      No Users
  *      One user
  *      Multiple Users
+ *  Pipelined:
+ *      switch to a board sent right after the newBoard which makes it
+ *  Hello:
+ *      log in on a board with a log, username taken, board which does not exist
+ *  Subscribe:
+ *      board the client has no log of, has part of, has a longer log of; board which does not exist
+ *      draws sent only for the boards followed; a background board falls behind, and is subscribed again;
+ *      the client stops reading the board the user is on
  *  Check and Add user:
  *      Add one user
  *      Add multiple users
@@ -47,6 +64,25 @@ import client.Client;
  *  Draw:
  *      Basic Draw
  *      Multiple Draw Commands
+ *      Batched Draw Commands
+ *      Polyline and shape Commands
+ *      Simplified strokes
+ *      Malformed Draw Commands, and Canvas methods which are not drawing operations
+ *  Undo:
+ *      Undo strokes across other users' draws, redo, redo dropped by a new draw,
+ *      undo and redo of another user's strokes
+ *  Clear:
+ *      Clear a rectangle, clear the board with undone entries, clear a rectangle around
+ *      the start of a simplified stroke
+ *  Resume:
+ *      Name still taken, resume after undo and new draws, longer log than the board's, no board
+ *  Negotiation:
+ *      Compression granted and refused, compact encoding, with and without the palette of an earlier connection
+ *  Rate Limits:
+ *      Draw faster than the connection allows; draws the board throttles, which do not use up
+ *      the connection's or the board's other budget; a line too long for the connection, with a request ID
+ *  Drain:
+ *      Draw, undo and redo after the server started draining
  *  Invalid Input
  */
 public class ServerProtocolTest {
@@ -169,6 +205,280 @@ public class ServerProtocolTest {
         server.shutDown();
     }
 
+    @Test
+    // a switch with the next entry of the client's cached log gets only the rest of the log
+    public void cachedSwitchBoardTest() throws IOException {
+        Server server = new Server(4444);
+        ServerProtocol protocol = new ServerProtocol(null, server);
+        server.newBoard("board1");
+        server.newBoard("board2");
+        protocol.testHandleRequest("checkAndAddUser user board1");
+        protocol.testHandleRequest("draw board1 drawLineSegment 0 0 10 0 0 2.0");
+        protocol.testHandleRequest("draw board1 drawLineSegment 50 50 60 60 0 2.0");
+
+        // the client left board1 after receiving entry 0
+        protocol.testHandleRequest("switch user board1 board2");
+        String output = protocol.testHandleRequest("switch user board2 board1 1");
+        String check = "resume user board1 1 0 0" + newLine
+                + "draw board1 drawLineSegment 50 50 60 60 0 2.0" + newLine;
+        assertEquals(check, output);
+        assertEquals("users board1 user", protocol.testHandleRequest("users board1"));
+
+        // nothing changed since
+        protocol.testHandleRequest("switch user board1 board2");
+        assertEquals("resume user board1 2 0 1" + newLine, protocol.testHandleRequest("switch user board2 board1 2"));
+
+        server.shutDown();
+    }
+
+    /**
+     * Connects a client to the server over a socket, served like an accepted connection
+     * @return the client's socket
+     */
+    private static Socket connect(Server server, ServerSocket listener) throws IOException {
+        Socket clientSocket = new Socket("localhost", listener.getLocalPort());
+        ClientConnection connection = new ClientConnection(listener.accept());
+        connection.start();
+        new Thread(new ServerProtocol(connection, server)).start();
+        return clientSocket;
+    }
+
+    @Test
+    // switches in opposite directions lock the two boards in the same order
+    public void crossedSwitchTest() throws IOException {
+        Server server = new Server(4444);
+        server.newBoard("board1");
+        server.newBoard("board2");
+        ServerSocket listener = new ServerSocket(0);
+        Socket first = connect(server, listener);
+        Socket second = connect(server, listener);
+        PrintWriter firstOut = new PrintWriter(first.getOutputStream(), true);
+        PrintWriter secondOut = new PrintWriter(second.getOutputStream(), true);
+        first.setSoTimeout(10000);
+        second.setSoTimeout(10000);
+        BufferedReader firstIn = new BufferedReader(new InputStreamReader(first.getInputStream()));
+        BufferedReader secondIn = new BufferedReader(new InputStreamReader(second.getInputStream()));
+
+        // both log in at once; a switch sent with the hello could overtake it, on its board's lane
+        firstOut.println("hello user1 board1");
+        secondOut.println("hello user2 board2");
+        assertEquals("hello user1 board1 true", firstIn.readLine());
+        assertEquals("hello user2 board2 true", secondIn.readLine());
+        for (int i = 0; i < 500; i++) {
+            firstOut.println("switch user1 board1 board2");
+            secondOut.println("switch user2 board2 board1");
+            firstOut.println("switch user1 board2 board1");
+            secondOut.println("switch user2 board1 board2");
+        }
+        // users logging in and leaving while the others switch
+        for (int i = 0; i < 20; i++) {
+            Socket other = connect(server, listener);
+            new PrintWriter(other.getOutputStream(), true).println(i % 2 == 0
+                    ? "hello other" + i + " board1" : "resume other" + i + " board2 0");
+            other.close();
+        }
+        // a deadlock would leave the replies unsent
+        for (BufferedReader in : new BufferedReader[] {firstIn, secondIn}) {
+            // each switch, and the switch in the rest of the hello's reply
+            int switches = 0;
+            while (switches < 1001) {
+                if (in.readLine().startsWith("switch user")) {
+                    switches++;
+                }
+            }
+        }
+
+        first.close();
+        second.close();
+        listener.close();
+        server.shutDown();
+    }
+
+    @Test
+    // a switch sent right after the newBoard which makes its board runs after it
+    public void pipelinedNewBoardSwitchTest() throws IOException {
+        Server server = new Server(4444);
+        server.newBoard("board0");
+        ServerSocket listener = new ServerSocket(0);
+        Socket client = connect(server, listener);
+        client.setSoTimeout(10000);
+        PrintWriter out = new PrintWriter(client.getOutputStream(), true);
+        BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+
+        out.println("hello user board0");
+        assertEquals("hello user board0 true", in.readLine());
+        // the rest of the hello's reply
+        while (!in.readLine().equals("switch user board0 board0")) {
+        }
+        int boards = 100;
+        for (int i = 1; i <= boards; i++) {
+            out.println("newBoard board" + i);
+            out.println("switch user board" + (i-1) + " board" + i);
+        }
+        // newBoard replies come in order; switches to different boards may finish in any order
+        int created = 0;
+        Set<String> switches = new HashSet<String>();
+        while (switches.size() < boards) {
+            String line = in.readLine();
+            if (line.startsWith("newBoard")) {
+                assertEquals("newBoard board" + (created+1) + " true", line);
+                created++;
+            } else if (line.startsWith("switch")) {
+                switches.add(line);
+            }
+        }
+        assertEquals(boards, created);
+        for (int i = 1; i <= boards; i++) {
+            assertTrue(switches.contains("switch user board" + (i-1) + " board" + i));
+        }
+
+        client.close();
+        listener.close();
+        server.shutDown();
+    }
+
+    @Test
+    // one reply brings the boards, the users and the board's log
+    public void helloTest() throws IOException {
+        Server server = new Server(4444);
+        ServerProtocol protocol = new ServerProtocol(null, server);
+        server.newBoard("board1");
+        protocol.testHandleRequest("checkAndAddUser other board1");
+        protocol.testHandleRequest("draw board1 drawLineSegment 0 0 10 0 0 2.0");
+
+        String output = protocol.testHandleRequest("hello user board1");
+        String check = "hello user board1 true" + newLine
+                + "boards " + server.getBoards() + newLine
+                + "users board1 " + server.getUsers("board1") + newLine
+                + "switch user board1 board1" + newLine
+                + "draw board1 drawLineSegment 0 0 10 0 0 2.0" + newLine;
+        assertEquals(check, output);
+        assertTrue(server.getUsers("board1").contains("user"));
+
+        // the username is taken now
+        assertEquals("hello user board1 false", protocol.testHandleRequest("hello user board1"));
+        assertEquals("hello someone nowhere false", protocol.testHandleRequest("hello someone nowhere"));
+
+        server.shutDown();
+    }
+
+    @Test
+    // the part of the log the client does not have, like a resume
+    public void subscribeTest() throws IOException {
+        Server server = new Server(4444);
+        ServerProtocol protocol = new ServerProtocol(null, server);
+        server.newBoard("board1");
+        server.newBoard("board2");
+        protocol.testHandleRequest("hello user board1");
+        protocol.testHandleRequest("draw board2 drawLineSegment 0 0 10 0 0 2.0");
+        protocol.testHandleRequest("draw board2 drawLineSegment 50 50 60 60 0 2.0");
+
+        assertEquals("subscribe board2 0" + newLine
+                + "draw board2 drawLineSegment 0 0 10 0 0 2.0" + newLine
+                + "draw board2 drawLineSegment 50 50 60 60 0 2.0" + newLine,
+                protocol.testHandleRequest("subscribe board2 0"));
+        assertEquals("subscribe board2 1 0 0" + newLine
+                + "draw board2 drawLineSegment 50 50 60 60 0 2.0" + newLine,
+                protocol.testHandleRequest("subscribe board2 1"));
+        // a board of the same name the client saw had a longer log
+        assertEquals(protocol.testHandleRequest("subscribe board2 0"), protocol.testHandleRequest("subscribe board2 9"));
+        assertEquals("subscribe nowhere false", protocol.testHandleRequest("subscribe nowhere 0"));
+        assertEquals("unsubscribe board2", protocol.testHandleRequest("unsubscribe board2"));
+
+        server.shutDown();
+    }
+
+    @Test
+    // a connection is sent the draws of the boards it follows, and a background board which falls behind goes stale
+    public void backgroundFlowControlTest() throws IOException {
+        ServerSocket listener = new ServerSocket(0);
+        Socket clientSocket = new Socket("localhost", listener.getLocalPort());
+        Socket serverSocket = listener.accept();
+        ClientConnection connection = new ClientConnection(serverSocket);
+
+        // before choosing a board, every board is followed
+        assertTrue(connection.follows("other"));
+        connection.setCurrentBoard("board1");
+        connection.subscribe("board2");
+        assertFalse(connection.follows("other"));
+
+        // nothing is written yet, so every draw stays queued
+        int behind = ClientConnection.MAX_BACKGROUND_DRAWS + 10;
+        for (int i = 0; i < behind; i++) {
+            connection.sendDraw("board1", null, "draw board1 clearBoard");
+            connection.sendDraw("board2", null, "draw board2 clearBoard");
+            connection.sendDraw("other", null, "draw other clearBoard");
+        }
+        assertTrue(connection.isStale("board2"));
+        assertFalse(connection.isStale("board1"));
+
+        connection.start();
+        BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+        int board1 = 0;
+        int board2 = 0;
+        for (String line = in.readLine(); !line.equals("stale board2"); line = in.readLine()) {
+            if (line.equals("draw board1 clearBoard")) {
+                board1++;
+            } else {
+                assertEquals("draw board2 clearBoard", line);
+                board2++;
+            }
+        }
+        assertEquals(ClientConnection.MAX_BACKGROUND_DRAWS, board2);
+        // the client reads the notice after the draws it was sent, and subscribes again
+        connection.subscribe("board2");
+        assertFalse(connection.isStale("board2"));
+        connection.sendDraw("board2", null, "draw board2 drawLineSegment 0 0 1 1 0 1.0");
+        for (String line = in.readLine(); !line.startsWith("draw board2"); line = in.readLine()) {
+            assertEquals("draw board1 clearBoard", line);
+            board1++;
+        }
+        assertEquals(behind, board1);
+
+        connection.close();
+        clientSocket.close();
+        listener.close();
+    }
+
+    @Test
+    // a connection whose client stops reading the board the user is on is closed
+    public void currentBoardFlowControlTest() throws IOException {
+        ServerSocket listener = new ServerSocket(0);
+        Socket clientSocket = new Socket("localhost", listener.getLocalPort());
+        Socket serverSocket = listener.accept();
+        ClientConnection connection = new ClientConnection(serverSocket);
+        connection.setCurrentBoard("board1");
+
+        // a log longer than the lane holds is queued while the lane is empty
+        StringBuilder log = new StringBuilder("switch user board1 board1");
+        while (log.length() <= ClientConnection.MAX_QUEUED_BULK_CHARS) {
+            log.append("\ndraw board1 clearBoard");
+        }
+        connection.sendBulk(log.toString());
+        assertFalse(connection.isClosed());
+        connection.close();
+        clientSocket.close();
+        clientSocket = new Socket("localhost", listener.getLocalPort());
+        connection = new ClientConnection(listener.accept());
+        connection.setCurrentBoard("board1");
+
+        // nothing is written, so draws pile up until the lane is full
+        StringBuilder draw = new StringBuilder("draw board1 drawPolyline 0 0 0 1.0");
+        while (draw.length() < 1024) {
+            draw.append(" 1 1");
+        }
+        String message = draw.toString();
+        for (long queued = message.length(); queued <= ClientConnection.MAX_QUEUED_BULK_CHARS; queued += message.length()) {
+            connection.sendDraw("board1", null, message);
+        }
+        assertFalse(connection.isClosed());
+        connection.sendDraw("board1", null, message);
+        assertTrue(connection.isClosed());
+
+        clientSocket.close();
+        listener.close();
+    }
+
     @Test
     // switch board with few commands
     public void fewCommandsSwitchBoardTest() throws IOException {
@@ -544,7 +854,7 @@ public class ServerProtocolTest {
         ServerProtocol protocol = new ServerProtocol(null, server);
         server.newBoard("board");
 
-        String input = "draw board drawLineSegment 1 2 3 4 Color.BLACK 4";
+        String input = "draw board drawLineSegment 1 2 3 4 16777216 4";
         String output = protocol.testHandleRequest(input);
         assertEquals(output, "draw");
 
@@ -560,10 +870,10 @@ public class ServerProtocolTest {
         server.newBoard("board2");
         server.newBoard("board3");
 
-        String input1 = "draw board3 drawLineSegment 1 2 3 4 Color.BLACK 4";
-        String input2 = "draw board2 drawLineSegment 1 2 3 4 Color.BLACK 4";
-        String input3 = "draw board1 drawLineSegment 1 2 3 4 Color.BLACK 4";
-        String input4 = "draw board2 drawLineSegment 1 2 3 4 Color.BLACK 4";
+        String input1 = "draw board3 drawLineSegment 1 2 3 4 16777216 4";
+        String input2 = "draw board2 drawLineSegment 1 2 3 4 16777216 4";
+        String input3 = "draw board1 drawLineSegment 1 2 3 4 16777216 4";
+        String input4 = "draw board2 drawLineSegment 1 2 3 4 16777216 4";
 
         String output1 = protocol.testHandleRequest(input1);
         String output2 = protocol.testHandleRequest(input2);
@@ -578,6 +888,390 @@ public class ServerProtocolTest {
         server.shutDown();
     }
 
+    @Test
+    // draw a batch of segments in one request
+    public void batchDrawTest() throws IOException {
+        Server server = new Server(4444);
+        ServerProtocol protocol = new ServerProtocol(null, server);
+        server.newBoard("board");
+
+        String input = "drawBatch board drawLineSegment 1 2 3 4 0 4 ; drawLineSegment 3 4 5 6 0 4 ; drawLineSegment 5 6 7 8 0 4";
+        String output = protocol.testHandleRequest(input);
+        assertEquals("drawBatch", output);
+
+        List<Command> commands = server.getCommands("board").getCommands();
+        assertEquals(3, commands.size());
+        assertEquals("draw board drawLineSegment 1 2 3 4 0 4", commands.get(0).toString());
+        assertEquals("draw board drawLineSegment 5 6 7 8 0 4", commands.get(2).toString());
+
+        server.shutDown();
+    }
+
+    @Test
+    // a whole stroke drawn as one polyline is stored as one command
+    public void polylineDrawTest() throws IOException {
+        Server server = new Server(4444);
+        ServerProtocol protocol = new ServerProtocol(null, server);
+        server.newBoard("board");
+
+        String input = "draw board drawPolyline 10 10 16777216 4.0 2 -1 2 -1 3 0 -4 6";
+        assertEquals("draw", protocol.testHandleRequest(input));
+        assertEquals("draw", protocol.testHandleRequest("draw board drawEllipse 10 10 20 30 16777216 1.0"));
+        assertEquals("rejected invalidDraw", protocol.testHandleRequest("draw board fillRegion 10 10 16777216 2 -1 3"));
+
+        // the longest polyline allowed is accepted without overflowing the parser's stack
+        StringBuilder longest = new StringBuilder("draw board drawPolyline 10 10 16777216 4.0");
+        for (int i = 0; i < CommandRegistry.MAX_POINTS_LENGTH; i++) {
+            longest.append(i % 2 == 0 ? " 1" : " -1");
+        }
+        assertEquals("draw", protocol.testHandleRequest(longest.toString()));
+
+        List<Command> commands = server.getCommands("board").getCommands();
+        assertEquals(3, commands.size());
+        assertEquals(input, commands.get(0).toString());
+
+        server.shutDown();
+    }
+
+    @Test
+    // with simplification on, a stroke of nearly collinear segments is stored as one command
+    public void simplifiedStrokeTest() throws IOException {
+        Server server = new Server(4444);
+        server.setSimplifyTolerance(1.0);
+        ServerProtocol protocol = new ServerProtocol(null, server);
+        server.newBoard("board");
+
+        StringBuilder batch = new StringBuilder("drawBatch board");
+        for (int i = 0; i < 20; i++) {
+            if (i > 0) {
+                batch.append(" ;");
+            }
+            batch.append(" drawLineSegment ").append(i).append(" ").append(i % 2).append(" ")
+                .append(i+1).append(" ").append((i+1) % 2).append(" 16777216 2.0");
+        }
+        assertEquals("drawBatch", protocol.testHandleRequest(batch.toString()));
+        assertEquals("draw", protocol.testHandleRequest("draw board drawPolyline 20 0 16777216 2.0 10 0 0 10"));
+        // a different width ends the stroke
+        assertEquals("draw", protocol.testHandleRequest("draw board drawLineSegment 30 10 40 10 16777216 4.0"));
+
+        List<Command> commands = server.getCommands("board").getCommands();
+        assertEquals(2, commands.size());
+        assertEquals("draw board drawPolyline 0 0 16777216 2.0 30 0 0 10", commands.get(0).toString());
+        assertEquals("draw board drawLineSegment 30 10 40 10 16777216 4.0", commands.get(1).toString());
+
+        server.shutDown();
+    }
+
+    @Test
+    // draws which do not fit a drawing operation are rejected and not stored
+    public void invalidDrawTest() throws IOException {
+        Server server = new Server(4444);
+        ServerProtocol protocol = new ServerProtocol(null, server);
+        server.newBoard("board");
+
+        // non-numeric color
+        assertEquals("rejected invalidDraw", protocol.testHandleRequest("draw board drawLineSegment 1 2 3 4 Color.BLACK 4"));
+        // too few arguments
+        assertEquals("rejected invalidDraw", protocol.testHandleRequest("draw board drawLineSegment 1 2 3 4"));
+        // unknown operation
+        assertEquals("rejected invalidDraw", protocol.testHandleRequest("draw board drawNothing"));
+        // methods of Canvas which are not drawing operations
+        assertEquals("rejected invalidDraw", protocol.testHandleRequest("draw board drawLineSegmentAndCall 1 2 3 4 0 4"));
+        assertEquals("rejected invalidDraw", protocol.testHandleRequest("draw board updateCurrentUserBoard"));
+        assertEquals("rejected invalidDraw", protocol.testHandleRequest("drawBatch board drawLineSegment 1 2 3 4 0 4 ; updateCurrentUserBoard"));
+        // one bad command rejects the whole batch
+        assertEquals("rejected invalidDraw", protocol.testHandleRequest("drawBatch board drawLineSegment 1 2 3 4 0 4 ; drawLineSegment 1 2 3 4 0 NaN"));
+
+        assertEquals(0, server.getCommands("board").getCommands().size());
+        assertEquals(7, server.getMetrics().getInvalidDraws());
+
+        server.shutDown();
+    }
+
+    /*********************** Undo *******************/
+    @Test
+    // undo takes back the user's last stroke, even across other users' draws, and redo restores it
+    public void undoRedoTest() throws IOException {
+        Server server = new Server(4444);
+        ServerProtocol alice = new ServerProtocol(null, server);
+        ServerProtocol bob = new ServerProtocol(null, server);
+        server.newBoard("board");
+        alice.testHandleRequest("checkAndAddUser alice board");
+        bob.testHandleRequest("checkAndAddUser bob board");
+
+        // a stroke sent as two draws, another user's draw, then a separate stroke
+        alice.testHandleRequest("draw board drawLineSegment 0 0 10 0 16777216 2.0");
+        alice.testHandleRequest("draw board drawLineSegment 10 0 20 0 16777216 2.0");
+        bob.testHandleRequest("draw board drawLineSegment 50 50 60 60 0 2.0");
+        alice.testHandleRequest("draw board drawLineSegment 100 100 110 110 16777216 2.0");
+
+        // only the user logged in on the connection can be undone
+        assertEquals("rejected notUser", bob.testHandleRequest("undo board alice"));
+        assertEquals("rejected notUser", new ServerProtocol(null, server).testHandleRequest("undo board alice"));
+        assertEquals(4, server.getCommands("board").getCommands().size());
+
+        assertEquals("undo", alice.testHandleRequest("undo board alice"));
+        assertEquals(3, server.getCommands("board").getCommands().size());
+        alice.testHandleRequest("undo board alice");
+        assertEquals(1, server.getCommands("board").getCommands().size());
+
+        // undone entries are sent after a marker, so they can be redone
+        String output = bob.testHandleRequest("switch bob board board");
+        String check = "switch bob board board" + newLine
+                + "undone board" + newLine + "draw board drawLineSegment 0 0 10 0 16777216 2.0" + newLine
+                + "undone board" + newLine + "draw board drawLineSegment 10 0 20 0 16777216 2.0" + newLine
+                + "draw board drawLineSegment 50 50 60 60 0 2.0" + newLine
+                + "undone board" + newLine + "draw board drawLineSegment 100 100 110 110 16777216 2.0" + newLine;
+        assertEquals(check, output);
+
+        assertEquals("rejected notUser", bob.testHandleRequest("redo board alice"));
+        alice.testHandleRequest("redo board alice");
+        assertEquals(3, server.getCommands("board").getCommands().size());
+
+        // drawing again drops the stroke which could still be redone, leaving a gap in the numbering
+        alice.testHandleRequest("draw board drawLineSegment 0 0 0 10 16777216 2.0");
+        assertEquals("redo", alice.testHandleRequest("redo board alice"));
+        output = bob.testHandleRequest("switch bob board board");
+        check = "switch bob board board" + newLine
+                + "draw board drawLineSegment 0 0 10 0 16777216 2.0" + newLine
+                + "draw board drawLineSegment 10 0 20 0 16777216 2.0" + newLine
+                + "draw board drawLineSegment 50 50 60 60 0 2.0" + newLine
+                + "seq board 4" + newLine + "draw board drawLineSegment 0 0 0 10 16777216 2.0" + newLine;
+        assertEquals(check, output);
+
+        server.shutDown();
+    }
+
+    @Test
+    public void clearTest() throws IOException {
+        Server server = new Server(4444);
+        ServerProtocol alice = new ServerProtocol(null, server);
+        ServerProtocol bob = new ServerProtocol(null, server);
+        server.newBoard("board");
+        alice.testHandleRequest("checkAndAddUser alice board");
+
+        // only the draws entirely inside the cleared rectangle are dropped
+        alice.testHandleRequest("draw board drawLineSegment 10 10 20 20 0 2.0");
+        alice.testHandleRequest("draw board drawLineSegment 10 10 200 200 0 2.0");
+        alice.testHandleRequest("draw board clearRect 0 0 50 50");
+        String output = bob.testHandleRequest("switch bob board board");
+        String check = "switch bob board board" + newLine
+                + "seq board 1" + newLine + "draw board drawLineSegment 10 10 200 200 0 2.0" + newLine
+                + "draw board clearRect 0 0 50 50" + newLine;
+        assertEquals(check, output);
+
+        // clears cannot be undone
+        assertEquals("undo", alice.testHandleRequest("undo board alice"));
+        assertEquals(1, server.getCommands("board").getCommands().size());
+
+        // clearing the board drops the whole log, undone entries included
+        for (int i = 0; i < 100; i++) {
+            alice.testHandleRequest("draw board drawLineSegment 0 " + i + " 100 " + i + " 0 1.0");
+        }
+        alice.testHandleRequest("undo board alice");
+        alice.testHandleRequest("draw board clearBoard");
+        output = bob.testHandleRequest("switch bob board board");
+        check = "switch bob board board" + newLine
+                + "seq board 103" + newLine + "draw board clearBoard" + newLine;
+        assertEquals(check, output);
+        assertEquals("redo", alice.testHandleRequest("redo board alice"));
+        assertEquals(1, server.getCommands("board").getCommands().size());
+
+        server.shutDown();
+    }
+
+    @Test
+    // a stroke merged from draws which leave a cleared rectangle is kept
+    public void clearMergedStrokeTest() throws IOException {
+        Server server = new Server(4444);
+        server.setSimplifyTolerance(1.0);
+        ServerProtocol protocol = new ServerProtocol(null, server);
+        server.newBoard("board");
+
+        protocol.testHandleRequest("draw board drawLineSegment 10 10 20 20 16777216 2.0");
+        protocol.testHandleRequest("draw board drawLineSegment 20 20 100 30 16777216 2.0");
+        protocol.testHandleRequest("draw board drawLineSegment 100 30 200 200 16777216 2.0");
+        protocol.testHandleRequest("draw board clearRect 0 0 50 50");
+
+        List<Command> commands = server.getCommands("board").getCommands();
+        assertEquals(2, commands.size());
+        assertEquals("draw board drawPolyline 10 10 16777216 2.0 10 10 80 10 100 170", commands.get(0).toString());
+        assertEquals("draw board clearRect 0 0 50 50", commands.get(1).toString());
+
+        server.shutDown();
+    }
+
+    @Test
+    public void resumeTest() throws IOException {
+        Server server = new Server(4444);
+        ServerProtocol alice = new ServerProtocol(null, server);
+        ServerProtocol bob = new ServerProtocol(null, server);
+        server.newBoard("board");
+        alice.testHandleRequest("checkAndAddUser alice board");
+
+        alice.testHandleRequest("draw board drawLineSegment 0 0 10 0 0 2.0");
+        alice.testHandleRequest("draw board drawLineSegment 50 50 60 60 0 2.0");
+        alice.testHandleRequest("draw board drawLineSegment 100 100 110 110 0 2.0");
+        alice.testHandleRequest("undo board alice");
+
+        // the name is still taken by the old session
+        assertEquals("resume alice board false", bob.testHandleRequest("resume alice board 2"));
+        server.exit("alice");
+
+        // entry 2 was undone after the client received it, and entry 3 it has not seen
+        alice.testHandleRequest("draw board drawLineSegment 0 0 0 10 0 2.0");
+        String output = bob.testHandleRequest("resume alice board 2");
+        String check = "resume alice board 2 0 1" + newLine
+                + "seq board 3" + newLine + "draw board drawLineSegment 0 0 0 10 0 2.0" + newLine;
+        assertEquals(check, output);
+
+        // the draws of the resumed session are the user's
+        bob.testHandleRequest("undo board alice");
+        assertEquals(2, server.getCommands("board").getCommands().size());
+
+        // a client which saw a longer log gets the whole board
+        server.exit("alice");
+        output = bob.testHandleRequest("resume alice board 10");
+        assertTrue(output.startsWith("switch alice board board" + newLine));
+
+        assertEquals("resume alice nowhere false", alice.testHandleRequest("resume alice nowhere 0"));
+        server.shutDown();
+    }
+
+    /*********************** Negotiation *******************/
+    @Test
+    // compression is granted unless the server turned it off
+    public void compressTest() throws IOException {
+        Server server = new Server(4444);
+        ServerProtocol protocol = new ServerProtocol(null, server);
+
+        assertEquals("compress deflate", protocol.testHandleRequest("compress deflate"));
+        server.setCompressionEnabled(false);
+        assertEquals("compress none", protocol.testHandleRequest("compress deflate"));
+        assertEquals("encoding compact", protocol.testHandleRequest("encoding compact"));
+        // a reconnecting client sends the palette of its earlier connection
+        assertEquals("encoding compact", protocol.testHandleRequest("encoding compact 255 -16777216 0"));
+        assertEquals("encoding compact", protocol.testHandleRequest("encoding compact 4294967296"));
+        assertNull(protocol.testHandleRequest("encoding compact 1.5"));
+
+        server.shutDown();
+    }
+
+    /*********************** Rate Limits *******************/
+    @Test
+    // draws beyond the connection's burst are rejected and counted
+    public void connectionRateLimitTest() throws IOException {
+        Server server = new Server(4444);
+        ServerProtocol protocol = new ServerProtocol(null, server);
+        server.newBoard("board");
+
+        int rejected = 0;
+        for (int i = 0; i < 2 * ServerProtocol.COMMANDS_PER_SECOND + 100; i++) {
+            String output = protocol.testHandleRequest("draw board drawLineSegment 1 2 3 4 0 4");
+            if (output.equals("rejected connectionRate")) {
+                rejected++;
+            } else {
+                assertEquals("draw", output);
+            }
+        }
+        assertTrue(rejected > 0);
+        assertEquals(rejected, server.getMetrics().getThrottledConnectionCommands());
+        assertEquals(2 * ServerProtocol.COMMANDS_PER_SECOND + 100 - rejected, server.getCommands("board").getCommands().size());
+
+        server.shutDown();
+    }
+
+    @Test
+    // draws a board throttles are not charged to the connection
+    public void boardRateLimitTest() throws IOException {
+        Server server = new Server(4444);
+        ServerProtocol protocol = new ServerProtocol(null, server);
+        server.newBoard("board");
+        server.newBoard("other");
+
+        // more draws than the connection's burst, while the board's commands are used up
+        int rejected = 0;
+        for (int i = 0; i < 2 * ServerProtocol.COMMANDS_PER_SECOND + 100; i++) {
+            while (server.getCommands("board").admitDraw(1, 0)) {
+            }
+            String output = protocol.testHandleRequest("draw board drawLineSegment 1 2 3 4 0 4");
+            if (output.equals("rejected boardRate")) {
+                rejected++;
+            } else {
+                // the board may have refilled a command in between
+                assertEquals("draw", output);
+            }
+        }
+        assertTrue(rejected > ServerProtocol.COMMANDS_PER_SECOND);
+        for (int i = 0; i < 100; i++) {
+            assertEquals("draw", protocol.testHandleRequest("draw other drawLineSegment 1 2 3 4 0 4"));
+        }
+
+        server.shutDown();
+    }
+
+    @Test
+    // a draw too large for the board's bytes does not use up its commands
+    public void boardByteRateLimitTest() throws IOException {
+        Server server = new Server(4444);
+        server.newBoard("board");
+        Board board = server.getCommands("board");
+
+        for (int i = 0; i < 2 * Board.COMMANDS_PER_SECOND; i++) {
+            assertFalse(board.admitDraw(1, 4 * Board.BYTES_PER_SECOND));
+        }
+        assertTrue(board.admitDraw(Board.COMMANDS_PER_SECOND, 0));
+
+        server.shutDown();
+    }
+
+    @Test
+    // a line beyond the connection's byte burst is rejected with its request ID
+    public void connectionByteRateLimitTest() throws IOException {
+        Server server = new Server(4444);
+        ServerSocket listener = new ServerSocket(0);
+        Socket clientSocket = new Socket("localhost", listener.getLocalPort());
+        ClientConnection connection = new ClientConnection(listener.accept());
+        connection.start();
+        new Thread(new ServerProtocol(connection, server)).start();
+
+        StringBuilder line = new StringBuilder("#5 draw board drawPolyline 0 0 0 1.0");
+        while (line.length() <= 2 * ServerProtocol.BYTES_PER_SECOND) {
+            line.append(" 1 1");
+        }
+        PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
+        out.println(line);
+        BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+        assertEquals("#5 rejected connectionRate", in.readLine());
+
+        clientSocket.close();
+        listener.close();
+        server.shutDown();
+    }
+
+    /*********************** Drain *************************/
+    @Test
+    // draws, undos and redos are rejected once the server is draining
+    public void drawWhileDrainingTest() throws IOException {
+        Server server = new Server(4444);
+        ServerProtocol protocol = new ServerProtocol(null, server);
+        server.newBoard("board");
+        protocol.testHandleRequest("checkAndAddUser alice board");
+        protocol.testHandleRequest("draw board drawLineSegment 0 0 10 0 0 2.0");
+        protocol.testHandleRequest("draw board drawLineSegment 50 50 60 60 0 2.0");
+        protocol.testHandleRequest("undo board alice");
+
+        server.drain(100);
+        assertTrue(server.isDraining());
+        String output = protocol.testHandleRequest("draw board drawLineSegment 1 2 3 4 0 4");
+        assertEquals("rejected draining", output);
+        // the log no longer changes
+        assertEquals("rejected draining", protocol.testHandleRequest("undo board alice"));
+        assertEquals("rejected draining", protocol.testHandleRequest("redo board alice"));
+        assertEquals(1, server.getCommands("board").getCommands().size());
+        assertEquals("draw board drawLineSegment 0 0 10 0 0 2.0", server.getCommands("board").getCommands().get(0).toString());
+    }
+
     /*********************** Invalid Input *****************/
 
     // invalid input new board
@@ -0,0 +1,84 @@
+package server;
+
+/**
+ * Douglas-Peucker simplification of the points of a stroke: keeps the two
+ * ends of the stroke and, recursively, the point farthest from the line
+ * between the kept points, until every dropped point lies within the
+ * tolerance of the simplified line.
+ *
+ * Concurrency Argument:
+ *   - the class has no state; the arrays passed in must not be shared
+ *
+ */
+public class StrokeSimplifier {
+
+    private StrokeSimplifier() {
+    }
+
+    /**
+     * Simplifies the first n points of xs and ys in place
+     * @param xs: x coordinates of the points
+     * @param ys: y coordinates of the points
+     * @param n: number of points, at least 1
+     * @param tolerance: greatest distance in pixels a dropped point may be from the simplified line
+     * @return number of points kept, which are moved to the front of xs and ys in order
+     */
+    public static int simplify(int[] xs, int[] ys, int n, double tolerance) {
+        if (n <= 2) {
+            return n;
+        }
+        boolean[] keep = new boolean[n];
+        keep[0] = true;
+        keep[n-1] = true;
+        // ranges still to simplify, as (first, last) pairs; a range splits in
+        // two at most once per point, so n pairs are always enough
+        int[] ranges = new int[2*n];
+        int top = 0;
+        ranges[top++] = 0;
+        ranges[top++] = n-1;
+        double toleranceSquared = tolerance * tolerance;
+        while (top > 0) {
+            int last = ranges[--top];
+            int first = ranges[--top];
+            int farthest = -1;
+            double farthestDistance = toleranceSquared;
+            for (int i = first+1; i < last; i++) {
+                double distance = distanceSquared(xs[i], ys[i], xs[first], ys[first], xs[last], ys[last]);
+                if (distance > farthestDistance) {
+                    farthest = i;
+                    farthestDistance = distance;
+                }
+            }
+            if (farthest >= 0) {
+                keep[farthest] = true;
+                ranges[top++] = first;
+                ranges[top++] = farthest;
+                ranges[top++] = farthest;
+                ranges[top++] = last;
+            }
+        }
+        int kept = 0;
+        for (int i = 0; i < n; i++) {
+            if (keep[i]) {
+                xs[kept] = xs[i];
+                ys[kept] = ys[i];
+                kept++;
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * @return the squared distance from (x, y) to the segment from (x1, y1) to (x2, y2)
+     */
+    private static double distanceSquared(int x, int y, int x1, int y1, int x2, int y2) {
+        double dx = x2 - x1;
+        double dy = y2 - y1;
+        double lengthSquared = dx*dx + dy*dy;
+        double t = lengthSquared == 0 ? 0 : ((x - x1)*dx + (y - y1)*dy) / lengthSquared;
+        t = Math.max(0, Math.min(1, t));
+        double px = x1 + t*dx - x;
+        double py = y1 + t*dy - y;
+        return px*px + py*py;
+    }
+}
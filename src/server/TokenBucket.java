@@ -0,0 +1,60 @@
+package server;
+
+/**
+ * Token bucket used to limit the rate of traffic from clients.  The bucket
+ * holds at most capacity tokens and is refilled continuously at ratePerSecond
+ * tokens per second.  A request is admitted only if the bucket holds enough
+ * tokens to pay for it.
+ * 
+ * Concurrency Argument:
+ *   - This class is made concurrent by the monitor pattern
+ *
+ */
+public class TokenBucket {
+    
+    private final double capacity;
+    private final double ratePerSecond;
+    private double tokens;
+    private long lastRefill;
+    
+    /**
+     * Creates a full bucket
+     * @param ratePerSecond: tokens added to the bucket every second
+     * @param capacity: the most tokens the bucket can hold, i.e. the largest burst admitted
+     */
+    public TokenBucket(double ratePerSecond, double capacity) {
+        this.ratePerSecond = ratePerSecond;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+    
+    /**
+     * Takes cost tokens from the bucket if it holds enough of them
+     * @param cost: number of tokens the request costs
+     * @return true if the request is admitted, false if it should be throttled
+     */
+    public synchronized boolean tryConsume(double cost) {
+        refill();
+        if (tokens < cost) {
+            return false;
+        }
+        tokens -= cost;
+        return true;
+    }
+    
+    /**
+     * Gives back tokens taken for a request which was rejected after all
+     * @param cost: number of tokens the request was charged
+     */
+    public synchronized void refund(double cost) {
+        refill();
+        tokens = Math.min(capacity, tokens + cost);
+    }
+    
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * ratePerSecond / 1e9);
+        lastRefill = now;
+    }
+}